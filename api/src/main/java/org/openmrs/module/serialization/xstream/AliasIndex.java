@@ -0,0 +1,272 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.regex.Pattern;
+
+/**
+ * The list of classes whose names are aliased by {@link XStreamSerializer}, generated while the
+ * module is built so that the serializer does not have to scan the openmrs-api jar on every
+ * construction. <br/>
+ * <br/>
+ * The index is a plain text resource, a few "key=value" header lines followed by one fully
+ * qualified class name per line:
+ *
+ * <pre>
+ * # Generated while building the module, do not edit
+ * openmrs.version=2.0.0
+ * packages=org.openmrs
+ * org.openmrs.Address
+ * org.openmrs.Allergen
+ * ...
+ * </pre>
+ *
+ * The OpenMRS version the index was generated against is only informative: the module runs on
+ * later versions too, so the index is considered stale by its content instead, when it was
+ * generated for other packages or lists a class which the running OpenMRS doesn't have. In that
+ * case the serializer falls back to scanning the classpath. A class added by a later version isn't
+ * listed, but it is still aliased the first time it is used.
+ *
+ * @see XStreamSerializer#commonConfig()
+ */
+public class AliasIndex {
+	
+	public static final String RESOURCE_NAME = "org/openmrs/module/serialization/xstream/alias-index.txt";
+	
+	private static final String VERSION_KEY = "openmrs.version";
+	
+	private static final String PACKAGES_KEY = "packages";
+	
+	private final String openmrsVersion;
+	
+	private final List<String> packageNames;
+	
+	private final List<String> classNames;
+	
+	public AliasIndex(String openmrsVersion, List<String> packageNames, List<String> classNames) {
+		this.openmrsVersion = openmrsVersion;
+		this.packageNames = Collections.unmodifiableList(new ArrayList<String>(packageNames));
+		this.classNames = Collections.unmodifiableList(new ArrayList<String>(classNames));
+	}
+	
+	/**
+	 * Read the index from the given class loader
+	 *
+	 * @param classLoader - the class loader which can see {@link #RESOURCE_NAME}
+	 * @return the index, or null if the module was built without one
+	 * @throws IOException
+	 */
+	public static AliasIndex load(ClassLoader classLoader) throws IOException {
+		InputStream in = classLoader.getResourceAsStream(RESOURCE_NAME);
+		if (in == null) {
+			return null;
+		}
+		try {
+			return read(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Parse an index previously written by {@link #write(Writer)}
+	 *
+	 * @param in - the stream read from
+	 * @return the parsed index
+	 * @throws IOException
+	 */
+	public static AliasIndex read(InputStream in) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		String openmrsVersion = null;
+		List<String> packageNames = new ArrayList<String>();
+		List<String> classNames = new ArrayList<String>();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#")) {
+				continue;
+			}
+			int separator = line.indexOf('=');
+			if (separator < 0) {
+				classNames.add(line);
+			} else if (VERSION_KEY.equals(line.substring(0, separator))) {
+				openmrsVersion = line.substring(separator + 1);
+			} else if (PACKAGES_KEY.equals(line.substring(0, separator))) {
+				packageNames.addAll(Arrays.asList(line.substring(separator + 1).split(",")));
+			}
+		}
+		return new AliasIndex(openmrsVersion, packageNames, classNames);
+	}
+	
+	/**
+	 * Write this index in the format understood by {@link #read(InputStream)}
+	 *
+	 * @param out - the writer to write to, it is flushed but not closed
+	 * @throws IOException
+	 */
+	public void write(Writer out) throws IOException {
+		out.write("# Generated while building the module, do not edit\n");
+		out.write(VERSION_KEY + "=" + openmrsVersion + "\n");
+		StringBuilder packages = new StringBuilder();
+		for (String packageName : packageNames) {
+			if (packages.length() > 0) {
+				packages.append(',');
+			}
+			packages.append(packageName);
+		}
+		out.write(PACKAGES_KEY + "=" + packages + "\n");
+		for (String className : classNames) {
+			out.write(className + "\n");
+		}
+		out.flush();
+	}
+	
+	/**
+	 * Judge whether this index can be used by a serializer which aliases the classes in the given
+	 * packages with the given class loader. The class files of the indexed classes are looked up,
+	 * none of the classes is loaded.
+	 *
+	 * @param expectedPackageNames - the packages the serializer wants to alias
+	 * @param classLoader - the class loader the classes are loaded with
+	 * @return true if the index was generated for other packages or lists a missing class
+	 */
+	public boolean isStale(List<String> expectedPackageNames, ClassLoader classLoader) {
+		if (!packageNames.equals(expectedPackageNames)) {
+			return true;
+		}
+		for (String className : classNames) {
+			if (classLoader.getResource(className.replace('.', '/') + ".class") == null) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public String getOpenmrsVersion() {
+		return openmrsVersion;
+	}
+	
+	public List<String> getPackageNames() {
+		return packageNames;
+	}
+	
+	public List<String> getClassNames() {
+		return classNames;
+	}
+	
+	/**
+	 * Get the names of all classes directly in a given package, excluding classes in sub packages
+	 * and inner classes. Unlike a scan done through {@link ClassLoader#loadClass(String)} none of
+	 * the found classes is loaded.
+	 *
+	 * @param classLoader - the class loader whose resources are scanned
+	 * @param packageName - the given package's name
+	 * @return the sorted names of all classes in the given package
+	 * @throws IOException
+	 */
+	public static List<String> scanClassNames(ClassLoader classLoader, String packageName) throws IOException {
+		TreeSet<String> names = new TreeSet<String>();
+		String packagePath = packageName.replace('.', '/');
+		/*
+		 * if run Openmrs in tomcat, all classes will be stored in "WEB-INF/classes" and "WEB-INF/lib/openmrs-xxx.jar"
+		 * if just test serialization service through unit test without start tomcat, the classes will be stored in "build/org/..."
+		 * so here to judge for both cases "file resource" or "jar resource"
+		 */
+		Enumeration<URL> resources = classLoader.getResources(packagePath);
+		while (resources.hasMoreElements()) {
+			URL url = resources.nextElement();
+			if ("jar".equals(url.getProtocol())) {
+				JarURLConnection con = (JarURLConnection) url.openConnection();
+				con.setUseCaches(false);
+				JarFile jarFile = con.getJarFile();
+				try {
+					/*
+					 * use regular expression to match all classes in the given package
+					 * excluding classes in sub package and inner class
+					 */
+					Pattern p = Pattern.compile(packagePath + "/" + "[^/$]+.class");
+					Enumeration<JarEntry> e = jarFile.entries();
+					while (e.hasMoreElements()) {
+						String entryName = e.nextElement().getName();
+						if (p.matcher(entryName).matches()) {
+							names.add(entryName.substring(0, entryName.indexOf(".class")).replace('/', '.'));
+						}
+					}
+				}
+				finally {
+					jarFile.close();
+				}
+			} else {
+				File dir = new File(url.getFile());
+				if (dir.exists() && dir.isDirectory()) {
+					for (File f : dir.listFiles()) {
+						// get all class files excluding the inner class
+						if (f.isFile() && f.getName().endsWith(".class") && !f.getName().contains("$")) {
+							names.add(packageName + "." + f.getName().substring(0, f.getName().indexOf(".class")));
+						}
+					}
+				}
+			}
+		}
+		return new ArrayList<String>(names);
+	}
+	
+	/**
+	 * Generate the index while building the module, it is bound to the "process-classes" phase of
+	 * the api project. <br/>
+	 * <br/>
+	 * Arguments: the output directory, the OpenMRS version the module is compiled against and
+	 * optionally a comma separated list of packages (default "org.openmrs").
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			throw new IllegalArgumentException("Usage: AliasIndex <outputDirectory> <openmrsVersion> [packages]");
+		}
+		List<String> packageNames = Arrays.asList((args.length > 2 ? args[2] : "org.openmrs").split(","));
+		ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		List<String> classNames = new ArrayList<String>();
+		for (String packageName : packageNames) {
+			classNames.addAll(scanClassNames(classLoader, packageName));
+		}
+		
+		File output = new File(args[0], RESOURCE_NAME);
+		output.getParentFile().mkdirs();
+		Writer out = new OutputStreamWriter(new FileOutputStream(output), "UTF-8");
+		try {
+			new AliasIndex(args[1], packageNames, classNames).write(out);
+		}
+		finally {
+			out.close();
+		}
+	}
+}
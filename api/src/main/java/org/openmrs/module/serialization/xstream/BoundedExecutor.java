@@ -0,0 +1,183 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.util.OpenmrsClassLoader;
+
+/**
+ * Runs the asynchronous calls of the serializers on an executor, with a limit on the number of
+ * calls submitted and not finished yet. When the limit is reached, submitting blocks the caller
+ * until a call finishes, so that a burst of work slows the callers down instead of piling up in a
+ * queue. <br/>
+ * <br/>
+ * The default instance runs on virtual threads when the Java runtime provides them, and on a
+ * fixed pool of {@link #THREADS_PROPERTY} daemon threads (the number of processors by default)
+ * otherwise. At most {@link #MAX_IN_FLIGHT_PROPERTY} calls (64 by default) are in flight. The
+ * calls always run with the OpenMRS class loader as their context class loader.
+ *
+ * @see XStreamSerializer#serializeAsync(Object)
+ * @see XStreamSerializer#deserializeAsync(String, Class)
+ */
+public class BoundedExecutor {
+	
+	public static final String THREADS_PROPERTY = "serialization.xstream.async.threads";
+	
+	public static final String MAX_IN_FLIGHT_PROPERTY = "serialization.xstream.async.max.in.flight";
+	
+	private static final int DEFAULT_MAX_IN_FLIGHT = 64;
+	
+	private static Log log = LogFactory.getLog(BoundedExecutor.class);
+	
+	private static volatile BoundedExecutor defaultExecutor = null;
+	
+	private final Executor executor;
+	
+	private final Semaphore inFlight;
+	
+	private final int maxInFlight;
+	
+	/**
+	 * @param executor - the executor running the calls
+	 * @param maxInFlight - the maximum number of calls submitted and not finished yet
+	 */
+	public BoundedExecutor(Executor executor, int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("Invalid maximum number of calls in flight " + maxInFlight);
+		}
+		this.executor = executor;
+		this.inFlight = new Semaphore(maxInFlight);
+		this.maxInFlight = maxInFlight;
+	}
+	
+	/**
+	 * Get the executor configured by the runtime properties, it is created the first time it is
+	 * needed
+	 *
+	 * @return the default executor
+	 */
+	public static BoundedExecutor getDefault() {
+		BoundedExecutor executor = defaultExecutor;
+		if (executor == null) {
+			synchronized (BoundedExecutor.class) {
+				executor = defaultExecutor;
+				if (executor == null) {
+					executor = new BoundedExecutor(newExecutor(RuntimeProperties.getInt(THREADS_PROPERTY, Runtime
+					        .getRuntime().availableProcessors())), RuntimeProperties.getInt(MAX_IN_FLIGHT_PROPERTY,
+					    DEFAULT_MAX_IN_FLIGHT));
+					defaultExecutor = executor;
+				}
+			}
+		}
+		return executor;
+	}
+	
+	/**
+	 * Run the given call, waiting first for a call in flight to finish if the limit is reached
+	 *
+	 * @param call - the call to run
+	 * @return the future result of the call, which fails with the exception thrown by the call, or
+	 *         with an InterruptedException if the caller was interrupted while waiting
+	 */
+	public <T> CompletableFuture<T> submit(final Callable<T> call) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			inFlight.acquire();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.completeExceptionally(e);
+			return future;
+		}
+		try {
+			executor.execute(new Runnable() {
+				
+				public void run() {
+					Thread thread = Thread.currentThread();
+					ClassLoader classLoader = thread.getContextClassLoader();
+					thread.setContextClassLoader(OpenmrsClassLoader.getInstance());
+					try {
+						future.complete(call.call());
+					}
+					catch (Throwable t) {
+						future.completeExceptionally(t);
+					}
+					finally {
+						thread.setContextClassLoader(classLoader);
+						inFlight.release();
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			inFlight.release();
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+	
+	/**
+	 * @return the maximum number of calls submitted and not finished yet
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+	
+	/**
+	 * @return the number of calls submitted and not finished yet
+	 */
+	public int getInFlight() {
+		return maxInFlight - inFlight.availablePermits();
+	}
+	
+	/**
+	 * Create an executor running each call on its own virtual thread, or a pool of daemon threads
+	 * if the runtime has no virtual threads
+	 *
+	 * @param threads - the number of threads of the pool
+	 */
+	private static ExecutorService newExecutor(int threads) {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		}
+		catch (NoSuchMethodException e) {
+			log.debug("Virtual threads are not available, using a pool of " + threads + " threads");
+		}
+		catch (Exception e) {
+			log.warn("Unable to create an executor using virtual threads, using a pool of " + threads + " threads", e);
+		}
+		final AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "serialization-xstream-async-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
@@ -1,19 +1,32 @@
 package org.openmrs.module.serialization.xstream;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.BaseModuleActivator;
+import org.openmrs.serialization.OpenmrsSerializer;
 
 public class ModuleActivator extends BaseModuleActivator {
 
 	private Log log = LogFactory.getLog(this.getClass());
-	
+
 	/**
 	 * @see org.openmrs.module.ModuleActivator#started()
 	 */
 	@Override
 	public void started() {
 		log.info("Started Serialization XStream Module ...");
+		try {
+			startWarmUp();
+		}
+		catch (Exception e) {
+			log.warn("Unable to start the serialization warm-up", e);
+		}
 	}
 
 	/**
@@ -23,4 +36,28 @@ public class ModuleActivator extends BaseModuleActivator {
 	public void stopped() {
 		log.info("Stopped Serialization XStream Module ...");
 	}
+
+	/**
+	 * Warm up the serializers in the background if it is enabled by
+	 * {@link SerializerWarmUp#GP_ENABLED}, which is off by default, the settings and the
+	 * serializers are looked up here because the background thread has no session
+	 *
+	 * @see SerializerWarmUp
+	 */
+	private void startWarmUp() {
+		AdministrationService as = Context.getAdministrationService();
+		if (!Boolean.valueOf(as.getGlobalProperty(SerializerWarmUp.GP_ENABLED, "false"))) {
+			return;
+		}
+		List<String> typeNames = SerializerWarmUp.parseTypeNames(as.getGlobalProperty(SerializerWarmUp.GP_TYPES));
+
+		List<XStreamSerializer> serializers = new ArrayList<XStreamSerializer>();
+		for (Class<? extends OpenmrsSerializer> c : Arrays.asList(XStreamSerializer.class, XStreamShortSerializer.class)) {
+			OpenmrsSerializer serializer = Context.getSerializationService().getSerializer(c);
+			if (serializer instanceof XStreamSerializer) {
+				serializers.add((XStreamSerializer) serializer);
+			}
+		}
+		new SerializerWarmUp(serializers, typeNames).start();
+	}
 }
@@ -0,0 +1,83 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream;
+
+import org.openmrs.module.serialization.xstream.strategy.CustomReferenceByIdMarshallingStrategy;
+import org.openmrs.module.serialization.xstream.strategy.CustomTreeMarshallingStrategy;
+
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * How a {@link XStreamSerializer} writes an object which is held by several others. <br/>
+ * <br/>
+ * Unless a serializer is configured with another mode, for example
+ * <code>serializer.configure(ReferenceMode.TREE)</code>, the mode is taken from the runtime property
+ * {@link #RUNTIME_PROPERTY}, for example "serialization.xstream.references=TREE", and is {@link #ID}
+ * if that property is not set. The documents of every mode are read by every serializer, the root
+ * of a document written without ids being marked with
+ * {@link org.openmrs.module.serialization.xstream.strategy.CustomReferenceByIdMarshaller#ROOT_ATTRIBUTE}
+ * so that a short serializer doesn't read it as a reference to a uuid.
+ */
+public enum ReferenceMode implements XStreamCustomizer {
+	
+	/**
+	 * Every object is given an "id" attribute, and is written as a reference to that id the next
+	 * times it is met
+	 */
+	ID {
+		
+		@Override
+		public void customize(XStream xstream) {
+			xstream.setMarshallingStrategy(new CustomReferenceByIdMarshallingStrategy());
+		}
+	},
+	
+	/**
+	 * No ids are written, which is smaller and faster for payloads which are trees. A document in
+	 * which an object is held by several others, or holds itself, is written as in {@link #ID} mode
+	 * instead. Each document is recorded in memory before it is written, see
+	 * {@link CustomTreeMarshallingStrategy}
+	 */
+	TREE {
+		
+		@Override
+		public void customize(XStream xstream) {
+			xstream.setMarshallingStrategy(new CustomTreeMarshallingStrategy(false));
+		}
+	},
+	
+	/**
+	 * As {@link #TREE}, but an object held by several others, or holding itself, makes the
+	 * serialization fail instead. The documents are written directly without being recorded first.
+	 * An object which a short serializer writes as its uuid may be held by several others
+	 */
+	STRICT_TREE {
+		
+		@Override
+		public void customize(XStream xstream) {
+			xstream.setMarshallingStrategy(new CustomTreeMarshallingStrategy(true));
+		}
+	};
+	
+	public static final String RUNTIME_PROPERTY = "serialization.xstream.references";
+	
+	/**
+	 * Get the mode configured by the runtime property {@link #RUNTIME_PROPERTY}
+	 * 
+	 * @return the configured mode, or {@link #ID} if there is none
+	 */
+	public static ReferenceMode getDefault() {
+		return RuntimeProperties.getEnum(ReferenceMode.class, RUNTIME_PROPERTY, ID);
+	}
+}
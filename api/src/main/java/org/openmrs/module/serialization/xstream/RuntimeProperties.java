@@ -0,0 +1,108 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream;
+
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+
+/**
+ * Reads the runtime properties which tune this module. A blank or missing property gives the
+ * default value, and so does an invalid one, after a warning, so that a typo never prevents
+ * OpenMRS from starting.
+ */
+public class RuntimeProperties {
+	
+	private static Log log = LogFactory.getLog(RuntimeProperties.class);
+	
+	private RuntimeProperties() {
+	}
+	
+	/**
+	 * Get a number from the runtime properties
+	 *
+	 * @param name - the name of the property
+	 * @param defaultValue - the value used when the property isn't set to a number
+	 * @return the value of the property
+	 */
+	public static int getInt(String name, int defaultValue) {
+		String value = getValue(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		}
+		catch (NumberFormatException e) {
+			log.warn("Invalid value '" + value + "' for the runtime property " + name + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * Get a constant of the given enum from the runtime properties, by its name in any case
+	 *
+	 * @param type - the enum
+	 * @param name - the name of the property
+	 * @param defaultValue - the constant used when the property doesn't name one
+	 * @return the constant named by the property
+	 */
+	public static <E extends Enum<E>> E getEnum(Class<E> type, String name, E defaultValue) {
+		String value = getValue(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Enum.valueOf(type, value.toUpperCase());
+		}
+		catch (IllegalArgumentException e) {
+			log.warn("Unknown " + type.getSimpleName() + " '" + value + "' in the runtime property " + name + ", using "
+			        + defaultValue);
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * Get a flag from the runtime properties, "true" or "false" in any case
+	 *
+	 * @param name - the name of the property
+	 * @param defaultValue - the value used when the property isn't set to "true" or "false"
+	 * @return the value of the property
+	 */
+	public static boolean getBoolean(String name, boolean defaultValue) {
+		String value = getValue(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		if ("true".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value)) {
+			return Boolean.parseBoolean(value);
+		}
+		log.warn("Invalid value '" + value + "' for the runtime property " + name + ", using " + defaultValue);
+		return defaultValue;
+	}
+	
+	/**
+	 * @return the trimmed value of the runtime property, or null if it isn't set or is blank
+	 */
+	private static String getValue(String name) {
+		Properties properties = Context.getRuntimeProperties();
+		String value = properties == null ? null : properties.getProperty(name);
+		if (value == null || value.trim().length() == 0) {
+			return null;
+		}
+		return value.trim();
+	}
+}
@@ -0,0 +1,147 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.util.OpenmrsClassLoader;
+
+/**
+ * Serializes and deserializes a new, empty instance of each configured "hot" type, so that the
+ * reflection field discovery, the converter lookup cache and the proxy checks of the mappers are
+ * done before the first real request instead of during it. <br/>
+ * <br/>
+ * Each object goes through the same driver, profile and Base64 encoding as the documents of its
+ * serializer. Only transient objects are used, nothing is read from or written to the database, and
+ * the authentication check of {@link XStreamSerializer#deserialize(String, Class)} is bypassed, as
+ * the warm-up runs without a session. <br/>
+ * <br/>
+ * Only the xstream objects the serializers have while the warm-up runs are warmed up. A serializer
+ * changed afterwards by {@link XStreamSerializer#configure(XStreamCustomizer)} builds a new xstream
+ * object, whose caches fill up again during its first calls, only the aliases are shared.
+ *
+ * @see ModuleActivator#started()
+ */
+public class SerializerWarmUp implements Runnable {
+	
+	/**
+	 * the global property which turns the warm-up on, it is off by default
+	 */
+	public static final String GP_ENABLED = "serialization.xstream.warmup.enabled";
+	
+	/**
+	 * the global property listing the fully qualified names of the hot types, separated by commas
+	 */
+	public static final String GP_TYPES = "serialization.xstream.warmup.types";
+	
+	public static final String DEFAULT_TYPES = "org.openmrs.Patient,org.openmrs.Person,org.openmrs.Concept,"
+	        + "org.openmrs.Encounter,org.openmrs.Obs,org.openmrs.Location,org.openmrs.User";
+	
+	private static Log log = LogFactory.getLog(SerializerWarmUp.class);
+	
+	private final List<XStreamSerializer> serializers;
+	
+	private final List<String> typeNames;
+	
+	/**
+	 * @param serializers - the serializers to warm up
+	 * @param typeNames - the fully qualified names of the types to warm up
+	 */
+	public SerializerWarmUp(List<XStreamSerializer> serializers, List<String> typeNames) {
+		this.serializers = new ArrayList<XStreamSerializer>(serializers);
+		this.typeNames = new ArrayList<String>(typeNames);
+	}
+	
+	/**
+	 * Split the value of {@link #GP_TYPES} into type names
+	 *
+	 * @param types - a comma separated list of class names, the default list is used if it is blank
+	 * @return the type names
+	 */
+	public static List<String> parseTypeNames(String types) {
+		if (types == null || types.trim().length() == 0) {
+			types = DEFAULT_TYPES;
+		}
+		List<String> typeNames = new ArrayList<String>();
+		for (String typeName : types.split(",")) {
+			if (typeName.trim().length() > 0) {
+				typeNames.add(typeName.trim());
+			}
+		}
+		return typeNames;
+	}
+	
+	/**
+	 * Run the warm-up in a daemon thread, so that it doesn't delay the start of OpenMRS
+	 *
+	 * @return the started thread
+	 */
+	public Thread start() {
+		Thread thread = new Thread(this, "serialization-xstream-warmup");
+		thread.setDaemon(true);
+		thread.setContextClassLoader(OpenmrsClassLoader.getInstance());
+		thread.start();
+		return thread;
+	}
+	
+	/**
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		long start = System.currentTimeMillis();
+		int warmedUp = 0;
+		for (String typeName : typeNames) {
+			Object instance = newInstance(typeName);
+			if (instance == null) {
+				continue;
+			}
+			try {
+				for (XStreamSerializer serializer : serializers) {
+					serializer.roundTrip(instance);
+				}
+				warmedUp++;
+			}
+			catch (Exception e) {
+				// the warm-up must never get in the way, the type will just be slower the first time
+				log.debug("Unable to warm up the serialization of " + typeName, e);
+			}
+		}
+		log.info("Warmed up the serialization of " + warmedUp + " of " + typeNames.size() + " types in "
+		        + (System.currentTimeMillis() - start) + " ms");
+	}
+	
+	/**
+	 * Create a new, transient instance of the given type
+	 *
+	 * @return the instance, or null if the type can't be instantiated
+	 */
+	private Object newInstance(String typeName) {
+		try {
+			Class<?> type = OpenmrsClassLoader.getInstance().loadClass(typeName);
+			if (type.isInterface() || Modifier.isAbstract(type.getModifiers())) {
+				log.warn("Skipping the warm-up of " + typeName + ", it can't be instantiated");
+				return null;
+			}
+			return type.newInstance();
+		}
+		catch (Exception e) {
+			log.warn("Skipping the warm-up of " + typeName + ": " + e.getMessage());
+			return null;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream;
+
+import org.openmrs.module.serialization.xstream.io.UndeclaredStaxDriver;
+
+import com.thoughtworks.xstream.io.HierarchicalStreamDriver;
+import com.thoughtworks.xstream.io.binary.BinaryStreamDriver;
+import com.thoughtworks.xstream.io.xml.XppDriver;
+
+/**
+ * The parsers and writers a {@link XStreamSerializer} can use, the serializer reads and writes
+ * every document through the driver created by its type. <br/>
+ * <br/>
+ * Unless a type is passed to the constructor of the serializer, it is taken from the runtime
+ * property {@link #RUNTIME_PROPERTY}, for example "serialization.xstream.driver=STAX", and is
+ * {@link #XPP3} if that property is not set.
+ */
+public enum StreamDriverType {
+	
+	/**
+	 * The XPP3 pull parser, which is the default driver of xstream
+	 */
+	XPP3 {
+		
+		@Override
+		public HierarchicalStreamDriver createDriver() {
+			return new XppDriver();
+		}
+	},
+	
+	/**
+	 * The StAX parser of the JRE, its writers don't write an xml declaration either
+	 */
+	STAX {
+		
+		@Override
+		public HierarchicalStreamDriver createDriver() {
+			return new UndeclaredStaxDriver();
+		}
+	},
+	
+	/**
+	 * The binary format of xstream, which writes the same tree of nodes without any text escaping
+	 * and with each node name written once. It is meant for the transfers between OpenMRS nodes,
+	 * the documents can only be read and written as bytes, or as Base64 through the String API of
+	 * the serializer
+	 */
+	BINARY {
+		
+		@Override
+		public HierarchicalStreamDriver createDriver() {
+			return new BinaryStreamDriver();
+		}
+		
+		@Override
+		public boolean isBinary() {
+			return true;
+		}
+	};
+	
+	public static final String RUNTIME_PROPERTY = "serialization.xstream.driver";
+	
+	/**
+	 * @return a new driver of this type
+	 */
+	public abstract HierarchicalStreamDriver createDriver();
+	
+	/**
+	 * @return true if the documents of this type are not text
+	 */
+	public boolean isBinary() {
+		return false;
+	}
+	
+	/**
+	 * Get the type configured by the runtime property {@link #RUNTIME_PROPERTY}
+	 * 
+	 * @return the configured type, or {@link #XPP3} if there is none
+	 */
+	public static StreamDriverType getDefault() {
+		return RuntimeProperties.getEnum(StreamDriverType.class, RUNTIME_PROPERTY, XPP3);
+	}
+}
@@ -0,0 +1,268 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.openmrs.Concept;
+import org.openmrs.EncounterType;
+import org.openmrs.FieldType;
+import org.openmrs.Form;
+import org.openmrs.Location;
+import org.openmrs.OpenmrsObject;
+import org.openmrs.OrderType;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.Person;
+import org.openmrs.PersonAttributeType;
+import org.openmrs.Program;
+import org.openmrs.ProgramWorkflow;
+import org.openmrs.ProgramWorkflowState;
+import org.openmrs.RelationshipType;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.serialization.xstream.converter.BaseShortConverter;
+
+import com.thoughtworks.xstream.XStreamException;
+import com.thoughtworks.xstream.converters.reflection.ReflectionProvider;
+import com.thoughtworks.xstream.core.util.HierarchicalStreams;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.mapper.Mapper;
+
+/**
+ * Looks up the objects a short serialized document refers to by uuid before the document is
+ * deserialized, with one "uuid in (...)" query per type and batch of {@link #BATCH_SIZE} uuids
+ * instead of one service call per uuid. The objects found are handed to the short converters,
+ * which only look up the uuids left over one at a time as before. <br/>
+ * <br/>
+ * A uuid is only unique within its table, so each reference is collected with the type the
+ * document expects for it, which is found through the mapper as xstream finds it when reading:
+ * the "class" attribute, the type of the field the element is written for, or the class the
+ * element name is an alias of. The uuids are then only looked up in the table of that type, and
+ * the objects found are kept under {@link #keyOf(Class, String)}. A type is skipped when the
+ * authenticated user lacks the privilege the service would require to get it, its objects are then
+ * looked up through the service. <br/>
+ * <br/>
+ * It is used when the runtime property {@link #RUNTIME_PROPERTY} is "true", or when it is turned
+ * on by {@link XStreamShortSerializer#setBatchUuidResolution(boolean)}.
+ */
+public class UuidBatchResolver {
+	
+	public static final String RUNTIME_PROPERTY = "serialization.xstream.short.batch.uuids";
+	
+	public static final int BATCH_SIZE = 500;
+	
+	private static Log log = LogFactory.getLog(UuidBatchResolver.class);
+	
+	/*
+	 * the types written as uuids by the short converters, subclasses before their superclasses
+	 */
+	private static final ShortType[] SHORT_TYPES = { new ShortType(Patient.class, "Get Patients"),
+	        new ShortType(Person.class, "Get People"), new ShortType(User.class, "Get Users"),
+	        new ShortType(Concept.class, "Get Concepts"), new ShortType(Location.class, "Get Locations"),
+	        new ShortType(EncounterType.class, "Get Encounter Types"), new ShortType(Form.class, "Get Forms"),
+	        new ShortType(FieldType.class, "Get Field Types"), new ShortType(OrderType.class, "Get Order Types"),
+	        new ShortType(PatientIdentifierType.class, "Get Identifier Types"),
+	        new ShortType(PersonAttributeType.class, "Get Person Attribute Types"),
+	        new ShortType(RelationshipType.class, "Get Relationship Types"), new ShortType(Program.class, "Get Programs"),
+	        new ShortType(ProgramWorkflow.class, "Get Programs"), new ShortType(ProgramWorkflowState.class, "Get Programs") };
+	
+	private final Mapper mapper;
+	
+	private final ReflectionProvider reflectionProvider;
+	
+	/**
+	 * @param mapper - the mapper of the xstream object reading the documents
+	 * @param reflectionProvider - the reflection provider of that xstream object
+	 */
+	public UuidBatchResolver(Mapper mapper, ReflectionProvider reflectionProvider) {
+		this.mapper = mapper;
+		this.reflectionProvider = reflectionProvider;
+	}
+	
+	/**
+	 * @return whether the runtime property {@link #RUNTIME_PROPERTY} turns the batches on
+	 */
+	public static boolean isEnabled() {
+		return RuntimeProperties.getBoolean(RUNTIME_PROPERTY, false);
+	}
+	
+	/**
+	 * The key of an object looked up by uuid in the unmarshalling context
+	 * 
+	 * @param type - the type the document expects, as given by
+	 *            {@link com.thoughtworks.xstream.converters.UnmarshallingContext#getRequiredType()}
+	 * @param uuid - the uuid of the object
+	 * @return the key, which differs for the same uuid in two tables
+	 */
+	public static String keyOf(Class<?> type, String uuid) {
+		return type.getName() + ":" + uuid;
+	}
+	
+	/**
+	 * Collect the uuids of the references of a document, that is the elements which have a "uuid"
+	 * attribute and no children, except the roots of the document or of the records of a session.
+	 * The references whose type can't be told or isn't written as a uuid are left out
+	 * 
+	 * @param reader - the reader of the document, positioned on the root element
+	 * @return the uuids by the type the document expects, in the order they are first met
+	 * @see org.openmrs.module.serialization.xstream.converter.BaseShortConverter#unmarshal(HierarchicalStreamReader,
+	 *      com.thoughtworks.xstream.converters.UnmarshallingContext)
+	 */
+	public Map<Class<?>, Set<String>> collectReferences(HierarchicalStreamReader reader) {
+		Map<Class<?>, Set<String>> references = new LinkedHashMap<Class<?>, Set<String>>();
+		try {
+			collect(reader, typeOf(reader, null), references);
+		}
+		finally {
+			reader.close();
+		}
+		return references;
+	}
+	
+	private void collect(HierarchicalStreamReader reader, Class<?> type, Map<Class<?>, Set<String>> references) {
+		if (BaseShortConverter.isUuidReference(reader) && !reader.hasMoreChildren()) {
+			if (type != null && shortTypeOf(type) != null) {
+				Set<String> uuids = references.get(type);
+				if (uuids == null) {
+					uuids = new LinkedHashSet<String>();
+					references.put(type, uuids);
+				}
+				uuids.add(reader.getAttribute("uuid"));
+			}
+			return;
+		}
+		while (reader.hasMoreChildren()) {
+			reader.moveDown();
+			collect(reader, typeOf(reader, type), references);
+			reader.moveUp();
+		}
+	}
+	
+	/**
+	 * Tell the type xstream will require for the current element, as the reflection and collection
+	 * converters do
+	 * 
+	 * @param parentType - the type of the enclosing element, or null for the root
+	 * @return the type, or null if it can't be told
+	 */
+	private Class<?> typeOf(HierarchicalStreamReader reader, Class<?> parentType) {
+		try {
+			String classAttribute = HierarchicalStreams.readClassAttribute(reader, mapper);
+			if (classAttribute != null) {
+				return mapper.defaultImplementationOf(mapper.realClass(classAttribute));
+			}
+			if (parentType != null && !Collection.class.isAssignableFrom(parentType)
+			        && !Map.class.isAssignableFrom(parentType) && !parentType.isArray()) {
+				String fieldName = mapper.realMember(parentType, reader.getNodeName());
+				Mapper.ImplicitCollectionMapping implicit = mapper.getImplicitCollectionDefForFieldName(parentType,
+				    fieldName);
+				if (implicit != null && implicit.getItemType() != null) {
+					return mapper.defaultImplementationOf(implicit.getItemType());
+				}
+				if (implicit == null && reflectionProvider.fieldDefinedInClass(fieldName, parentType)) {
+					return mapper.defaultImplementationOf(reflectionProvider.getField(parentType, fieldName).getType());
+				}
+			}
+			return mapper.defaultImplementationOf(mapper.realClass(reader.getNodeName()));
+		}
+		catch (XStreamException e) {
+			// an element no class is known for, such as the entry of a map
+			return null;
+		}
+	}
+	
+	/**
+	 * Look up the objects with the given uuids, each uuid is only looked up in the table of the type
+	 * it is given with
+	 * 
+	 * @param references - the uuids by the type the document expects
+	 * @return the objects found, by {@link #keyOf(Class, String)}, a uuid which isn't found has no
+	 *         entry
+	 */
+	public Map<String, Object> resolve(Map<Class<?>, Set<String>> references) {
+		Map<String, Object> resolved = new HashMap<String, Object>();
+		if (references.isEmpty()) {
+			return resolved;
+		}
+		Session session = Context.getRegisteredComponent("sessionFactory", SessionFactory.class).getCurrentSession();
+		int queries = 0;
+		int uuidCount = 0;
+		for (Map.Entry<Class<?>, Set<String>> entry : references.entrySet()) {
+			Class<?> type = entry.getKey();
+			List<String> uuids = new ArrayList<String>(entry.getValue());
+			uuidCount += uuids.size();
+			ShortType shortType = shortTypeOf(type);
+			if (shortType == null || !Context.hasPrivilege(shortType.privilege)) {
+				continue;
+			}
+			for (int from = 0; from < uuids.size(); from += BATCH_SIZE) {
+				List<String> batch = uuids.subList(from, Math.min(from + BATCH_SIZE, uuids.size()));
+				List<?> found = session.createQuery("from " + shortType.type.getName() + " where uuid in (:uuids)")
+				        .setParameterList("uuids", batch).list();
+				queries++;
+				for (Object o : found) {
+					// the table of a superclass holds the objects of the other subclasses too
+					if (type.isInstance(o)) {
+						resolved.put(keyOf(type, ((OpenmrsObject) o).getUuid()), o);
+					}
+				}
+			}
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Resolved " + resolved.size() + " of " + uuidCount + " uuids with " + queries + " queries");
+		}
+		return resolved;
+	}
+	
+	/**
+	 * @return the short type the objects of the given type are looked up as, or null if they are
+	 *         not written as uuids
+	 */
+	private static ShortType shortTypeOf(Class<?> type) {
+		for (ShortType shortType : SHORT_TYPES) {
+			if (shortType.type.isAssignableFrom(type)) {
+				return shortType;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * A type written as uuids by the short converters, with the privilege the service requires to
+	 * get its objects
+	 */
+	private static class ShortType {
+		
+		private final Class<?> type;
+		
+		private final String privilege;
+		
+		ShortType(Class<?> type, String privilege) {
+			this.type = type;
+			this.privilege = privilege;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream;
+
+import org.openmrs.module.serialization.xstream.io.CompactDriver;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.HierarchicalStreamDriver;
+
+/**
+ * How much a {@link XStreamSerializer} trades readability for size. <br/>
+ * <br/>
+ * Unless a profile is passed to the constructor of the serializer, it is taken from the runtime
+ * property {@link #RUNTIME_PROPERTY}, for example "serialization.xstream.profile=COMPACT", and is
+ * {@link #DEFAULT} if that property is not set.
+ */
+public enum WireProfile {
+	
+	/**
+	 * Indented xml, only uuid, voided and retired are written as attributes
+	 */
+	DEFAULT,
+	
+	/**
+	 * Xml without any whitespace between the elements, and every field holding a number, a
+	 * boolean or a character is written as an attribute instead of a nested element. Strings stay
+	 * elements because line breaks in attributes are not kept by xml parsers, and so do dates
+	 * because an attribute can't tell a timestamp from a date. A field named like an attribute of
+	 * xstream (id, reference, class or resolves-to) stays an element too, though only for the
+	 * xstream objects built by the serializer, a custom one has no way of excluding it. A
+	 * compact serializer reads the documents of both profiles, but a default one ignores the
+	 * promoted attributes, so both ends of a transfer have to use this profile.
+	 */
+	COMPACT {
+		
+		@Override
+		public HierarchicalStreamDriver wrap(HierarchicalStreamDriver driver, StreamDriverType driverType) {
+			// binary documents have no whitespace anyway
+			return driverType.isBinary() ? driver : new CompactDriver(driver);
+		}
+		
+		@Override
+		public void applyTo(XStream xstream) {
+			for (Class<?> type : ATTRIBUTE_TYPES) {
+				xstream.useAttributeFor(type);
+			}
+		}
+	};
+	
+	public static final String RUNTIME_PROPERTY = "serialization.xstream.profile";
+	
+	/*
+	 * the types written as attributes by the compact profile, they all have a single value converter
+	 * and are final, so the attribute never has to name the class of its value
+	 */
+	private static final Class<?>[] ATTRIBUTE_TYPES = { Integer.class, int.class, Long.class, long.class, Short.class,
+	        short.class, Byte.class, byte.class, Double.class, double.class, Float.class, float.class, Boolean.class,
+	        boolean.class, Character.class, char.class };
+	
+	/**
+	 * Wrap the driver created for the given type, so that its writers follow this profile
+	 * 
+	 * @param driver - the driver of the serializer
+	 * @param driverType - the type of that driver
+	 * @return the driver to use
+	 */
+	public HierarchicalStreamDriver wrap(HierarchicalStreamDriver driver, StreamDriverType driverType) {
+		return driver;
+	}
+	
+	/**
+	 * Configure the given xstream object for this profile
+	 * 
+	 * @param xstream - the xstream object of the serializer
+	 */
+	public void applyTo(XStream xstream) {
+	}
+	
+	/**
+	 * Get the profile configured by the runtime property {@link #RUNTIME_PROPERTY}
+	 * 
+	 * @return the configured profile, or {@link #DEFAULT} if there is none
+	 */
+	public static WireProfile getDefault() {
+		return RuntimeProperties.getEnum(WireProfile.class, RUNTIME_PROPERTY, DEFAULT);
+	}
+}
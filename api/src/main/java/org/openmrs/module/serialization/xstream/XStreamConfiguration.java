@@ -0,0 +1,375 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.BaseOpenmrsData;
+import org.openmrs.BaseOpenmrsMetadata;
+import org.openmrs.BaseOpenmrsObject;
+import org.openmrs.Concept;
+import org.openmrs.ConceptName;
+import org.openmrs.ConceptNameTag;
+import org.openmrs.Person;
+import org.openmrs.User;
+import org.openmrs.module.serialization.xstream.converter.CustomCGLIBEnhancedConverter;
+import org.openmrs.module.serialization.xstream.converter.CustomJavassistEnhancedConverter;
+import org.openmrs.module.serialization.xstream.converter.CustomReflectionConverter;
+import org.openmrs.module.serialization.xstream.converter.CustomSQLTimestampConverter;
+import org.openmrs.module.serialization.xstream.converter.UserConverter;
+import org.openmrs.module.serialization.xstream.mapper.CGLibMapper;
+import org.openmrs.module.serialization.xstream.mapper.HibernateCollectionMapper;
+import org.openmrs.module.serialization.xstream.mapper.JavassistMapper;
+import org.openmrs.module.serialization.xstream.mapper.LazyAliasMapper;
+import org.openmrs.module.serialization.xstream.mapper.NullValueMapper;
+import org.openmrs.module.serialization.xstream.mapper.SystemAttributeMapper;
+import org.openmrs.module.serialization.xstream.strategy.CustomReferenceByIdMarshallingStrategy;
+import org.openmrs.serialization.SerializationException;
+import org.openmrs.util.OpenmrsClassLoader;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.XStreamException;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.SingleValueConverter;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.converters.basic.DateConverter;
+import com.thoughtworks.xstream.converters.extended.DynamicProxyConverter;
+import com.thoughtworks.xstream.io.HierarchicalStreamDriver;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.mapper.MapperWrapper;
+
+/**
+ * The configuration shared by every {@link XStreamSerializer} and {@link XStreamShortSerializer}:
+ * the serialized packages and their aliases, the fields written as attributes, the omitted fields
+ * and the converters which don't depend on a particular xstream object. <br/>
+ * <br/>
+ * It is built once per {@link OpenmrsClassLoader} (so it is rebuilt when modules are refreshed)
+ * and never changes afterwards. An xstream object can't be copied, so each serializer still gets
+ * its own, but it is created from this snapshot through
+ * {@link #newXStream(HierarchicalStreamDriver)} or {@link #applyTo(XStream)} without scanning the
+ * classpath, reading the alias index or aliasing any class again.
+ */
+public class XStreamConfiguration {
+	
+	private static Log log = LogFactory.getLog(XStreamConfiguration.class);
+	
+	private static volatile XStreamConfiguration instance = null;
+	
+	private final ClassLoader classLoader;
+	
+	private final List<String> packageNames;
+	
+	private final List<String> indexedClassNames;
+	
+	private final LazyAliasMapper.AliasCache aliases;
+	
+	/*
+	 * the classes aliased eagerly for custom xstream objects, loaded the first time they are needed
+	 */
+	private volatile List<Class<?>> serializedClasses = null;
+	
+	/*
+	 * converters without any reference to an xstream object, they are registered with all of them
+	 */
+	private final SingleValueConverter timestampConverter = new CustomSQLTimestampConverter();
+	
+	private final SingleValueConverter dateConverter = new DateConverter("yyyy-MM-dd HH:mm:ss z", new String[] {
+	        "yyyy-MM-dd HH:mm:ss.S z", "yyyy-MM-dd HH:mm:ssz", "yyyy-MM-dd HH:mm:ss.S a", "yyyy-MM-dd HH:mm:ssa" });
+	
+	private final CustomDynamicProxyConverter dynamicProxyConverter = new CustomDynamicProxyConverter();
+	
+	private XStreamConfiguration(ClassLoader classLoader) {
+		this.classLoader = classLoader;
+		List<String> packages = new ArrayList<String>();
+		packages.add("org.openmrs");// do serialization/deserialization for all classes in package "org.openmrs"
+		// here can add new packages which in a specified package need to be serialized
+		this.packageNames = Collections.unmodifiableList(packages);
+		this.indexedClassNames = readIndexedClassNames();
+		this.aliases = new LazyAliasMapper.AliasCache(packageNames, indexedClassNames);
+	}
+	
+	/**
+	 * Get the configuration of the current {@link OpenmrsClassLoader}, it is built the first time
+	 * this is called after the class loader has been (re)created
+	 *
+	 * @return the shared configuration
+	 */
+	public static XStreamConfiguration getInstance() {
+		ClassLoader classLoader = OpenmrsClassLoader.getInstance();
+		XStreamConfiguration configuration = instance;
+		if (configuration == null || configuration.classLoader != classLoader) {
+			synchronized (XStreamConfiguration.class) {
+				configuration = instance;
+				if (configuration == null || configuration.classLoader != classLoader) {
+					configuration = new XStreamConfiguration(classLoader);
+					instance = configuration;
+				}
+			}
+		}
+		return configuration;
+	}
+	
+	/**
+	 * Create an xstream object configured from this snapshot. <br/>
+	 * <br/>
+	 * It uses own-defined mappers to wrap xstream's default mapper, the purpose:
+	 * <ol>
+	 * <li>we can use the reasonable name for cglib and Hibernate's Collection</li>
+	 * <li>ignore unknow element while deserializing</li>
+	 * <li>alias the classes we serialize only once they are used, sharing the aliases already
+	 * computed by the other xstream objects</li>
+	 * <li>keep the fields named like the attributes of xstream out of the attributes</li>
+	 * </ol>
+	 *
+	 * @param driver - the driver of the new xstream object
+	 * @return the new xstream object
+	 * @throws SerializationException
+	 */
+	public XStream newXStream(HierarchicalStreamDriver driver) throws SerializationException {
+		final LazyAliasMapper.AliasCache sharedAliases = this.aliases;
+		XStream xstream = new XStream(driver) {
+			
+			protected MapperWrapper wrapMapper(MapperWrapper next) {
+				MapperWrapper mapper = new LazyAliasMapper(next, sharedAliases);
+				mapper = new CGLibMapper(mapper);
+				mapper = new JavassistMapper(mapper);
+				mapper = new HibernateCollectionMapper(mapper);
+				mapper = new NullValueMapper(mapper);
+				mapper = new SystemAttributeMapper(mapper);
+				//mapper = new IgnoreUnknownElementMapper(mapper);
+				return mapper;
+			}
+		};
+		applyTo(xstream);
+		return xstream;
+	}
+	
+	/**
+	 * Configure the given xstream object from this snapshot: attributes, omitted fields, aliases,
+	 * converters and the marshalling strategy
+	 *
+	 * @param xstream - a new xstream object
+	 * @throws SerializationException
+	 */
+	public void applyTo(XStream xstream) throws SerializationException {
+		// config the basic attributes
+		
+		// BaseOpenmrsObject
+		xstream.useAttributeFor(BaseOpenmrsObject.class, "uuid");
+		
+		// BaseOpenmrsData
+		xstream.useAttributeFor(BaseOpenmrsData.class, "voided");
+		
+		// BaseOpenmrsMetadata
+		xstream.useAttributeFor(BaseOpenmrsMetadata.class, "retired");
+		
+		// Other classes has voided or retired property
+		xstream.useAttributeFor(Concept.class, "retired");
+		xstream.useAttributeFor(ConceptName.class, "voided");
+		xstream.useAttributeFor(ConceptNameTag.class, "voided");
+		//xstream.useAttributeFor(ConceptSource.class, "retired");
+		
+		// In 2.x, the 'log' field in Person and User was made protected,
+		xstream.omitField(Person.class, "log");
+		xstream.omitField(User.class, "log");
+		
+		/*
+		 * alias className for all classses current need to serialize
+		 */
+		registerAliases(xstream);
+		
+		// CustomReflectionConverter to avoid the exception thrown when xstream deserialize a unknown elment
+		xstream.registerConverter(new CustomReflectionConverter(xstream.getMapper(), xstream.getReflectionProvider()),
+		    XStream.PRIORITY_LOW);
+		
+		// register this converter, so that we can let xstream serialize User.user only as its uuid
+		xstream.registerConverter(new UserConverter(xstream));
+		xstream.registerConverter(new CustomCGLIBEnhancedConverter(xstream.getMapper(), xstream.getConverterLookup()));
+		xstream.registerConverter(new CustomJavassistEnhancedConverter(xstream.getMapper(), xstream.getConverterLookup()));
+		xstream.registerConverter(timestampConverter);
+		xstream.registerConverter(dateConverter);
+		
+		xstream.registerConverter(dynamicProxyConverter, XStream.PRIORITY_VERY_HIGH);
+		// set our own defined marshalling strategy so that we can build references for cglib
+		xstream.setMarshallingStrategy(new CustomReferenceByIdMarshallingStrategy());
+	}
+	
+	/**
+	 * Alias className for all classes current need to serialize. <br/>
+	 * <br/>
+	 * When the mapper of xstream contains a {@link LazyAliasMapper} nothing is registered here, the
+	 * classes are aliased the first time they are used. Otherwise, the classes are taken from the
+	 * {@link AliasIndex} generated at build time, the classpath is only scanned when that index is
+	 * missing or stale. Either way the classes are only looked up once per class loader.
+	 *
+	 * @param xstream - the xstream object to register the aliases with
+	 * @throws SerializationException
+	 */
+	public void registerAliases(XStream xstream) throws SerializationException {
+		if (xstream.getMapper().lookupMapperOfType(LazyAliasMapper.class) != null) {
+			return;
+		}
+		for (Class<?> c : getAllSerializedClasses()) {
+			xstream.alias(aliases.aliasFor(c), c);
+		}
+	}
+	
+	/**
+	 * Get a list of package in which we will serialize all classes in it. Here we will serialize
+	 * classes as the unit of package
+	 *
+	 * @return a List of package in which we will serialize all classes in it
+	 */
+	public List<String> getPackageNames() {
+		return packageNames;
+	}
+	
+	/**
+	 * get all Classes which need serialization, they are read from the alias index if it is up to
+	 * date, otherwise the classpath is scanned for them
+	 *
+	 * @return the serialized classes
+	 * @throws SerializationException
+	 */
+	public List<Class<?>> getAllSerializedClasses() throws SerializationException {
+		List<Class<?>> classes = serializedClasses;
+		if (classes == null) {
+			synchronized (this) {
+				classes = serializedClasses;
+				if (classes == null) {
+					classes = getAllIndexedClasses();
+					if (classes == null) {
+						classes = new ArrayList<Class<?>>();
+						for (String p : packageNames) {
+							classes.addAll(getAllClassesInPackage(p));
+						}
+					}
+					classes = Collections.unmodifiableList(classes);
+					serializedClasses = classes;
+				}
+			}
+		}
+		return classes;
+	}
+	
+	/**
+	 * Get all classes in a given package
+	 *
+	 * @param packageName the given package's name
+	 * @return a list of all classes in the given package
+	 * @throws SerializationException
+	 * @see AliasIndex#scanClassNames(ClassLoader, String)
+	 */
+	private List<Class<?>> getAllClassesInPackage(String packageName) throws SerializationException {
+		List<Class<?>> list = new ArrayList<Class<?>>();
+		try {
+			for (String className : AliasIndex.scanClassNames(classLoader, packageName)) {
+				list.add(classLoader.loadClass(className));
+			}
+			return list;
+		}
+		catch (Exception e) {
+			String errMsg = "Unable to load serialized class";
+			throw new SerializationException(errMsg, e);
+		}
+	}
+	
+	/**
+	 * Get the names of all classes listed in the alias index generated while building the module
+	 *
+	 * @return the indexed class names, or null if the index is missing or stale and the classpath
+	 *         needs to be scanned instead
+	 * @see AliasIndex
+	 */
+	private List<String> readIndexedClassNames() {
+		AliasIndex index = null;
+		try {
+			index = AliasIndex.load(classLoader);
+		}
+		catch (IOException e) {
+			log.warn("Unable to read the alias index, falling back to classpath scanning", e);
+			return null;
+		}
+		if (index == null) {
+			log.debug("No alias index found, falling back to classpath scanning");
+			return null;
+		}
+		if (index.isStale(packageNames, classLoader)) {
+			log.info("The alias index generated for OpenMRS " + index.getOpenmrsVersion()
+			        + " doesn't match the running classes, falling back to classpath scanning");
+			return null;
+		}
+		return index.getClassNames();
+	}
+	
+	/**
+	 * Get all classes listed in the alias index generated while building the module
+	 *
+	 * @return the indexed classes, or null if the index is missing or stale and the classpath needs
+	 *         to be scanned instead
+	 */
+	private List<Class<?>> getAllIndexedClasses() {
+		if (indexedClassNames == null) {
+			return null;
+		}
+		List<Class<?>> list = new ArrayList<Class<?>>(indexedClassNames.size());
+		for (String className : indexedClassNames) {
+			try {
+				list.add(classLoader.loadClass(className));
+			}
+			catch (ClassNotFoundException e) {
+				log.info("The alias index lists the missing class " + className + ", falling back to classpath scanning");
+				return null;
+			}
+		}
+		return list;
+	}
+	
+	/**
+	 * An instance of this converter needs to be registered with a higher priority than the rest so
+	 * that it's called early in the converter chain. This way, we can make sure we never get to
+	 * xstream's DynamicProxyConverter that can deserialize proxies.
+	 *
+	 * @see <a href="http://tinyurl.com/ord2rry">this blog</a>
+	 */
+	private static class CustomDynamicProxyConverter extends DynamicProxyConverter {
+		
+		CustomDynamicProxyConverter() {
+			super(null);
+		}
+		
+		@Override
+		public boolean canConvert(Class type) {
+			if (type == null) {
+				return false;
+			}
+			return super.canConvert(type);
+		}
+		
+		public void marshal(Object value, HierarchicalStreamWriter writer, MarshallingContext context) {
+			throw new XStreamException("Can't serialize proxies");
+		}
+		
+		public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+			throw new XStreamException("Can't deserialize proxies");
+		}
+		
+	}
+}
@@ -0,0 +1,41 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream;
+
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * A change of the configuration of a {@link XStreamSerializer}, such as registering a converter
+ * or an alias. It is applied to a new xstream object which is not used by any thread yet, and it
+ * is applied again every time the serializer rebuilds its xstream object, so it must only
+ * configure the given object.
+ *
+ * <pre>
+ * serializer.configure(new XStreamCustomizer() {
+ * 
+ *     public void customize(XStream xstream) {
+ *         xstream.registerConverter(new MyConverter());
+ *     }
+ * });
+ * </pre>
+ *
+ * @see XStreamSerializer#configure(XStreamCustomizer)
+ */
+public interface XStreamCustomizer {
+	
+	/**
+	 * @param xstream - the new xstream object to configure
+	 */
+	void customize(XStream xstream);
+}
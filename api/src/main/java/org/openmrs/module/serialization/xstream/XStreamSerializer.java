@@ -13,53 +13,53 @@
  */
 package org.openmrs.module.serialization.xstream;
 
-import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.JarURLConnection;
-import java.net.URL;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
 
-import org.openmrs.BaseOpenmrsData;
-import org.openmrs.BaseOpenmrsMetadata;
-import org.openmrs.BaseOpenmrsObject;
-import org.openmrs.Concept;
-import org.openmrs.ConceptName;
-import org.openmrs.ConceptNameTag;
-import org.openmrs.Person;
-import org.openmrs.User;
 import org.openmrs.api.APIAuthenticationException;
 import org.openmrs.api.SerializationService;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.serialization.xstream.converter.CustomCGLIBEnhancedConverter;
-import org.openmrs.module.serialization.xstream.converter.CustomJavassistEnhancedConverter;
-import org.openmrs.module.serialization.xstream.converter.CustomReflectionConverter;
-import org.openmrs.module.serialization.xstream.converter.CustomSQLTimestampConverter;
+import org.openmrs.api.context.UserContext;
 import org.openmrs.module.serialization.xstream.converter.HibernateCollectionConverter;
-import org.openmrs.module.serialization.xstream.converter.UserConverter;
-import org.openmrs.module.serialization.xstream.mapper.CGLibMapper;
-import org.openmrs.module.serialization.xstream.mapper.HibernateCollectionMapper;
-import org.openmrs.module.serialization.xstream.mapper.JavassistMapper;
-import org.openmrs.module.serialization.xstream.mapper.NullValueMapper;
-import org.openmrs.module.serialization.xstream.strategy.CustomReferenceByIdMarshallingStrategy;
+import org.openmrs.module.serialization.xstream.io.ByteBufferPool;
+import org.openmrs.module.serialization.xstream.io.ChannelOutputStream;
+import org.openmrs.module.serialization.xstream.io.ChannelWriter;
+import org.openmrs.module.serialization.xstream.io.ParallelObjectReader;
+import org.openmrs.module.serialization.xstream.io.RecordScanner;
+import org.openmrs.module.serialization.xstream.io.XStreamObjectReader;
+import org.openmrs.module.serialization.xstream.io.XStreamObjectWriter;
+import org.openmrs.module.serialization.xstream.mapper.LazyAliasMapper;
+import org.openmrs.module.serialization.xstream.strategy.ParallelCollectionMarshaller;
 import org.openmrs.serialization.OpenmrsSerializer;
 import org.openmrs.serialization.SerializationException;
-import org.openmrs.util.OpenmrsClassLoader;
 
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.XStreamException;
-import com.thoughtworks.xstream.converters.MarshallingContext;
-import com.thoughtworks.xstream.converters.UnmarshallingContext;
-import com.thoughtworks.xstream.converters.basic.DateConverter;
-import com.thoughtworks.xstream.converters.extended.DynamicProxyConverter;
+import com.thoughtworks.xstream.converters.DataHolder;
+import com.thoughtworks.xstream.io.HierarchicalStreamDriver;
 import com.thoughtworks.xstream.io.HierarchicalStreamReader;
 import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
-import com.thoughtworks.xstream.mapper.MapperWrapper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -81,7 +81,34 @@ import javax.annotation.PostConstruct;
 @Component("xstreamSerializer")
 public class XStreamSerializer implements OpenmrsSerializer {
 	
-	public XStream xstream = null;
+	/*
+	 * the current configuration, it is never changed once it is used but replaced by a new one
+	 * through configure(XStreamCustomizer), so it is read only once per call
+	 */
+	public volatile XStream xstream = null;
+	
+	/*
+	 * whether xstream was passed to the constructor, in that case it can't be rebuilt
+	 */
+	private final boolean custom;
+	
+	private volatile List<XStreamCustomizer> customizers = Collections.emptyList();
+	
+	private final StreamDriverType driverType;
+	
+	private final WireProfile profile;
+	
+	private final ReferenceMode referenceMode;
+	
+	/*
+	 * every document is read and written through this driver, even when xstream is a custom one
+	 */
+	private final HierarchicalStreamDriver driver;
+	
+	/*
+	 * runs the asynchronous calls, the default one is used when it is null
+	 */
+	private volatile BoundedExecutor asyncExecutor = null;
 
     @Autowired
     private HibernateCollectionConverter collectionConverter;
@@ -96,75 +123,58 @@ public class XStreamSerializer implements OpenmrsSerializer {
 	}
 	
 	/**
-	 * Constructor that takes a custom XStream object
+	 * Constructor that takes a custom XStream object, the driver is the one configured by the
+	 * runtime property {@link StreamDriverType#RUNTIME_PROPERTY}
 	 * 
 	 * @param customXstream
 	 * @throws SerializationException
 	 */
 	public XStreamSerializer(XStream customXstream) throws SerializationException {
-		if (customXstream == null) {
-			/*
-			 * use own-defined mapper to wrap xstream's default mapper, 
-			 * The purpose:
-			 * (1) we can use the reasonable name for cglib and Hibernate's Collection
-			 * (2) ignore unknow element while deserializing
-			 */
-			xstream = new XStream() {
-				
-				protected MapperWrapper wrapMapper(MapperWrapper next) {
-					MapperWrapper mapper = new CGLibMapper(next);
-					mapper = new JavassistMapper(mapper);
-					mapper = new HibernateCollectionMapper(mapper);
-					mapper = new NullValueMapper(mapper);
-					//mapper = new IgnoreUnknownElementMapper(mapper);
-					return mapper;
-				}
-			};
-		} else {
-			this.xstream = customXstream;
-		}
-		
-		// config the basic attributes
-		
-		// BaseOpenmrsObject
-		xstream.useAttributeFor(BaseOpenmrsObject.class, "uuid");
-		
-		// BaseOpenmrsData
-		xstream.useAttributeFor(BaseOpenmrsData.class, "voided");
-		
-		// BaseOpenmrsMetadata
-		xstream.useAttributeFor(BaseOpenmrsMetadata.class, "retired");
-		
-		// Other classes has voided or retired property
-		xstream.useAttributeFor(Concept.class, "retired");
-		xstream.useAttributeFor(ConceptName.class, "voided");
-		xstream.useAttributeFor(ConceptNameTag.class, "voided");
-		//xstream.useAttributeFor(ConceptSource.class, "retired");
-
-		// In 2.x, the 'log' field in Person and User was made protected,
-		xstream.omitField(Person.class, "log");
-		xstream.omitField(User.class, "log");
-		
+		this(customXstream, StreamDriverType.getDefault());
+	}
+	
+	/**
+	 * Constructor that takes a custom XStream object and the driver to read and write documents
+	 * with, the profile is the one configured by the runtime property
+	 * {@link WireProfile#RUNTIME_PROPERTY}
+	 * 
+	 * @param customXstream - the custom XStream object, or null to use the default one
+	 * @param driverType - the parser and writer to use
+	 * @throws SerializationException
+	 */
+	public XStreamSerializer(XStream customXstream, StreamDriverType driverType) throws SerializationException {
+		this(customXstream, driverType, WireProfile.getDefault());
+	}
+	
+	/**
+	 * Constructor that takes a custom XStream object, the driver to read and write documents with
+	 * and the profile of those documents
+	 * 
+	 * @param customXstream - the custom XStream object, or null to use the default one
+	 * @param driverType - the parser and writer to use
+	 * @param profile - the profile of the written documents
+	 * @throws SerializationException
+	 */
+	public XStreamSerializer(XStream customXstream, StreamDriverType driverType, WireProfile profile)
+	    throws SerializationException {
+		this.driverType = driverType;
+		this.profile = profile;
+		this.referenceMode = ReferenceMode.getDefault();
+		this.driver = profile.wrap(driverType.createDriver(), driverType);
 		/*
-		 * alias className for all classses current need to serialize
+		 * the mappers, aliases, attributes and stateless converters are taken from the snapshot
+		 * shared by all serializers, so they are only looked up once per class loader
 		 */
-		this.commonConfig();
-		
-		// CustomReflectionConverter to avoid the exception thrown when xstream deserialize a unknown elment
-		xstream.registerConverter(new CustomReflectionConverter(xstream.getMapper(), xstream.getReflectionProvider()),
-		    xstream.PRIORITY_LOW);
-		
-		// register this converter, so that we can let xstream serialize User.user only as its uuid
-		xstream.registerConverter(new UserConverter(xstream));
-		xstream.registerConverter(new CustomCGLIBEnhancedConverter(xstream.getMapper(), xstream.getConverterLookup()));
-		xstream.registerConverter(new CustomJavassistEnhancedConverter(xstream.getMapper(), xstream.getConverterLookup()));
-		xstream.registerConverter(new CustomSQLTimestampConverter());
-		xstream.registerConverter(new DateConverter("yyyy-MM-dd HH:mm:ss z", new String[] { "yyyy-MM-dd HH:mm:ss.S z",
-		        "yyyy-MM-dd HH:mm:ssz", "yyyy-MM-dd HH:mm:ss.S a", "yyyy-MM-dd HH:mm:ssa" }));
-
-		xstream.registerConverter(new CustomDynamicProxyConverter(), XStream.PRIORITY_VERY_HIGH);
-		// set our own defined marshalling strategy so that we can build references for cglib
-		xstream.setMarshallingStrategy(new CustomReferenceByIdMarshallingStrategy());
+		this.custom = customXstream != null;
+		if (custom) {
+			XStreamConfiguration.getInstance().applyTo(customXstream);
+			profile.applyTo(customXstream);
+			applyReferenceMode(customXstream);
+			registerConverters(customXstream);
+			this.xstream = customXstream;
+		} else {
+			this.xstream = buildXStream(customizers);
+		}
 	}
 
     @PostConstruct
@@ -172,147 +182,129 @@ public class XStreamSerializer implements OpenmrsSerializer {
 		/*
 		 * Converters so that we can better deal with the serialization/deserializtion
 		 * of cglib, sql-timestamp, hibernate collections, etc
+		 * 
+		 * the serializer isn't used by any other thread yet, so xstream can be changed in place
 		 */
-        collectionConverter.setConverterLookup(xstream.getConverterLookup());
-        xstream.registerConverter(collectionConverter);
-
+        registerCollectionConverter(xstream);
     }
 	
 	/**
-	 * Get a list of package in which we will serialize all classes in it. Here we will serialize
-	 * classes as the unit of package
+	 * Register the converters this serializer needs on top of the shared configuration, it is
+	 * called for every xstream object this serializer builds. Note that it is called from the
+	 * constructor, before the fields of a subclass are initialized
 	 * 
-	 * @return a List of package in which we will serialize all classes in it
+	 * @param xstream - the new xstream object
 	 */
-	private List<String> getAllSerializedPackages() {
-		List<String> packageNames = new ArrayList<String>();
-		packageNames.add("org.openmrs");// do serialization/deserialization for all classes in package "org.openmrs"
-		// here can add new packages which in a specified package need to be serialized
-		return packageNames;
+	protected void registerConverters(XStream xstream) {
 	}
 	
 	/**
-	 * Get all classes in a given package
+	 * Create a new xstream object: the shared configuration, the profile, the reference mode
+	 * configured by {@link ReferenceMode#RUNTIME_PROPERTY}, the converters of this
+	 * serializer and then the given customizers in order
 	 * 
-	 * @param packageName the given package's name
-	 * @return a list of all classes in the given package
+	 * @param customizers - the customizers to apply
+	 * @return the new xstream object
 	 * @throws SerializationException
-	 * @throws IOException
 	 */
-	private List<Class<?>> getAllClassesInPackage(String packageName) throws SerializationException {
-		List<Class<?>> list = new ArrayList<Class<?>>();
-		Enumeration<URL> resources = null;
-		try {
-			/*
-			 * when load resource by class loader,
-			 * if run Openmrs in tomcat, all classes will be stored in "WEB-INF/classes" and "WEB-INF/lib/openmrs-xxx.jar"
-			 * if just test serialization service through unit test without start tomcat, the classes will be stored in "build/org/..."
-			 * so here to judge for both cases "file resource" or "jar resource"
-			 */
-			resources = OpenmrsClassLoader.getInstance().getResources(packageName.replace('.', '/'));
-			while (resources.hasMoreElements()) {
-				URL url = resources.nextElement();
-				if ("jar".equals(url.getProtocol())) {
-					JarURLConnection con = (JarURLConnection) url.openConnection();
-					con.setUseCaches(false);
-					JarFile jarFile = con.getJarFile();
-					Enumeration<JarEntry> e = jarFile.entries();
-					/*
-					 * use regular expression to match all classes in the given package
-					 * excluding classes in sub package and inner class
-					 */
-					String matchingPattern = packageName.replace('.', '/') + "/" + "[^/$]+.class";
-					Pattern p = Pattern.compile(matchingPattern);
-					Matcher m = null;
-					Class<?> loadedClass = null;
-					while (e.hasMoreElements()) {
-						JarEntry entry = e.nextElement();
-						m = p.matcher(entry.getName());
-						if (m.matches() == true) {
-							// load the matching class
-							String tempName = entry.getName().replace('/', '.');
-							String className = tempName.substring(0, tempName.indexOf(".class"));
-							loadedClass = OpenmrsClassLoader.getInstance().loadClass(className);
-							list.add(loadedClass);
-						}
-					}
-				} else {
-					File dir = new File(url.getFile());
-					Class<?> loadedClass = null;
-					if (dir.exists() && dir.isDirectory()) {
-						File[] fileList = dir.listFiles();
-						for (File f : fileList) {
-							// get all class files excluding the inner class
-							if (f.isFile() && f.getName().endsWith(".class") && !f.getName().contains("$")) {
-								String className = packageName + "."
-								        + f.getName().substring(0, f.getName().indexOf(".class"));
-								loadedClass = OpenmrsClassLoader.getInstance().loadClass(className);
-								list.add(loadedClass);
-							}
-						}
-					}
-				}
-			}
-			return list;
-			
+	private XStream buildXStream(List<XStreamCustomizer> customizers) throws SerializationException {
+		XStream newXstream = XStreamConfiguration.getInstance().newXStream(driver);
+		profile.applyTo(newXstream);
+		applyReferenceMode(newXstream);
+		registerConverters(newXstream);
+		registerCollectionConverter(newXstream);
+		for (XStreamCustomizer customizer : customizers) {
+			customizer.customize(newXstream);
+		}
+		return newXstream;
+	}
+	
+	/**
+	 * The shared configuration already writes ids, so only the other modes have to be applied
+	 */
+	private void applyReferenceMode(XStream xstream) {
+		if (referenceMode != ReferenceMode.ID) {
+			referenceMode.customize(xstream);
 		}
-		catch (Exception e) {
-			String errMsg = "Unable to load serialized class";
-			throw new SerializationException(errMsg, e);
+	}
+	
+	/**
+	 * Every xstream object gets its own collection converter, the injected one is shared by all the
+	 * serializers and is only used as a template
+	 */
+	private void registerCollectionConverter(XStream xstream) {
+		if (collectionConverter != null) {
+			xstream.registerConverter(collectionConverter.withConverterLookup(xstream.getConverterLookup()));
 		}
 	}
 	
 	/**
-	 * get all Classes which need serialization
+	 * Change the configuration of this serializer without disturbing the threads using it. A new
+	 * xstream object is built with all the customizers given so far, including this one, and then
+	 * replaces the current one at once, so a call which has already started keeps using the
+	 * previous configuration and nobody ever waits for a lock. The new xstream object isn't warmed
+	 * up by {@link SerializerWarmUp}, its first calls are slower again. <br/>
+	 * <br/>
+	 * If a custom XStream object was passed to the constructor it can't be rebuilt, the customizer
+	 * is then applied to it directly, which is only safe while it isn't being used.
 	 * 
-	 * @see XStreamSerializer#getAllSerializedPackages()
-	 * @see XStreamSerializer#getAllClassesInPackage(String)
+	 * @param customizer - the change to make
 	 * @throws SerializationException
+	 * @should apply the change without affecting the previous configuration
+	 * @should keep earlier changes when a new one is made
 	 */
-	private List<Class<?>> getAllSerializedClasses() throws SerializationException {
-		List<Class<?>> allSerializedClasses = new ArrayList<Class<?>>();
-		List<String> packageNames = this.getAllSerializedPackages();
-		for (String p : packageNames) {
-			List<Class<?>> classes = this.getAllClassesInPackage(p);
-			if ((classes != null) && (classes.size() > 0)) {
-				allSerializedClasses.addAll(classes);
-			}
+	public synchronized void configure(XStreamCustomizer customizer) throws SerializationException {
+		List<XStreamCustomizer> updated = new ArrayList<XStreamCustomizer>(customizers);
+		updated.add(customizer);
+		if (custom) {
+			customizer.customize(xstream);
+		} else {
+			xstream = buildXStream(updated);
 		}
-		return allSerializedClasses;
+		customizers = Collections.unmodifiableList(updated);
 	}
 	
 	/**
-	 * alias className for class "c", we will use such a form, alias "user" for
-	 * "org.openmrs.User.class". The alias principle is to low the first letter of the simple name
-	 * of class "c" Note: if in module have a few new classes need to be serialize, call this method
-	 * for each new class will automatically alias className for them
-	 * 
-	 * @param c - the class need to alias its className
+	 * @return the customizers given to {@link #configure(XStreamCustomizer)} so far, in order
 	 */
-	private void aliasClassName(Class<?> c) {
-		//through Class.getSimpleName(), we get the short name of a class, such as get "User" for class "org.openmrs.User"
-		String simpleName = c.getSimpleName();
-		String firstLetter = simpleName.substring(0, 1);
-		String leftName = simpleName.substring(1);
-		String aliasName = firstLetter.toLowerCase() + leftName;
-		xstream.alias(aliasName, c);
+	public List<XStreamCustomizer> getCustomizers() {
+		return customizers;
+	}
+	
+	/**
+	 * @return the last {@link ReferenceMode} given to {@link #configure(XStreamCustomizer)}, or the
+	 *         one configured by {@link ReferenceMode#RUNTIME_PROPERTY} if there is none
+	 */
+	public ReferenceMode getReferenceMode() {
+		List<XStreamCustomizer> applied = customizers;
+		for (int i = applied.size() - 1; i >= 0; i--) {
+			if (applied.get(i) instanceof ReferenceMode) {
+				return (ReferenceMode) applied.get(i);
+			}
+		}
+		return referenceMode;
 	}
 	
 	/**
-	 * Alias className for all classes current need to serialize
+	 * Alias className for all classes current need to serialize. <br/>
+	 * <br/>
+	 * When the mapper of xstream contains a {@link LazyAliasMapper} (which is the case unless a
+	 * custom XStream object was passed in), nothing is registered here, the classes are aliased
+	 * the first time they are used. Otherwise, the classes are taken from the {@link AliasIndex}
+	 * generated at build time, the classpath is only scanned when that index is missing or stale
 	 * 
-	 * @see XStreamSerializer#getAllSerializedClasses()
+	 * @see XStreamConfiguration#registerAliases(XStream)
 	 * @throws SerializationException
 	 */
 	public void commonConfig() throws SerializationException {
-		List<Class<?>> allSerializedClasses = this.getAllSerializedClasses();
-		for (Class<?> c : allSerializedClasses) {
-			this.aliasClassName(c);
-		}
+		XStreamConfiguration.getInstance().registerAliases(xstream);
 	}
 	
 	/**
-	 * Expose the xstream object, so that module can config with xstream as need
+	 * Expose the xstream object, so that module can config with xstream as need. <br/>
+	 * <br/>
+	 * Changing the returned object while other threads serialize with it is not safe, use
+	 * {@link #configure(XStreamCustomizer)} instead, the object returned here is then replaced.
 	 * 
 	 * @return xstream can be configed by module
 	 */
@@ -321,54 +313,665 @@ public class XStreamSerializer implements OpenmrsSerializer {
 	}
 	
 	/**
+	 * @return the type of the driver every document is read and written with
+	 */
+	public StreamDriverType getDriverType() {
+		return driverType;
+	}
+	
+	/**
+	 * @return the profile of the documents written by this serializer
+	 */
+	public WireProfile getProfile() {
+		return profile;
+	}
+	
+	/**
+	 * A binary document is returned encoded in Base64
+	 * 
 	 * @see OpenmrsSerializer#serialize(java.lang.Object)
 	 * @should not serialize proxies
+	 * @should encode binary documents in base64
 	 */
 	public String serialize(Object o) throws SerializationException {
-		return xstream.toXML(o);
+		if (driverType.isBinary()) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			marshal(o, driver.createWriter(out));
+			return Base64.getEncoder().encodeToString(out.toByteArray());
+		}
+		StringWriter writer = new StringWriter();
+		marshal(o, driver.createWriter(writer));
+		return writer.toString();
+	}
+	
+	/**
+	 * Serialize the given object straight into a writer, without building the whole document in
+	 * memory first. The output is the same as the one of {@link #serialize(Object)}. <br/>
+	 * <br/>
+	 * In {@link ReferenceMode#TREE} mode the document is still held in memory, as the names and
+	 * values of all its nodes plus a few bytes per node, until it is known to be a tree and is
+	 * written out. Use {@link ReferenceMode#STRICT_TREE} or {@link ReferenceMode#ID} to
+	 * stream large documents
+	 * 
+	 * @param o - the object to serialize
+	 * @param writer - the writer to write to, it is flushed but not closed
+	 * @throws SerializationException if the driver of this serializer is binary
+	 * @should write the same xml as serialize
+	 */
+	public void serialize(Object o, Writer writer) throws SerializationException {
+		HierarchicalStreamWriter streamWriter = createStreamWriter(writer);
+		try {
+			marshal(o, streamWriter);
+		}
+		catch (XStreamException e) {
+			throw new SerializationException("Unable to serialize " + o, e);
+		}
 	}
 	
 	/**
+	 * Serialize the given object straight into an output stream, an xml declaration naming the
+	 * encoding is written first so that the document can be read back from bytes. A binary
+	 * document is written as it is, the encoding is ignored. The memory used in
+	 * {@link ReferenceMode#TREE} mode is the one described in {@link #serialize(Object, Writer)}
+	 * 
+	 * @param o - the object to serialize
+	 * @param out - the stream to write to, it is flushed but not closed
+	 * @param encoding - the name of the charset used to encode the xml, such as "UTF-8"
+	 * @throws SerializationException
+	 */
+	public void serialize(Object o, OutputStream out, String encoding) throws SerializationException {
+		HierarchicalStreamWriter streamWriter = createStreamWriter(out, encoding);
+		try {
+			marshal(o, streamWriter);
+		}
+		catch (XStreamException e) {
+			throw new SerializationException("Unable to serialize " + o, e);
+		}
+	}
+	
+	/**
+	 * Serialize the given object into a file as UTF-8, the file is created or replaced
+	 * 
+	 * @param o - the object to serialize
+	 * @param path - the file to write to
+	 * @throws SerializationException
+	 */
+	public void serialize(Object o, Path path) throws SerializationException {
+		try {
+			OutputStream out = Files.newOutputStream(path);
+			try {
+				serialize(o, out, "UTF-8");
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch (IOException e) {
+			throw new SerializationException("Unable to serialize " + o + " to " + path, e);
+		}
+	}
+	
+	/**
+	 * Serialize the given object straight into a channel, such as a FileChannel or a blocking
+	 * SocketChannel. The document is encoded into direct buffers taken from
+	 * {@link ByteBufferPool#getDefault()}, so that no String or byte array copy of it is made. As
+	 * with {@link #serialize(Object, OutputStream, String)}, an xml document starts with a
+	 * declaration naming the encoding and a binary one ignores the encoding, and the whole document
+	 * is recorded before the first buffer is filled in {@link ReferenceMode#TREE} mode. <br/>
+	 * <br/>
+	 * When the serialization fails, the buffer goes back to the pool without the partial document
+	 * being flushed or ended, only the bytes of the buffers filled before the failure have reached
+	 * the channel.
+	 * 
+	 * @param o - the object to serialize
+	 * @param channel - the channel to write to, it is not closed
+	 * @param encoding - the name of the charset used to encode the xml, such as "UTF-8"
+	 * @throws SerializationException
+	 * @should write the same document as serialize to an output stream
+	 * @should not write a document which failed
+	 */
+	public void serialize(Object o, WritableByteChannel channel, String encoding) throws SerializationException {
+		ChannelOutputStream out = new ChannelOutputStream(channel, ByteBufferPool.getDefault());
+		boolean written = false;
+		try {
+			if (driverType.isBinary()) {
+				HierarchicalStreamWriter streamWriter = driver.createWriter(out);
+				xstream.marshal(o, streamWriter);
+				streamWriter.flush();
+			} else {
+				Writer writer = new ChannelWriter(out, Charset.forName(encoding));
+				writer.write("<?xml version=\"1.0\" encoding=\"" + encoding + "\"?>\n");
+				HierarchicalStreamWriter streamWriter = driver.createWriter(writer);
+				xstream.marshal(o, streamWriter);
+				streamWriter.flush();
+				// ends the encoding
+				writer.close();
+			}
+			// writes the rest of the document and gives the buffer back to the pool
+			out.close();
+			written = true;
+		}
+		catch (IOException e) {
+			throw new SerializationException("Unable to serialize " + o, e);
+		}
+		catch (XStreamException e) {
+			throw new SerializationException("Unable to serialize " + o, e);
+		}
+		finally {
+			if (!written) {
+				out.discard();
+			}
+		}
+	}
+	
+	/**
+	 * Serialize a large list using several threads, see {@link ParallelCollectionMarshaller} for
+	 * how the work is split and what it implies. The document is read back as an ArrayList by
+	 * {@link #deserialize(String, Class)}, a binary document is returned encoded in Base64
+	 * 
+	 * @param list - the items to serialize
+	 * @return the serialized list
+	 * @throws SerializationException
+	 * @should write a list which deserializes to the same items in order
+	 */
+	public String serializeInParallel(List<?> list) throws SerializationException {
+		try {
+			if (driverType.isBinary()) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				marshalInParallel(list, driver.createWriter(out));
+				return Base64.getEncoder().encodeToString(out.toByteArray());
+			}
+			StringWriter writer = new StringWriter();
+			marshalInParallel(list, driver.createWriter(writer));
+			return writer.toString();
+		}
+		catch (XStreamException e) {
+			throw new SerializationException("Unable to serialize a list of " + list.size() + " items", e);
+		}
+	}
+	
+	/**
+	 * Serialize a large list using several threads straight into an output stream, as with
+	 * {@link #serialize(Object, OutputStream, String)} an xml document starts with a declaration
+	 * naming the encoding
+	 * 
+	 * @param list - the items to serialize
+	 * @param out - the stream to write to, it is flushed but not closed
+	 * @param encoding - the name of the charset used to encode the xml, such as "UTF-8"
+	 * @throws SerializationException
+	 * @see #serializeInParallel(List)
+	 */
+	public void serializeInParallel(List<?> list, OutputStream out, String encoding) throws SerializationException {
+		HierarchicalStreamWriter streamWriter = createStreamWriter(out, encoding);
+		try {
+			marshalInParallel(list, streamWriter);
+		}
+		catch (XStreamException e) {
+			throw new SerializationException("Unable to serialize a list of " + list.size() + " items", e);
+		}
+	}
+	
+	/**
+	 * Start a document holding many objects, they are written one by one as the children of a
+	 * "list" element. In {@link ReferenceMode#TREE} mode only one object at a time is recorded in
+	 * memory before it is written
+	 * 
+	 * @param writer - the writer to write to, it is closed with the returned object writer
+	 * @return the object writer
+	 * @throws SerializationException if the driver of this serializer is binary
+	 * @see XStreamObjectWriter
+	 */
+	public XStreamObjectWriter createObjectWriter(Writer writer) throws SerializationException {
+		return createObjectWriter(writer, "list");
+	}
+	
+	/**
+	 * Start a document holding many objects, they are written one by one as the children of the
+	 * root element
+	 * 
+	 * @param writer - the writer to write to, it is closed with the returned object writer
+	 * @param rootNodeName - the name of the root element
+	 * @return the object writer
+	 * @throws SerializationException if the driver of this serializer is binary
+	 * @see XStreamObjectWriter
+	 * @should write each object as a child of the root
+	 */
+	public XStreamObjectWriter createObjectWriter(Writer writer, String rootNodeName) throws SerializationException {
+		return new XStreamObjectWriter(xstream, createStreamWriter(writer), rootNodeName);
+	}
+	
+	/**
+	 * Start a document holding many objects in an output stream, an xml declaration naming the
+	 * encoding is written first
+	 * 
+	 * @param out - the stream to write to, it is closed with the returned object writer
+	 * @param encoding - the name of the charset used to encode the xml, such as "UTF-8"
+	 * @return the object writer
+	 * @throws SerializationException
+	 * @see XStreamSerializer#serialize(Object, OutputStream, String)
+	 */
+	public XStreamObjectWriter createObjectWriter(OutputStream out, String encoding) throws SerializationException {
+		return new XStreamObjectWriter(xstream, createStreamWriter(out, encoding), "list");
+	}
+	
+	/**
+	 * Start a document holding many objects which share one marshalling context, so that an object
+	 * already written by a previous object of the document is written as a reference to it. The
+	 * document is read back by {@link #createObjectReader(Reader, Class)}
+	 * 
+	 * @param writer - the writer to write to, it is closed with the returned object writer
+	 * @return the object writer
+	 * @throws SerializationException if the driver of this serializer is binary
+	 * @see XStreamObjectWriter
+	 * @should write the objects shared by several records once
+	 */
+	public XStreamObjectWriter createSessionWriter(Writer writer) throws SerializationException {
+		return new XStreamObjectWriter(xstream, createStreamWriter(writer), "list", true);
+	}
+	
+	/**
+	 * Start a document holding many objects which share one marshalling context in an output
+	 * stream, an xml declaration naming the encoding is written first
+	 * 
+	 * @param out - the stream to write to, it is closed with the returned object writer
+	 * @param encoding - the name of the charset used to encode the xml, such as "UTF-8"
+	 * @return the object writer
+	 * @throws SerializationException
+	 * @see XStreamSerializer#createSessionWriter(Writer)
+	 */
+	public XStreamObjectWriter createSessionWriter(OutputStream out, String encoding) throws SerializationException {
+		return new XStreamObjectWriter(xstream, createStreamWriter(out, encoding), "list", true);
+	}
+	
+	/**
+	 * A binary document is expected to be encoded in Base64
+	 * 
 	 * @see OpenmrsSerializer#deserialize(String, Class)
 	 * @should not deserialize proxies
 	 * @should ignore entities
 	 */
 	@SuppressWarnings("unchecked")
 	public <T extends Object> T deserialize(String serializedObject, Class<? extends T> clazz) throws SerializationException {
-        if (!Context.isAuthenticated()) {
-            throw new APIAuthenticationException("Authentication is required");
-        }
-        return (T) xstream.fromXML(serializedObject);
+		checkAuthenticated();
+		DataHolder dataHolder = createDataHolder(serializedObject);
+		return (T) xstream.unmarshal(createReader(serializedObject), null, dataHolder);
+	}
+	
+	/**
+	 * Serialize the given object and read it back through the driver, the profile and the xstream
+	 * object of this serializer, as {@link #serialize(Object)} and
+	 * {@link #deserialize(String, Class)} do. No session is needed: the authentication isn't
+	 * checked and the document is read without the data holder of {@link #createDataHolder(String)},
+	 * so the object must not refer to anything which would be looked up in the database
+	 * 
+	 * @param o - a transient object
+	 * @return the object read back
+	 * @throws SerializationException
+	 * @see SerializerWarmUp
+	 */
+	Object roundTrip(Object o) throws SerializationException {
+		String serialized = serialize(o);
+		try {
+			return xstream.unmarshal(createReader(serialized));
+		}
+		catch (XStreamException e) {
+			throw new SerializationException("Unable to deserialize " + o.getClass(), e);
+		}
+	}
+	
+	/**
+	 * Create the data shared by the converters while the given document is deserialized, such as
+	 * objects looked up before the deserialization starts
+	 * 
+	 * @param serializedObject - the document to deserialize
+	 * @return the data holder, or null if the converters start with no data
+	 * @see #deserialize(String, Class)
+	 */
+	protected DataHolder createDataHolder(String serializedObject) {
+		return null;
+	}
+	
+	/**
+	 * Create a reader of the given document, which is decoded from Base64 when the driver of this
+	 * serializer is binary
+	 * 
+	 * @param serializedObject - the document
+	 * @return the reader, positioned on the root element
+	 */
+	protected HierarchicalStreamReader createReader(String serializedObject) {
+		if (driverType.isBinary()) {
+			byte[] bytes = Base64.getDecoder().decode(serializedObject);
+			return driver.createReader(new ByteArrayInputStream(bytes));
+		}
+		return driver.createReader(new StringReader(serializedObject));
+	}
+	
+	/**
+	 * Deserialize an object while its xml is being read, the text is never held in memory as a
+	 * whole
+	 * 
+	 * @param reader - the reader of the xml, it is not closed
+	 * @param clazz - the class of the deserialized object
+	 * @return the deserialized object
+	 * @throws SerializationException if the driver of this serializer is binary
+	 * @should read what serialize wrote
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Object> T deserialize(Reader reader, Class<? extends T> clazz) throws SerializationException {
+		checkAuthenticated();
+		HierarchicalStreamReader streamReader = createStreamReader(reader);
+		try {
+			return (T) xstream.unmarshal(streamReader);
+		}
+		catch (XStreamException e) {
+			throw new SerializationException("Unable to deserialize " + clazz, e);
+		}
+	}
+	
+	/**
+	 * Deserialize an object while its xml is being read, the encoding is taken from the xml
+	 * declaration and is UTF-8 if there is none
+	 * 
+	 * @param in - the stream of the xml, it is not closed
+	 * @param clazz - the class of the deserialized object
+	 * @return the deserialized object
+	 * @throws SerializationException
+	 * @see XStreamSerializer#serialize(Object, OutputStream, String)
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Object> T deserialize(InputStream in, Class<? extends T> clazz) throws SerializationException {
+		checkAuthenticated();
+		try {
+			return (T) xstream.unmarshal(driver.createReader(in));
+		}
+		catch (XStreamException e) {
+			throw new SerializationException("Unable to deserialize " + clazz, e);
+		}
+	}
+	
+	/**
+	 * Deserialize an object from a file
+	 * 
+	 * @param path - the file to read
+	 * @param clazz - the class of the deserialized object
+	 * @return the deserialized object
+	 * @throws SerializationException
+	 * @see XStreamSerializer#serialize(Object, Path)
+	 */
+	public <T extends Object> T deserialize(Path path, Class<? extends T> clazz) throws SerializationException {
+		checkAuthenticated();
+		try {
+			InputStream in = new BufferedInputStream(Files.newInputStream(path));
+			try {
+				return deserialize(in, clazz);
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			throw new SerializationException("Unable to deserialize " + clazz + " from " + path, e);
+		}
+	}
+	
+	/**
+	 * Serialize the given object in another thread, see {@link BoundedExecutor} for the threads
+	 * used and the limit on the number of calls in flight. The caller waits for a call to finish
+	 * when that limit is reached. <br/>
+	 * <br/>
+	 * The call runs as the user of the calling thread, if it has one, but not within its Hibernate
+	 * session, which can't be shared between threads. The object must therefore be detached or have
+	 * all its lazy proxies and collections initialized, otherwise the call fails with a
+	 * LazyInitializationException.
+	 * 
+	 * @param o - the object to serialize, it must not be changed until the returned future is done
+	 * @return the future result of {@link #serialize(Object)}
+	 * @should serialize the object in another thread
+	 * @should serialize the object as the calling user
+	 */
+	public CompletableFuture<String> serializeAsync(final Object o) {
+		UserContext userContext = Context.isSessionOpen() ? Context.getUserContext() : null;
+		return submitAs(userContext, new Callable<String>() {
+			
+			public String call() throws SerializationException {
+				return serialize(o);
+			}
+		});
+	}
+	
+	/**
+	 * Deserialize an object in another thread, which runs as the user authenticated in the
+	 * calling thread
+	 * 
+	 * @param serializedObject - the serialized object
+	 * @param clazz - the class of the deserialized object
+	 * @return the future result of {@link #deserialize(String, Class)}
+	 * @throws APIAuthenticationException if nobody is authenticated
+	 * @see #serializeAsync(Object)
+	 * @should deserialize the object as the calling user
+	 */
+	public <T extends Object> CompletableFuture<T> deserializeAsync(final String serializedObject,
+	                                                                final Class<? extends T> clazz) {
+		checkAuthenticated();
+		return submitAs(Context.getUserContext(), new Callable<T>() {
+			
+			public T call() throws SerializationException {
+				return XStreamSerializer.this.<T> deserialize(serializedObject, clazz);
+			}
+		});
+	}
+	
+	/**
+	 * Submit the given call to the executor of the asynchronous calls, to run as the given user
+	 * 
+	 * @param userContext - the user of the calling thread, or null to run the call without any
+	 * @param call - the call to run
+	 * @return the future result of the call
+	 */
+	private <T> CompletableFuture<T> submitAs(final UserContext userContext, final Callable<T> call) {
+		final Thread caller = Thread.currentThread();
+		return getAsyncExecutor().submit(new Callable<T>() {
+			
+			public T call() throws Exception {
+				// an executor may run the call in the calling thread, whose user must stay
+				boolean otherThread = userContext != null && Thread.currentThread() != caller;
+				if (otherThread) {
+					Context.setUserContext(userContext);
+				}
+				try {
+					return call.call();
+				}
+				finally {
+					if (otherThread) {
+						Context.clearUserContext();
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * @return the executor of the asynchronous calls of this serializer
+	 */
+	public BoundedExecutor getAsyncExecutor() {
+		BoundedExecutor executor = asyncExecutor;
+		return executor != null ? executor : BoundedExecutor.getDefault();
+	}
+	
+	/**
+	 * Set the executor of the asynchronous calls of this serializer
+	 * 
+	 * @param asyncExecutor - the executor, or null to use {@link BoundedExecutor#getDefault()}
+	 */
+	public void setAsyncExecutor(BoundedExecutor asyncExecutor) {
+		this.asyncExecutor = asyncExecutor;
+	}
+	
+	/**
+	 * Start reading a document holding many objects, such as one written through
+	 * {@link #createObjectWriter(Writer)}, the objects are deserialized one at a time while the
+	 * returned reader is iterated
+	 * 
+	 * @param reader - the reader of the xml, it is closed with the returned object reader
+	 * @param clazz - the class of every object in the document
+	 * @return the object reader
+	 * @throws SerializationException if the driver of this serializer is binary
+	 * @see XStreamObjectReader
+	 * @should read back the objects written by an object writer
+	 */
+	public <T extends Object> XStreamObjectReader<T> createObjectReader(Reader reader, Class<T> clazz)
+	        throws SerializationException {
+		checkAuthenticated();
+		HierarchicalStreamReader streamReader = createStreamReader(reader);
+		try {
+			return new XStreamObjectReader<T>(xstream, streamReader, clazz);
+		}
+		catch (XStreamException e) {
+			throw new SerializationException("Unable to start reading the document", e);
+		}
 	}
 	
 	/**
-	 * An instance of this converter needs to be registered with a higher priority than the rest so
-	 * that it's called early in the converter chain. This way, we can make sure we never get to
-	 * xstream's DynamicProxyConverter that can deserialize proxies.
-	 *
-	 * @see <a href="http://tinyurl.com/ord2rry">this blog</a>
+	 * Start reading a document holding many objects from a stream, the encoding is taken from the
+	 * xml declaration and is UTF-8 if there is none
+	 * 
+	 * @param in - the stream of the xml, it is closed with the returned object reader
+	 * @param clazz - the class of every object in the document
+	 * @return the object reader
+	 * @throws SerializationException
+	 * @see XStreamSerializer#createObjectReader(Reader, Class)
 	 */
-	private class CustomDynamicProxyConverter extends DynamicProxyConverter {
-		
-		CustomDynamicProxyConverter() {
-			super(null);
+	public <T extends Object> XStreamObjectReader<T> createObjectReader(InputStream in, Class<T> clazz)
+	        throws SerializationException {
+		checkAuthenticated();
+		try {
+			return new XStreamObjectReader<T>(xstream, driver.createReader(in), clazz);
+		}
+		catch (XStreamException e) {
+			throw new SerializationException("Unable to start reading the document", e);
 		}
-		
-		@Override
-		public boolean canConvert(Class type) {
-			if (type == null) {
-				return false;
+	}
+	
+	/**
+	 * Start reading a document holding many objects using several threads, the records are
+	 * unmarshalled by the pool of {@link ParallelCollectionMarshaller#getDefault()} as the
+	 * authenticated user, and are returned in the order of the document. The records are read
+	 * independently, so a document written by {@link #createSessionWriter(Writer)} can't be read
+	 * this way
+	 * 
+	 * @param reader - the reader of the xml, it is closed with the returned object reader
+	 * @param clazz - the class of every object in the document
+	 * @return the object reader
+	 * @throws SerializationException if the driver of this serializer is binary, the root element
+	 *             can't be read or the document was written by a session writer
+	 * @see ParallelObjectReader
+	 * @should read the records in the order of the document
+	 * @should reject a session document
+	 */
+	public <T extends Object> ParallelObjectReader<T> createParallelObjectReader(Reader reader, Class<T> clazz)
+	        throws SerializationException {
+		checkAuthenticated();
+		if (driverType.isBinary()) {
+			throw new SerializationException("A binary document can't be split into records");
+		}
+		RecordScanner scanner = new RecordScanner(reader);
+		ForkJoinPool pool = ParallelCollectionMarshaller.getDefault().getPool();
+		try {
+			return new ParallelObjectReader<T>(xstream, driver, scanner, clazz, pool, pool.getParallelism() * 4, Context
+			        .getUserContext());
+		}
+		catch (XStreamException e) {
+			try {
+				scanner.close();
 			}
-			return super.canConvert(type);
+			catch (IOException ignored) {
+				// the document is rejected anyway
+			}
+			throw new SerializationException("Unable to start reading the document in parallel", e);
 		}
-		
-		public void marshal(Object value, HierarchicalStreamWriter writer, MarshallingContext context) {
-			throw new XStreamException("Can't serialize proxies");
+	}
+	
+	/**
+	 * Create a writer of characters through the driver of this serializer
+	 * 
+	 * @throws SerializationException if the driver is binary
+	 */
+	private HierarchicalStreamWriter createStreamWriter(Writer writer) throws SerializationException {
+		if (driverType.isBinary()) {
+			throw new SerializationException("A binary document can only be written to an OutputStream");
+		}
+		return driver.createWriter(writer);
+	}
+	
+	/**
+	 * Create a writer of bytes through the driver of this serializer, an xml document starts with
+	 * a declaration naming its encoding
+	 */
+	private HierarchicalStreamWriter createStreamWriter(OutputStream out, String encoding) throws SerializationException {
+		if (driverType.isBinary()) {
+			return driver.createWriter(out);
+		}
+		try {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(out, encoding));
+			writer.write("<?xml version=\"1.0\" encoding=\"" + encoding + "\"?>\n");
+			return driver.createWriter(writer);
+		}
+		catch (IOException e) {
+			throw new SerializationException("Unable to start the document", e);
 		}
-		
-		public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
-			throw new XStreamException("Can't deserialize proxies");
+	}
+	
+	/**
+	 * Create a reader of characters through the driver of this serializer
+	 * 
+	 * @throws SerializationException if the driver is binary
+	 */
+	private HierarchicalStreamReader createStreamReader(Reader reader) throws SerializationException {
+		if (driverType.isBinary()) {
+			throw new SerializationException("A binary document can only be read from an InputStream");
+		}
+		return driver.createReader(reader);
+	}
+	
+	/**
+	 * Write the given object through the given writer of this serializer's driver
+	 * 
+	 * @param o - the object to serialize
+	 * @param streamWriter - the writer to write to, it is flushed but not closed
+	 */
+	private void marshal(Object o, HierarchicalStreamWriter streamWriter) {
+		try {
+			xstream.marshal(o, streamWriter);
+		}
+		finally {
+			streamWriter.flush();
+		}
+	}
+	
+	/**
+	 * Write the given list through the default {@link ParallelCollectionMarshaller}
+	 * 
+	 * @param list - the items to serialize
+	 * @param streamWriter - the writer to write to, it is flushed but not closed
+	 */
+	private void marshalInParallel(List<?> list, HierarchicalStreamWriter streamWriter) {
+		try {
+			ParallelCollectionMarshaller.getDefault().marshal(xstream, getReferenceMode(), list, streamWriter);
+		}
+		finally {
+			streamWriter.flush();
+		}
+	}
+	
+	/**
+	 * Deserializing may load any class and create any object, so only authenticated users are
+	 * allowed to do it
+	 * 
+	 * @throws APIAuthenticationException if nobody is authenticated
+	 */
+	private void checkAuthenticated() {
+		if (!Context.isAuthenticated()) {
+			throw new APIAuthenticationException("Authentication is required");
 		}
-		
 	}
 }
@@ -13,6 +13,9 @@
  */
 package org.openmrs.module.serialization.xstream;
 
+import java.util.Map;
+import java.util.Set;
+
 import org.openmrs.api.SerializationService;
 import org.openmrs.module.serialization.xstream.converter.ConceptShortConverter;
 import org.openmrs.module.serialization.xstream.converter.EncounterTypeShortConverter;
@@ -33,6 +36,8 @@ import org.openmrs.serialization.SerializationException;
 
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.converters.ConverterLookup;
+import com.thoughtworks.xstream.converters.DataHolder;
+import com.thoughtworks.xstream.core.MapBackedDataHolder;
 import com.thoughtworks.xstream.mapper.Mapper;
 
 /**
@@ -62,6 +67,8 @@ import com.thoughtworks.xstream.mapper.Mapper;
  */
 public class XStreamShortSerializer extends XStreamSerializer {
 	
+	private volatile boolean batchUuidResolution;
+	
 	/**
 	 * Default Constructor
 	 * 
@@ -72,15 +79,50 @@ public class XStreamShortSerializer extends XStreamSerializer {
 	}
 	
 	public XStreamShortSerializer(XStream customXstream) throws SerializationException {
-		super(customXstream);
-
-		//all base config information for serialization inherited from XStreamSerializer
+		this(customXstream, StreamDriverType.getDefault());
+	}
+	
+	/**
+	 * Constructor that takes a custom XStream object and the driver to read and write documents
+	 * with
+	 * 
+	 * @param customXstream - the custom XStream object, or null to use the default one
+	 * @param driverType - the parser and writer to use
+	 * @throws SerializationException
+	 */
+	public XStreamShortSerializer(XStream customXstream, StreamDriverType driverType) throws SerializationException {
+		this(customXstream, driverType, WireProfile.getDefault());
+	}
+	
+	/**
+	 * Constructor that takes a custom XStream object, the driver to read and write documents with
+	 * and the profile of those documents
+	 * 
+	 * @param customXstream - the custom XStream object, or null to use the default one
+	 * @param driverType - the parser and writer to use
+	 * @param profile - the profile of the written documents
+	 * @throws SerializationException
+	 */
+	public XStreamShortSerializer(XStream customXstream, StreamDriverType driverType, WireProfile profile)
+	    throws SerializationException {
+		super(customXstream, driverType, profile);
+		this.batchUuidResolution = UuidBatchResolver.isEnabled();
+	}
+	
+	/**
+	 * all base config information for serialization inherited from XStreamSerializer, config the
+	 * short converters for those classes which need short serialization on top of it
+	 * 
+	 * @see XStreamSerializer#registerConverters(XStream)
+	 */
+	@Override
+	protected void registerConverters(XStream xstream) {
 		Mapper mapper = xstream.getMapper();
 		ConverterLookup conerterLookup = xstream.getConverterLookup();
 		//config short converters for those classes which need short serialization
 		xstream.registerConverter(new PersonShortConverter(mapper, conerterLookup));
 		//here use the very high priority, so that this converter can replace UserConverter in long serializer
-		xstream.registerConverter(new UserShortConverter(mapper, conerterLookup), xstream.PRIORITY_VERY_HIGH);
+		xstream.registerConverter(new UserShortConverter(mapper, conerterLookup), XStream.PRIORITY_VERY_HIGH);
 		xstream.registerConverter(new PatientShortConverter(mapper, conerterLookup));
 		xstream.registerConverter(new ConceptShortConverter(mapper, conerterLookup));
 		xstream.registerConverter(new EncounterTypeShortConverter(mapper, conerterLookup));
@@ -95,4 +137,48 @@ public class XStreamShortSerializer extends XStreamSerializer {
 		xstream.registerConverter(new ProgramWorkflowShortConverter(mapper, conerterLookup));
 		xstream.registerConverter(new ProgramWorkflowStateShortConverter(mapper, conerterLookup));
 	}
+	
+	/**
+	 * When the uuids are resolved by batches, the objects the document refers to are looked up
+	 * before it is deserialized and are handed to the short converters
+	 * 
+	 * @see XStreamSerializer#createDataHolder(String)
+	 * @see UuidBatchResolver
+	 */
+	@Override
+	protected DataHolder createDataHolder(String serializedObject) {
+		if (!batchUuidResolution) {
+			return null;
+		}
+		XStream xstream = getXstream();
+		UuidBatchResolver resolver = new UuidBatchResolver(xstream.getMapper(), xstream.getReflectionProvider());
+		Map<Class<?>, Set<String>> references = resolver.collectReferences(createReader(serializedObject));
+		if (references.isEmpty()) {
+			return null;
+		}
+		// the short converters add the objects they look up themselves to this map
+		Map<String, Object> resolved = resolver.resolve(references);
+		return new MapBackedDataHolder(resolved);
+	}
+	
+	/**
+	 * @return whether the objects a document refers to by uuid are looked up by batches
+	 */
+	public boolean isBatchUuidResolution() {
+		return batchUuidResolution;
+	}
+	
+	/**
+	 * Look up the objects a document given to {@link #deserialize(String, Class)} refers to by uuid
+	 * with one query per type and batch of uuids, or one at a time while the document is
+	 * deserialized. The documents read from streams are always deserialized one uuid at a time,
+	 * they can only be read once. It is turned on by default when the runtime property
+	 * {@link UuidBatchResolver#RUNTIME_PROPERTY} is "true"
+	 * 
+	 * @param batchUuidResolution - true to look up the objects by batches
+	 * @should deserialize the same objects as without batches
+	 */
+	public void setBatchUuidResolution(boolean batchUuidResolution) {
+		this.batchUuidResolution = batchUuidResolution;
+	}
 }
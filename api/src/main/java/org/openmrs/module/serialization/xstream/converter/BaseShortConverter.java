@@ -15,10 +15,11 @@ package org.openmrs.module.serialization.xstream.converter;
 
 
 import org.openmrs.OpenmrsObject;
+import org.openmrs.module.serialization.xstream.UuidBatchResolver;
 import org.openmrs.module.serialization.xstream.XStreamShortSerializer;
-import org.openmrs.module.serialization.xstream.mapper.CGLibMapper;
-import org.openmrs.module.serialization.xstream.mapper.JavassistMapper;
+import org.openmrs.module.serialization.xstream.mapper.ProxyResolver;
 import org.openmrs.module.serialization.xstream.strategy.CustomReferenceByIdMarshaller;
+import org.openmrs.module.serialization.xstream.strategy.CustomTreeMarshaller;
 
 import com.thoughtworks.xstream.converters.Converter;
 import com.thoughtworks.xstream.converters.ConverterLookup;
@@ -28,7 +29,6 @@ import com.thoughtworks.xstream.io.HierarchicalStreamReader;
 import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 import com.thoughtworks.xstream.mapper.CGLIBMapper;
 import com.thoughtworks.xstream.mapper.Mapper;
-import org.springframework.cglib.proxy.Enhancer;
 
 /**
  * The base converter of all short converters
@@ -78,8 +78,7 @@ public abstract class BaseShortConverter implements Converter {
 	 * @return whether type is a type of CGLib proxy
 	 */
 	protected boolean isCGLibProxy(Class<?> type) {
-		return (Enhancer.isEnhanced(type) && type.getName().indexOf(CGLibMapper.marker) > 0)
-		        || type == CGLIBMapper.Marker.class;
+		return ProxyResolver.isCGLibProxy(type) || type == CGLIBMapper.Marker.class;
 	}
 	
 	/**
@@ -89,8 +88,7 @@ public abstract class BaseShortConverter implements Converter {
 	 * @return whether type is a type of Javassist proxy
 	 */
 	protected boolean isJavassistProxy(Class<?> type) {
-        return type.getName().indexOf(JavassistMapper.OLD_NAMING_MARKER) > 0
-                || type.getName().indexOf(JavassistMapper.NEW_NAMING_MARKER) > 0;
+		return ProxyResolver.isJavassistProxy(type);
 	}
 	
 	/**
@@ -106,14 +104,23 @@ public abstract class BaseShortConverter implements Converter {
 	 * @see PersonShortConverter#unmarshal(HierarchicalStreamReader, UnmarshallingContext)
 	 */
 	protected boolean needsFullDeserialization(HierarchicalStreamReader reader) {
-		String uuid = reader.getAttribute("uuid");
-		if (uuid == null) {
-			return true;
-		}
-		else {
-			String id = reader.getAttribute("id");
-			return (id != null && "1".equals(id));
+		return !isUuidReference(reader);
+	}
+	
+	/**
+	 * Whether the current node is only the uuid of an object: it has a "uuid" attribute and is not
+	 * the root of the document, which has the id "1" or is marked with the attribute
+	 * {@link CustomReferenceByIdMarshaller#ROOT_ATTRIBUTE} in a session
+	 * 
+	 * @param reader - the stream read from
+	 * @return whether the object must be looked up by its uuid
+	 */
+	public static boolean isUuidReference(HierarchicalStreamReader reader) {
+		if (reader.getAttribute("uuid") == null) {
+			return false;
 		}
+		return !"1".equals(reader.getAttribute("id"))
+		        && reader.getAttribute(CustomReferenceByIdMarshaller.ROOT_ATTRIBUTE) == null;
 	}
 	
 	protected Mapper getMapper() {
@@ -165,6 +172,10 @@ public abstract class BaseShortConverter implements Converter {
 		} 
 		else {
 			writer.addAttribute("uuid", uuid);
+			// a document without ids may hold this object several times, it is read by its uuid
+			if (context instanceof CustomTreeMarshaller) {
+				((CustomTreeMarshaller) context).markUuidReference();
+			}
 		}
 	}
 	
@@ -181,10 +192,12 @@ public abstract class BaseShortConverter implements Converter {
 			return defaultConverter.unmarshal(reader, context);
 		} else {
 			String uuid = reader.getAttribute("uuid");
-			Object ret = context.get(uuid);
+			// a uuid is only unique within the table of its type
+			String key = UuidBatchResolver.keyOf(context.getRequiredType(), uuid);
+			Object ret = context.get(key);
 			if (ret == null) {
 				ret = getByUUID(uuid);
-				context.put(uuid, ret);
+				context.put(key, ret);
 			}
 			return ret;
 		}
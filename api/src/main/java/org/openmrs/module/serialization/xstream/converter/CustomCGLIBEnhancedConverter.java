@@ -16,17 +16,16 @@ package org.openmrs.module.serialization.xstream.converter;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.serialization.xstream.mapper.ProxyResolver;
 
 import com.thoughtworks.xstream.converters.Converter;
 import com.thoughtworks.xstream.converters.ConverterLookup;
 import com.thoughtworks.xstream.converters.MarshallingContext;
 import com.thoughtworks.xstream.converters.UnmarshallingContext;
-import com.thoughtworks.xstream.converters.reflection.SerializationMethodInvoker;
 import com.thoughtworks.xstream.io.HierarchicalStreamReader;
 import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 import com.thoughtworks.xstream.mapper.CGLIBMapper;
 import com.thoughtworks.xstream.mapper.Mapper;
-import org.springframework.cglib.proxy.Enhancer;
 
 /**
  * Converter which deals with CGLIB proxy's serialization/deserialization. While serializing, it
@@ -40,8 +39,6 @@ public class CustomCGLIBEnhancedConverter implements Converter {
 	
 	private static Log log = LogFactory.getLog(CustomCGLIBEnhancedConverter.class);
 	
-	private static String DEFAULT_NAMING_MARKER = "$$EnhancerByCGLIB$$";
-	
 	private Converter defaultConverter;
 	
 	private Mapper mapper;
@@ -62,11 +59,10 @@ public class CustomCGLIBEnhancedConverter implements Converter {
 	 */
 	public void marshal(Object obj, HierarchicalStreamWriter writer, MarshallingContext context) {
 		/*
-		 * through "SerializationMethodInvoker"'s callWriteReplace method, we
-		 * can get the actual type of any cglib proxy
+		 * through the "writeReplace" method of the proxy, or the lazy initializer of a Hibernate
+		 * proxy, we can get the actual type of any cglib proxy
 		 */
-		SerializationMethodInvoker serializationMethodInvoker = new SerializationMethodInvoker();
-		Object newObj = (Object) serializationMethodInvoker.callWriteReplace(obj);
+		Object newObj = ProxyResolver.resolve(obj);
 		
 		/*
 		 * if the proxy represents a sub class, it will give as
@@ -105,8 +101,7 @@ public class CustomCGLIBEnhancedConverter implements Converter {
 	 * @see com.thoughtworks.xstream.converters.ConverterMatcher#canConvert(java.lang.Class)
 	 */
 	public boolean canConvert(Class type) {
-		return (Enhancer.isEnhanced(type) && type.getName().indexOf(DEFAULT_NAMING_MARKER) > 0)
-		        || type == CGLIBMapper.Marker.class;
+		return ProxyResolver.isCGLibProxy(type) || type == CGLIBMapper.Marker.class;
 	}
 	
 }
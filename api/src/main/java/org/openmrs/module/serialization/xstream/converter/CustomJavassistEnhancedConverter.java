@@ -20,11 +20,10 @@ import com.thoughtworks.xstream.converters.Converter;
 import com.thoughtworks.xstream.converters.ConverterLookup;
 import com.thoughtworks.xstream.converters.MarshallingContext;
 import com.thoughtworks.xstream.converters.UnmarshallingContext;
-import com.thoughtworks.xstream.converters.reflection.SerializationMethodInvoker;
 import com.thoughtworks.xstream.io.HierarchicalStreamReader;
 import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 import com.thoughtworks.xstream.mapper.Mapper;
-import org.openmrs.module.serialization.xstream.mapper.JavassistMapper;
+import org.openmrs.module.serialization.xstream.mapper.ProxyResolver;
 
 /**
  * Converter which deals with Javassist proxy's serialization/deserialization. While serializing, it
@@ -58,11 +57,10 @@ public class CustomJavassistEnhancedConverter implements Converter {
 	 */
 	public void marshal(Object obj, HierarchicalStreamWriter writer, MarshallingContext context) {
 		/*
-		 * through "SerializationMethodInvoker"'s callWriteReplace method, we
-		 * can get the actual type of any proxy
+		 * through the "writeReplace" method of the proxy, or the lazy initializer of a Hibernate
+		 * proxy, we can get the actual type of any proxy
 		 */
-		SerializationMethodInvoker serializationMethodInvoker = new SerializationMethodInvoker();
-		Object newObj = (Object) serializationMethodInvoker.callWriteReplace(obj);
+		Object newObj = ProxyResolver.resolve(obj);
 		
 		/*
 		 * if the proxy represents a sub class, it will give as
@@ -101,8 +99,7 @@ public class CustomJavassistEnhancedConverter implements Converter {
 	 * @see com.thoughtworks.xstream.converters.ConverterMatcher#canConvert(java.lang.Class)
 	 */
 	public boolean canConvert(Class type) {
-		return type.getName().indexOf(JavassistMapper.OLD_NAMING_MARKER) > 0
-        || type.getName().indexOf(JavassistMapper.NEW_NAMING_MARKER) > 0;
+		return ProxyResolver.isJavassistProxy(type);
 	}
 	
 }
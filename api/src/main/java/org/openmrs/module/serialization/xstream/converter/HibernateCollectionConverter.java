@@ -33,6 +33,11 @@ public class HibernateCollectionConverter implements Converter {
 		
 	}
 	
+	/**
+	 * @deprecated a converter may be registered with several xstream objects, use
+	 *             {@link #withConverterLookup(ConverterLookup)} instead
+	 */
+	@Deprecated
 	public void setConverterLookup(ConverterLookup converterLookup) {
 		this.converterLookup = converterLookup;
 	}
@@ -41,6 +46,22 @@ public class HibernateCollectionConverter implements Converter {
 		this.converterLookup = converterLookup;
 	}
 	
+	private HibernateCollectionConverter(ConverterLookup converterLookup, CollectionCompatibility collection) {
+		this.converterLookup = converterLookup;
+		this.collection = collection;
+	}
+	
+	/**
+	 * Create a converter for another xstream object, this converter is left as it is so that it can
+	 * be shared by several serializers and by the xstream objects they rebuild
+	 * 
+	 * @param converterLookup - the converters of the xstream object
+	 * @return a new converter delegating to the same collection support as this one
+	 */
+	public HibernateCollectionConverter withConverterLookup(ConverterLookup converterLookup) {
+		return new HibernateCollectionConverter(converterLookup, collection);
+	}
+	
 	/**
 	 * @see com.thoughtworks.xstream.converters.Converter#canConvert(java.lang.Class)
 	 */
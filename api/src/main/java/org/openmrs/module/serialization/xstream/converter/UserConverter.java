@@ -1,11 +1,8 @@
 package org.openmrs.module.serialization.xstream.converter;
 
-import java.util.List;
-
 
 import org.openmrs.User;
-import org.openmrs.module.serialization.xstream.mapper.CGLibMapper;
-import org.openmrs.module.serialization.xstream.mapper.JavassistMapper;
+import org.openmrs.module.serialization.xstream.mapper.ProxyResolver;
 import org.openmrs.module.serialization.xstream.strategy.CustomReferenceByIdMarshaller;
 
 import com.thoughtworks.xstream.XStream;
@@ -15,7 +12,6 @@ import com.thoughtworks.xstream.converters.UnmarshallingContext;
 import com.thoughtworks.xstream.io.HierarchicalStreamReader;
 import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 import com.thoughtworks.xstream.mapper.CGLIBMapper;
-import org.springframework.cglib.proxy.Enhancer;
 
 /**
  * This class is related to ticket#1701. <br/>
@@ -52,9 +48,8 @@ public class UserConverter implements Converter {
 	public void marshal(Object obj, HierarchicalStreamWriter writer,
 			MarshallingContext context) {
 		CustomReferenceByIdMarshaller mashaller = (CustomReferenceByIdMarshaller)context;
-		List<Class> serializedClasses = mashaller.getSerializedClasses();
-		int size = serializedClasses.size();
-		if(size > 1 && User.class.isAssignableFrom(serializedClasses.get(size - 2))){
+		Class parentType = mashaller.getParentType();
+		if(parentType != null && User.class.isAssignableFrom(parentType)){
 			User user = (User) obj;
 			writer.addAttribute("uuid", user.getUuid());
 		}else{
@@ -93,8 +88,7 @@ public class UserConverter implements Converter {
 	 * @return whether type is a type of CGLib proxy
 	 */
 	protected boolean isCGLibProxy(Class type) {
-		return (Enhancer.isEnhanced(type) && type.getName().indexOf(CGLibMapper.marker) > 0)
-		        || type == CGLIBMapper.Marker.class;
+		return ProxyResolver.isCGLibProxy(type) || type == CGLIBMapper.Marker.class;
 	}
 	
 	/**
@@ -104,7 +98,6 @@ public class UserConverter implements Converter {
 	 * @return whether type is a type of Javassist proxy
 	 */
 	protected boolean isJavassistProxy(Class type) {
-        return type.getName().indexOf(JavassistMapper.OLD_NAMING_MARKER) > 0
-                || type.getName().indexOf(JavassistMapper.NEW_NAMING_MARKER) > 0;
+		return ProxyResolver.isJavassistProxy(type);
 	}
 }
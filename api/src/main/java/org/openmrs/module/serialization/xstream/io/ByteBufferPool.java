@@ -0,0 +1,116 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.openmrs.module.serialization.xstream.RuntimeProperties;
+
+/**
+ * A bounded pool of direct byte buffers of the same size, so that the documents written to
+ * channels don't allocate new buffers every time. When the pool is empty a new buffer is
+ * allocated, and a released buffer is dropped when the pool is full. <br/>
+ * <br/>
+ * The default pool is sized by the runtime properties {@link #POOL_SIZE_PROPERTY} (the number of
+ * buffers kept, 16 by default) and {@link #CHUNK_SIZE_PROPERTY} (the size of each buffer in bytes,
+ * 65536 by default).
+ *
+ * @see ChannelOutputStream
+ */
+public class ByteBufferPool {
+	
+	public static final String POOL_SIZE_PROPERTY = "serialization.xstream.buffer.pool.size";
+	
+	public static final String CHUNK_SIZE_PROPERTY = "serialization.xstream.buffer.chunk.size";
+	
+	private static final int DEFAULT_POOL_SIZE = 16;
+	
+	private static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+	
+	private static volatile ByteBufferPool defaultPool = null;
+	
+	private final BlockingQueue<ByteBuffer> buffers;
+	
+	private final int chunkSize;
+	
+	/**
+	 * @param poolSize - the maximum number of buffers kept in the pool
+	 * @param chunkSize - the size in bytes of every buffer
+	 */
+	public ByteBufferPool(int poolSize, int chunkSize) {
+		if (poolSize < 1 || chunkSize < 16) {
+			throw new IllegalArgumentException("Invalid pool size " + poolSize + " or chunk size " + chunkSize);
+		}
+		this.buffers = new ArrayBlockingQueue<ByteBuffer>(poolSize);
+		this.chunkSize = chunkSize;
+	}
+	
+	/**
+	 * Get the pool configured by the runtime properties, it is created the first time it is needed
+	 *
+	 * @return the default pool
+	 */
+	public static ByteBufferPool getDefault() {
+		ByteBufferPool pool = defaultPool;
+		if (pool == null) {
+			synchronized (ByteBufferPool.class) {
+				pool = defaultPool;
+				if (pool == null) {
+					pool = new ByteBufferPool(RuntimeProperties.getInt(POOL_SIZE_PROPERTY, DEFAULT_POOL_SIZE),
+					        RuntimeProperties.getInt(CHUNK_SIZE_PROPERTY, DEFAULT_CHUNK_SIZE));
+					defaultPool = pool;
+				}
+			}
+		}
+		return pool;
+	}
+	
+	/**
+	 * Take a buffer out of the pool, or allocate one if the pool is empty
+	 *
+	 * @return a cleared buffer of {@link #getChunkSize()} bytes
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		return buffer != null ? buffer : ByteBuffer.allocateDirect(chunkSize);
+	}
+	
+	/**
+	 * Give a buffer back to the pool, it must not be used by the caller afterwards
+	 *
+	 * @param buffer - a buffer returned by {@link #acquire()}
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer.capacity() == chunkSize) {
+			buffer.clear();
+			buffers.offer(buffer);
+		}
+	}
+	
+	/**
+	 * @return the size in bytes of the buffers
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+	
+	/**
+	 * @return the number of buffers currently waiting in the pool
+	 */
+	public int getAvailable() {
+		return buffers.size();
+	}
+}
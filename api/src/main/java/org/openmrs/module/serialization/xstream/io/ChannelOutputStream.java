@@ -0,0 +1,140 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Output stream which collects the written bytes in a buffer taken from a {@link ByteBufferPool}
+ * and writes the buffer to a channel whenever it is full. The channel is expected to be blocking,
+ * such as a FileChannel or a blocking SocketChannel. <br/>
+ * <br/>
+ * Closing this stream writes the remaining bytes and gives the buffer back to the pool, the
+ * channel itself is left open. After a failure, {@link #discard()} gives the buffer back without
+ * writing anything more.
+ */
+public class ChannelOutputStream extends OutputStream {
+	
+	private final WritableByteChannel channel;
+	
+	private final ByteBufferPool pool;
+	
+	private ByteBuffer buffer;
+	
+	/**
+	 * @param channel - the channel to write to
+	 * @param pool - the pool the buffer is taken from
+	 */
+	public ChannelOutputStream(WritableByteChannel channel, ByteBufferPool pool) {
+		this.channel = channel;
+		this.pool = pool;
+		this.buffer = pool.acquire();
+	}
+	
+	/**
+	 * @see java.io.OutputStream#write(int)
+	 */
+	@Override
+	public void write(int b) throws IOException {
+		ByteBuffer buffer = getBuffer();
+		if (!buffer.hasRemaining()) {
+			drain();
+		}
+		buffer.put((byte) b);
+	}
+	
+	/**
+	 * @see java.io.OutputStream#write(byte[], int, int)
+	 */
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ByteBuffer buffer = getBuffer();
+		while (len > 0) {
+			if (!buffer.hasRemaining()) {
+				drain();
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+	
+	/**
+	 * Write the collected bytes to the channel
+	 *
+	 * @see java.io.OutputStream#flush()
+	 */
+	@Override
+	public void flush() throws IOException {
+		drain();
+	}
+	
+	/**
+	 * Write the remaining bytes and give the buffer back to the pool, the channel is not closed
+	 *
+	 * @see java.io.OutputStream#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		if (buffer == null) {
+			return;
+		}
+		try {
+			drain();
+		}
+		finally {
+			pool.release(buffer);
+			buffer = null;
+		}
+	}
+	
+	/**
+	 * Give the buffer back to the pool without writing the bytes it holds, so that a document which
+	 * failed half way isn't written any further. The bytes which were written to the channel when
+	 * the buffer was full stay there, and the channel is not closed
+	 */
+	public void discard() {
+		if (buffer != null) {
+			pool.release(buffer);
+			buffer = null;
+		}
+	}
+	
+	/**
+	 * @return the buffer the bytes are collected in, {@link ChannelWriter} encodes into it directly
+	 * @throws IOException if this stream is closed
+	 */
+	ByteBuffer getBuffer() throws IOException {
+		if (buffer == null) {
+			throw new IOException("The stream is closed");
+		}
+		return buffer;
+	}
+	
+	/**
+	 * Write the whole content of the buffer to the channel and clear it
+	 */
+	void drain() throws IOException {
+		ByteBuffer buffer = getBuffer();
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
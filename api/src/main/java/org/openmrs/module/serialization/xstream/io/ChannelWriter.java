@@ -0,0 +1,156 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream.io;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writer which encodes the characters straight into the pooled buffer of a
+ * {@link ChannelOutputStream}, without any intermediate String or byte array. <br/>
+ * <br/>
+ * Closing this writer ends the encoding and closes the stream, which gives its buffer back to the
+ * pool and leaves the channel open.
+ */
+public class ChannelWriter extends Writer {
+	
+	private final ChannelOutputStream out;
+	
+	private final CharsetEncoder encoder;
+	
+	private static final char[] NO_CHARS = new char[0];
+	
+	/*
+	 * a high surrogate ending the last write, it is encoded together with the next character
+	 */
+	private char[] pending = NO_CHARS;
+	
+	private boolean closed = false;
+	
+	/**
+	 * @param out - the stream to encode into
+	 * @param charset - the encoding of the characters
+	 */
+	public ChannelWriter(ChannelOutputStream out, Charset charset) {
+		this.out = out;
+		this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(
+		    CodingErrorAction.REPLACE);
+	}
+	
+	/**
+	 * @see java.io.Writer#write(char[], int, int)
+	 */
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("The writer is closed");
+		}
+		CharBuffer in;
+		if (pending.length > 0) {
+			char[] joined = new char[pending.length + len];
+			System.arraycopy(pending, 0, joined, 0, pending.length);
+			System.arraycopy(cbuf, off, joined, pending.length, len);
+			in = CharBuffer.wrap(joined);
+		} else {
+			in = CharBuffer.wrap(cbuf, off, len);
+		}
+		encode(in, false);
+		keepRemaining(in);
+	}
+	
+	/**
+	 * @see java.io.Writer#write(java.lang.String, int, int)
+	 */
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		if (pending.length > 0) {
+			write(str.toCharArray(), off, len);
+			return;
+		}
+		if (closed) {
+			throw new IOException("The writer is closed");
+		}
+		CharBuffer in = CharBuffer.wrap(str, off, off + len);
+		encode(in, false);
+		keepRemaining(in);
+	}
+	
+	/**
+	 * Write the encoded bytes to the channel
+	 *
+	 * @see java.io.Writer#flush()
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (!closed) {
+			out.flush();
+		}
+	}
+	
+	/**
+	 * End the encoding, write the remaining bytes and close the stream
+	 *
+	 * @see java.io.Writer#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			encode(CharBuffer.wrap(pending), true);
+			while (encoder.flush(out.getBuffer()).isOverflow()) {
+				out.drain();
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Keep the characters the encoder left over, which can only be a dangling high surrogate
+	 */
+	private void keepRemaining(CharBuffer in) {
+		if (in.hasRemaining()) {
+			pending = new char[in.remaining()];
+			in.get(pending);
+		} else {
+			pending = NO_CHARS;
+		}
+	}
+	
+	/**
+	 * Encode the given characters into the buffer of the stream, the buffer is drained each time
+	 * it is full
+	 */
+	private void encode(CharBuffer in, boolean endOfInput) throws IOException {
+		while (true) {
+			CoderResult result = encoder.encode(in, out.getBuffer(), endOfInput);
+			if (result.isOverflow()) {
+				out.drain();
+			} else if (result.isUnderflow()) {
+				return;
+			} else {
+				result.throwException();
+			}
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream.io;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URL;
+
+import com.thoughtworks.xstream.io.HierarchicalStreamDriver;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.StreamException;
+import com.thoughtworks.xstream.io.xml.CompactWriter;
+import com.thoughtworks.xstream.io.xml.PrettyPrintWriter;
+
+/**
+ * Driver which writes xml without any indentation or line break between the elements, the
+ * documents are read by the wrapped driver as usual. The writers of the wrapped driver are used
+ * as they are unless they indent, a pretty printing writer is replaced by a compact one
+ *
+ * @see org.openmrs.module.serialization.xstream.WireProfile#COMPACT
+ */
+public class CompactDriver implements HierarchicalStreamDriver {
+	
+	private final HierarchicalStreamDriver driver;
+	
+	/**
+	 * @param driver - the driver the readers are created by
+	 */
+	public CompactDriver(HierarchicalStreamDriver driver) {
+		this.driver = driver;
+	}
+	
+	/**
+	 * @see com.thoughtworks.xstream.io.HierarchicalStreamDriver#createWriter(java.io.Writer)
+	 */
+	public HierarchicalStreamWriter createWriter(Writer out) {
+		HierarchicalStreamWriter writer = driver.createWriter(out);
+		// nothing is written to out before the first node, so the indenting writer can be dropped
+		if (writer instanceof PrettyPrintWriter && !(writer instanceof CompactWriter)) {
+			return new CompactWriter(out);
+		}
+		return writer;
+	}
+	
+	/**
+	 * @see com.thoughtworks.xstream.io.HierarchicalStreamDriver#createWriter(java.io.OutputStream)
+	 */
+	public HierarchicalStreamWriter createWriter(OutputStream out) {
+		try {
+			return createWriter(new OutputStreamWriter(out, "UTF-8"));
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new StreamException(e);
+		}
+	}
+	
+	/**
+	 * @see com.thoughtworks.xstream.io.HierarchicalStreamDriver#createReader(java.io.Reader)
+	 */
+	public HierarchicalStreamReader createReader(Reader in) {
+		return driver.createReader(in);
+	}
+	
+	/**
+	 * @see com.thoughtworks.xstream.io.HierarchicalStreamDriver#createReader(java.io.InputStream)
+	 */
+	public HierarchicalStreamReader createReader(InputStream in) {
+		return driver.createReader(in);
+	}
+	
+	/**
+	 * @see com.thoughtworks.xstream.io.HierarchicalStreamDriver#createReader(java.net.URL)
+	 */
+	public HierarchicalStreamReader createReader(URL in) {
+		return driver.createReader(in);
+	}
+	
+	/**
+	 * @see com.thoughtworks.xstream.io.HierarchicalStreamDriver#createReader(java.io.File)
+	 */
+	public HierarchicalStreamReader createReader(File in) {
+		return driver.createReader(in);
+	}
+}
@@ -0,0 +1,210 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.io.HierarchicalStreamDriver;
+import com.thoughtworks.xstream.io.StreamException;
+
+/**
+ * Reads the children of the root element of a document using several threads, such as a document
+ * written by {@link XStreamObjectWriter}. The records are found by a {@link RecordScanner} in the
+ * calling thread, and each record is parsed and unmarshalled with its own unmarshalling context
+ * in a {@link ForkJoinPool}. The records are returned in the order of the document. <br/>
+ * <br/>
+ * At most a given number of records is read ahead, so the memory used does not depend on the size
+ * of the document. As with {@link XStreamObjectReader}, references between records are not
+ * supported, so a document written by a session writer is rejected, and an error while reading a record is thrown from {@link #next()} as an unchecked
+ * {@link com.thoughtworks.xstream.XStreamException}. <br/>
+ * <br/>
+ * The worker threads run as the user of the given user context, so that the converters looking
+ * objects up through the OpenMRS services work, each lookup then runs in its own transaction.
+ *
+ * @see org.openmrs.module.serialization.xstream.XStreamSerializer#createParallelObjectReader(java.io.Reader,
+ *      Class)
+ */
+public class ParallelObjectReader<T> implements Iterator<T>, Closeable {
+	
+	private final XStream xstream;
+	
+	private final HierarchicalStreamDriver driver;
+	
+	private final RecordScanner scanner;
+	
+	private final Class<T> type;
+	
+	private final ForkJoinPool pool;
+	
+	private final int readAhead;
+	
+	private final UserContext userContext;
+	
+	private final Thread caller = Thread.currentThread();
+	
+	// the records being unmarshalled, in the order of the document
+	private final Deque<ForkJoinTask<Object>> pending = new ArrayDeque<ForkJoinTask<Object>>();
+	
+	private boolean scanned = false;
+	
+	private int count = 0;
+	
+	/**
+	 * @param xstream - the configured xstream object of the serializer
+	 * @param driver - the driver parsing each record, it must not be binary
+	 * @param scanner - the scanner of the document, it is closed by {@link #close()}
+	 * @param type - the type of every record
+	 * @param pool - the pool unmarshalling the records
+	 * @param readAhead - the maximum number of records being unmarshalled at once
+	 * @param userContext - the user context of the worker threads, or null to leave them as they
+	 *            are
+	 * @throws ConversionException if the records of the document reference each other
+	 * @throws StreamException if the root element can't be read
+	 */
+	public ParallelObjectReader(XStream xstream, HierarchicalStreamDriver driver, RecordScanner scanner, Class<T> type,
+	    ForkJoinPool pool, int readAhead, UserContext userContext) {
+		if (readAhead < 1) {
+			throw new IllegalArgumentException("Invalid read ahead " + readAhead);
+		}
+		String references;
+		try {
+			references = scanner.getRootAttribute(XStreamObjectWriter.REFERENCES_ATTRIBUTE);
+		}
+		catch (IOException e) {
+			throw new StreamException("Unable to read the root element", e);
+		}
+		if (XStreamObjectWriter.SESSION.equals(references)) {
+			throw new ConversionException("The records of a session document reference each other and can't be read "
+			        + "in parallel, use XStreamSerializer#createObjectReader");
+		}
+		this.xstream = xstream;
+		this.driver = driver;
+		this.scanner = scanner;
+		this.type = type;
+		this.pool = pool;
+		this.readAhead = readAhead;
+		this.userContext = userContext;
+	}
+	
+	/**
+	 * @see java.util.Iterator#hasNext()
+	 */
+	public boolean hasNext() {
+		fill();
+		return !pending.isEmpty();
+	}
+	
+	/**
+	 * Wait for the next record, more records are then handed to the pool
+	 *
+	 * @see java.util.Iterator#next()
+	 */
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Object o = pending.poll().join();
+		count++;
+		if (o != null && !type.isInstance(o)) {
+			throw new ConversionException("Record " + count + " is a " + o.getClass().getName() + ", not a "
+			        + type.getName());
+		}
+		fill();
+		return type.cast(o);
+	}
+	
+	/**
+	 * @see java.util.Iterator#remove()
+	 */
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+	
+	/**
+	 * @return the number of records returned so far
+	 */
+	public int getCount() {
+		return count;
+	}
+	
+	/**
+	 * Cancel the records read ahead and close the underlying reader
+	 *
+	 * @see java.io.Closeable#close()
+	 */
+	public void close() {
+		for (ForkJoinTask<Object> task : pending) {
+			task.cancel(false);
+		}
+		pending.clear();
+		scanned = true;
+		try {
+			scanner.close();
+		}
+		catch (IOException e) {
+			throw new StreamException(e);
+		}
+	}
+	
+	/**
+	 * Hand records to the pool until enough of them are being unmarshalled
+	 */
+	private void fill() {
+		while (!scanned && pending.size() < readAhead) {
+			final String record;
+			try {
+				record = scanner.next();
+			}
+			catch (IOException e) {
+				throw new StreamException("Unable to read record " + (count + pending.size() + 1), e);
+			}
+			if (record == null) {
+				scanned = true;
+			} else {
+				pending.add(pool.submit(new Callable<Object>() {
+					
+					public Object call() {
+						// a pool may run the record in the calling thread when it waits for it
+						boolean otherThread = userContext != null && Thread.currentThread() != caller;
+						if (otherThread) {
+							Context.setUserContext(userContext);
+						}
+						try {
+							return xstream.unmarshal(driver.createReader(new StringReader(record)));
+						}
+						finally {
+							if (otherThread) {
+								Context.clearUserContext();
+							}
+						}
+					}
+				}));
+			}
+		}
+	}
+}
@@ -0,0 +1,325 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+import com.thoughtworks.xstream.io.StreamException;
+
+/**
+ * Splits an xml document into the children of its root element without parsing them, so that
+ * each record can then be parsed on its own by another thread. Only the markup needed to follow
+ * the depth of the elements is looked at: tags, with their quoted attribute values, comments,
+ * CDATA sections, processing instructions and declarations. <br/>
+ * <br/>
+ * The text of a record is returned as it is in the document, the namespace and entity
+ * declarations of the root element are not copied into it, which xstream documents never need.
+ * A truncated or malformed document is reported by a {@link StreamException} naming the offset,
+ * in characters, of the record or of the root element where the scanner stopped.
+ *
+ * @see ParallelObjectReader
+ */
+public class RecordScanner implements Closeable {
+	
+	private final Reader reader;
+	
+	private final char[] buffer = new char[8192];
+	
+	private int position = 0;
+	
+	private int limit = 0;
+	
+	// the number of characters read so far
+	private long offset = 0;
+	
+	// the offset of the markup being read
+	private long markupOffset = 0;
+	
+	// the number and offset of the record being read, the offset is -1 between the records
+	private int records = 0;
+	
+	private long recordOffset = -1;
+	
+	// 0 outside the root element, 1 between the records
+	private int depth = 0;
+	
+	private boolean rootClosed = false;
+	
+	// the start tag of the root element, null until it has been read
+	private String rootTag = null;
+	
+	private long rootOffset = 0;
+	
+	/**
+	 * @param reader - the document to split, it is closed by {@link #close()}
+	 */
+	public RecordScanner(Reader reader) {
+		this.reader = reader;
+	}
+	
+	/**
+	 * Read the next child of the root element
+	 *
+	 * @return the text of the record, or null if there are no more records
+	 * @throws IOException if the document can't be read
+	 * @throws StreamException if the document ends in the middle of a record
+	 */
+	public String next() throws IOException {
+		if (depth == 0 && !rootClosed) {
+			readRoot();
+		}
+		if (rootClosed) {
+			return null;
+		}
+		StringBuilder record = null;
+		StringBuilder markup = new StringBuilder();
+		int c;
+		while ((c = read()) != -1) {
+			if (c != '<') {
+				if (record != null) {
+					record.append((char) c);
+				}
+				continue;
+			}
+			markup.setLength(0);
+			markup.append('<');
+			markupOffset = offset - 1;
+			if (depth == 1) {
+				recordOffset = markupOffset;
+				records++;
+			}
+			boolean start = readMarkup(markup);
+			boolean end = !start && markup.charAt(1) == '/';
+			if (start && depth == 1) {
+				record = new StringBuilder();
+			} else if (depth == 1) {
+				// a comment or a processing instruction between the records
+				recordOffset = -1;
+				records--;
+			}
+			if (record != null) {
+				record.append(markup);
+			}
+			if (start && markup.charAt(markup.length() - 2) != '/') {
+				depth++;
+			} else if (end) {
+				depth--;
+				if (depth == 0) {
+					rootClosed = true;
+					return null;
+				}
+			}
+			if (record != null && depth == 1) {
+				recordOffset = -1;
+				return record.toString();
+			}
+		}
+		if (record != null) {
+			throw new StreamException("The document ends in the middle of record " + records + " at offset "
+			        + recordOffset);
+		}
+		if (depth > 0) {
+			throw new StreamException("The document ends at offset " + offset + " before its root element is closed");
+		}
+		return null;
+	}
+	
+	/**
+	 * Read an attribute of the root element, the root element is read first if no record has been
+	 * read yet. The value is returned as it is written, entities are not replaced.
+	 *
+	 * @param name - the name of the attribute
+	 * @return the value of the attribute, or null if the root element doesn't have it
+	 * @throws IOException if the document can't be read
+	 * @throws StreamException if the root element is truncated or malformed
+	 */
+	public String getRootAttribute(String name) throws IOException {
+		if (depth == 0 && !rootClosed) {
+			readRoot();
+		}
+		if (rootTag == null) {
+			return null;
+		}
+		// skip the name of the element
+		int i = 1;
+		while (i < rootTag.length() && !isTagEnd(rootTag.charAt(i))) {
+			i++;
+		}
+		while (true) {
+			i = skipWhitespace(i);
+			if (i == rootTag.length() || rootTag.charAt(i) == '/' || rootTag.charAt(i) == '>') {
+				return null;
+			}
+			int start = i;
+			while (i < rootTag.length() && rootTag.charAt(i) != '=' && !isTagEnd(rootTag.charAt(i))) {
+				i++;
+			}
+			String attribute = rootTag.substring(start, i);
+			i = skipWhitespace(i);
+			if (i == rootTag.length() || rootTag.charAt(i) != '=') {
+				throw malformedRoot(attribute);
+			}
+			i = skipWhitespace(i + 1);
+			if (i == rootTag.length() || (rootTag.charAt(i) != '"' && rootTag.charAt(i) != '\'')) {
+				throw malformedRoot(attribute);
+			}
+			char quote = rootTag.charAt(i);
+			int end = rootTag.indexOf(quote, i + 1);
+			if (end == -1) {
+				throw malformedRoot(attribute);
+			}
+			if (attribute.equals(name)) {
+				return rootTag.substring(i + 1, end);
+			}
+			i = end + 1;
+		}
+	}
+	
+	/**
+	 * Close the underlying reader
+	 *
+	 * @see java.io.Closeable#close()
+	 */
+	public void close() throws IOException {
+		reader.close();
+	}
+	
+	/**
+	 * Read the rest of the markup starting with the "&lt;" already in the given builder
+	 *
+	 * @return whether the markup is a start tag, including an empty element tag
+	 */
+	private boolean readMarkup(StringBuilder markup) throws IOException {
+		int c = readOrFail();
+		markup.append((char) c);
+		if (c == '?') {
+			readUntil(markup, "?>");
+			return false;
+		}
+		if (c == '!') {
+			c = readOrFail();
+			markup.append((char) c);
+			if (c == '-') {
+				readUntil(markup, "-->");
+			} else if (c == '[') {
+				readUntil(markup, "]]>");
+			} else {
+				readUntil(markup, ">");
+			}
+			return false;
+		}
+		// a tag, a ">" may only be found in the quoted attribute values
+		int quote = 0;
+		do {
+			c = readOrFail();
+			markup.append((char) c);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+			} else if (c == '"' || c == '\'') {
+				quote = c;
+			}
+		} while (quote != 0 || c != '>');
+		return markup.charAt(1) != '/';
+	}
+	
+	/**
+	 * Read up to the end of the start tag of the root element
+	 */
+	private void readRoot() throws IOException {
+		StringBuilder markup = new StringBuilder();
+		int c;
+		while ((c = read()) != -1) {
+			if (c != '<') {
+				continue;
+			}
+			markup.setLength(0);
+			markup.append('<');
+			markupOffset = offset - 1;
+			if (readMarkup(markup)) {
+				rootTag = markup.toString();
+				rootOffset = markupOffset;
+				if (markup.charAt(markup.length() - 2) == '/') {
+					rootClosed = true;
+				} else {
+					depth = 1;
+				}
+				return;
+			}
+		}
+		// an empty document has no records
+		rootClosed = true;
+	}
+	
+	private int skipWhitespace(int i) {
+		while (i < rootTag.length() && Character.isWhitespace(rootTag.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+	
+	private StreamException malformedRoot(String attribute) {
+		return new StreamException("The attribute " + attribute + " of the root element at offset " + rootOffset
+		        + " is malformed");
+	}
+	
+	private boolean isTagEnd(char c) {
+		return Character.isWhitespace(c) || c == '/' || c == '>';
+	}
+	
+	private void readUntil(StringBuilder markup, String terminator) throws IOException {
+		int start = markup.length();
+		do {
+			markup.append((char) readOrFail());
+		} while (markup.length() - start < terminator.length() || !endsWith(markup, terminator));
+	}
+	
+	private boolean endsWith(StringBuilder markup, String terminator) {
+		int offset = markup.length() - terminator.length();
+		for (int i = 0; i < terminator.length(); i++) {
+			if (markup.charAt(offset + i) != terminator.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private int readOrFail() throws IOException {
+		int c = read();
+		if (c == -1) {
+			if (recordOffset != -1) {
+				throw new StreamException("The document ends in the middle of a markup at offset " + markupOffset
+				        + ", in record " + records + " at offset " + recordOffset);
+			}
+			throw new StreamException("The document ends in the middle of a markup at offset " + markupOffset);
+		}
+		return c;
+	}
+	
+	private int read() throws IOException {
+		if (position == limit) {
+			limit = reader.read(buffer, 0, buffer.length);
+			position = 0;
+			if (limit <= 0) {
+				limit = 0;
+				return -1;
+			}
+		}
+		offset++;
+		return buffer[position++];
+	}
+}
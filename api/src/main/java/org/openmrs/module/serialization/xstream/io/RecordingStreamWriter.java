@@ -0,0 +1,156 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream.io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.thoughtworks.xstream.io.ExtendedHierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.ExtendedHierarchicalStreamWriterHelper;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+/**
+ * Keeps everything written to it in memory, so that it can be written later to another writer
+ * with {@link #replay(HierarchicalStreamWriter)}. It is used to write fragments of one document in
+ * other threads, each fragment is then replayed into the real writer in order. <br/>
+ * <br/>
+ * Any number of root elements can be written, nothing is checked until the fragment is replayed.
+ *
+ * @see org.openmrs.module.serialization.xstream.strategy.ParallelCollectionMarshaller
+ */
+public class RecordingStreamWriter implements ExtendedHierarchicalStreamWriter {
+	
+	private static final byte START_NODE = 0;
+	
+	private static final byte ADD_ATTRIBUTE = 1;
+	
+	private static final byte SET_VALUE = 2;
+	
+	private static final byte END_NODE = 3;
+	
+	private byte[] events = new byte[64];
+	
+	private int size = 0;
+	
+	// the names, classes and values of the events, in the order of the events
+	private final List<Object> arguments = new ArrayList<Object>();
+	
+	/**
+	 * @see com.thoughtworks.xstream.io.ExtendedHierarchicalStreamWriter#startNode(java.lang.String,
+	 *      java.lang.Class)
+	 */
+	public void startNode(String name, Class clazz) {
+		add(START_NODE);
+		arguments.add(name);
+		arguments.add(clazz);
+	}
+	
+	/**
+	 * @see com.thoughtworks.xstream.io.HierarchicalStreamWriter#startNode(java.lang.String)
+	 */
+	public void startNode(String name) {
+		startNode(name, null);
+	}
+	
+	/**
+	 * @see com.thoughtworks.xstream.io.HierarchicalStreamWriter#addAttribute(java.lang.String,
+	 *      java.lang.String)
+	 */
+	public void addAttribute(String name, String value) {
+		add(ADD_ATTRIBUTE);
+		arguments.add(name);
+		arguments.add(value);
+	}
+	
+	/**
+	 * @see com.thoughtworks.xstream.io.HierarchicalStreamWriter#setValue(java.lang.String)
+	 */
+	public void setValue(String text) {
+		add(SET_VALUE);
+		arguments.add(text);
+	}
+	
+	/**
+	 * @see com.thoughtworks.xstream.io.HierarchicalStreamWriter#endNode()
+	 */
+	public void endNode() {
+		add(END_NODE);
+	}
+	
+	/**
+	 * Nothing is written until the fragment is replayed
+	 *
+	 * @see com.thoughtworks.xstream.io.HierarchicalStreamWriter#flush()
+	 */
+	public void flush() {
+	}
+	
+	/**
+	 * @see com.thoughtworks.xstream.io.HierarchicalStreamWriter#close()
+	 */
+	public void close() {
+	}
+	
+	/**
+	 * @see com.thoughtworks.xstream.io.HierarchicalStreamWriter#underlyingWriter()
+	 */
+	public HierarchicalStreamWriter underlyingWriter() {
+		return this;
+	}
+	
+	/**
+	 * Write everything written so far to the given writer, in the same order
+	 *
+	 * @param writer - the writer to write to, it is neither flushed nor closed
+	 */
+	public void replay(HierarchicalStreamWriter writer) {
+		int argument = 0;
+		for (int i = 0; i < size; i++) {
+			switch (events[i]) {
+				case START_NODE:
+					String name = (String) arguments.get(argument++);
+					Class clazz = (Class) arguments.get(argument++);
+					if (clazz == null) {
+						writer.startNode(name);
+					} else {
+						ExtendedHierarchicalStreamWriterHelper.startNode(writer, name, clazz);
+					}
+					break;
+				case ADD_ATTRIBUTE:
+					writer.addAttribute((String) arguments.get(argument++), (String) arguments.get(argument++));
+					break;
+				case SET_VALUE:
+					writer.setValue((String) arguments.get(argument++));
+					break;
+				default:
+					writer.endNode();
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of calls recorded so far
+	 */
+	public int size() {
+		return size;
+	}
+	
+	private void add(byte event) {
+		if (size == events.length) {
+			events = Arrays.copyOf(events, size * 2);
+		}
+		events[size++] = event;
+	}
+}
@@ -0,0 +1,46 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream.io;
+
+import java.io.Writer;
+
+import javax.xml.stream.XMLStreamException;
+
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.StreamException;
+import com.thoughtworks.xstream.io.xml.StaxDriver;
+
+/**
+ * StAX driver whose writers don't start the document with an xml declaration, like the writers
+ * of the XPP3 driver. That way the output of a serializer is the same whatever its driver, and
+ * the serializer can write its own declaration naming the encoding in front of it.
+ *
+ * @see org.openmrs.module.serialization.xstream.XStreamSerializer#serialize(Object,
+ *      java.io.OutputStream, String)
+ */
+public class UndeclaredStaxDriver extends StaxDriver {
+	
+	/**
+	 * @see com.thoughtworks.xstream.io.xml.StaxDriver#createWriter(java.io.Writer)
+	 */
+	@Override
+	public HierarchicalStreamWriter createWriter(Writer out) {
+		try {
+			return createStaxWriter(getOutputFactory().createXMLStreamWriter(out), false);
+		}
+		catch (XMLStreamException e) {
+			throw new StreamException(e);
+		}
+	}
+}
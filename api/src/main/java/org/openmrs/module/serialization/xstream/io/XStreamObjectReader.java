@@ -0,0 +1,138 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream.io;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.core.ReferenceByIdUnmarshaller;
+import com.thoughtworks.xstream.core.TreeUnmarshaller;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+
+/**
+ * Reads the children of the root element of a document one at a time, such as a document written
+ * by {@link XStreamObjectWriter}. Only the record being read is held in memory, so the records of
+ * an import can be processed and saved while the rest of the document is still being parsed. <br/>
+ * <br/>
+ * Each record is unmarshalled with its own unmarshalling context through the converters of the
+ * serializer which created this reader, references between records are not supported, unless
+ * the document was written by a session {@link XStreamObjectWriter}. The records of such a
+ * document are read with one unmarshalling context, which keeps every object read so far. An error
+ * while reading a record is thrown from {@link #next()} as an unchecked
+ * {@link com.thoughtworks.xstream.XStreamException}.
+ *
+ * <pre>
+ * XStreamObjectReader&lt;Patient&gt; in = serializer.createObjectReader(reader, Patient.class);
+ * try {
+ *     while (in.hasNext()) {
+ *         Context.getPatientService().savePatient(in.next());
+ *     }
+ * }
+ * finally {
+ *     in.close();
+ * }
+ * </pre>
+ *
+ * @see org.openmrs.module.serialization.xstream.XStreamSerializer#createObjectReader(java.io.Reader,
+ *      Class)
+ */
+public class XStreamObjectReader<T> implements Iterator<T>, Closeable {
+	
+	private final XStream xstream;
+	
+	private final HierarchicalStreamReader reader;
+	
+	private final Class<T> type;
+	
+	// reads every record of a session, null if each record has its own context
+	private final TreeUnmarshaller session;
+	
+	private int count = 0;
+	
+	/**
+	 * @param xstream - the configured xstream object of the serializer
+	 * @param reader - the reader positioned on the root element, it is closed by {@link #close()}
+	 * @param type - the type of every record
+	 */
+	public XStreamObjectReader(XStream xstream, HierarchicalStreamReader reader, Class<T> type) {
+		this.xstream = xstream;
+		this.reader = reader;
+		this.type = type;
+		if (XStreamObjectWriter.SESSION.equals(reader.getAttribute(XStreamObjectWriter.REFERENCES_ATTRIBUTE))) {
+			this.session = new ReferenceByIdUnmarshaller(null, reader, xstream.getConverterLookup(), xstream.getMapper());
+		} else {
+			this.session = null;
+		}
+	}
+	
+	/**
+	 * @see java.util.Iterator#hasNext()
+	 */
+	public boolean hasNext() {
+		return reader.hasMoreChildren();
+	}
+	
+	/**
+	 * Read the next record
+	 *
+	 * @see java.util.Iterator#next()
+	 */
+	public T next() {
+		if (!reader.hasMoreChildren()) {
+			throw new NoSuchElementException();
+		}
+		reader.moveDown();
+		Object o = session != null ? session.start(null) : xstream.unmarshal(reader);
+		reader.moveUp();
+		count++;
+		if (o != null && !type.isInstance(o)) {
+			throw new ConversionException("Record " + count + " is a " + o.getClass().getName() + ", not a "
+			        + type.getName());
+		}
+		return type.cast(o);
+	}
+	
+	/**
+	 * @see java.util.Iterator#remove()
+	 */
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+	
+	/**
+	 * @return the number of records read so far
+	 */
+	public int getCount() {
+		return count;
+	}
+	
+	/**
+	 * @return whether the records can reference the objects of the previous ones
+	 */
+	public boolean isSession() {
+		return session != null;
+	}
+	
+	/**
+	 * Close the underlying reader
+	 *
+	 * @see java.io.Closeable#close()
+	 */
+	public void close() {
+		reader.close();
+	}
+}
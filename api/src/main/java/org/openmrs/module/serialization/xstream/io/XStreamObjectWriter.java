@@ -0,0 +1,174 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream.io;
+
+import java.io.Closeable;
+import java.io.Flushable;
+
+import org.openmrs.module.serialization.xstream.strategy.CustomReferenceByIdMarshaller;
+import org.openmrs.module.serialization.xstream.strategy.CustomReferenceByIdMarshallingStrategy;
+import org.openmrs.serialization.SerializationException;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.XStreamException;
+import com.thoughtworks.xstream.converters.DataHolder;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+/**
+ * Writes any number of objects as the children of one root element, so that a bulk export is a
+ * single well formed document which is written as it goes. <br/>
+ * <br/>
+ * Each object is marshalled with its own marshalling context, that is every record starts with an
+ * empty reference dictionary and ids restarting from "1", and is flushed once it is written. So
+ * the memory used does not depend on how many records are exported, and each record can be read
+ * back on its own by {@link XStreamObjectReader}. A consequence is that objects shared by two
+ * records are written in both of them. <br/>
+ * <br/>
+ * A session writer instead marshals all the records with one marshalling context, so that an
+ * object already written by a record, such as the person, concept or location of a batch of obs,
+ * is written as a reference to its id by the next records. The root element is then marked with
+ * a {@link #REFERENCES_ATTRIBUTE} attribute, and {@link XStreamObjectReader} reads the document
+ * with one unmarshalling context too. The root of each record is marked with the attribute
+ * {@link CustomReferenceByIdMarshaller#ROOT_ATTRIBUTE}, as its id is only "1" in the first record.
+ * The records are written by the marshalling strategy of the xstream object, which keeps the
+ * context of the session in a data holder, so the session follows the reference mode of the
+ * serializer. The records of a session can only be read in order and from the start of the
+ * document, and both ends keep every object of the session in memory until the document is
+ * closed, so a session is meant for a batch rather than for a whole export.
+ *
+ * <pre>
+ * XStreamObjectWriter out = serializer.createObjectWriter(writer);
+ * try {
+ *     for (Patient patient : patients) {
+ *         out.write(patient);
+ *     }
+ * }
+ * finally {
+ *     out.close();
+ * }
+ * </pre>
+ *
+ * @see org.openmrs.module.serialization.xstream.XStreamSerializer#createObjectWriter(java.io.Writer)
+ */
+public class XStreamObjectWriter implements Closeable, Flushable {
+	
+	/**
+	 * the attribute of the root element telling how the records reference each other
+	 */
+	public static final String REFERENCES_ATTRIBUTE = "references";
+	
+	/**
+	 * the value of {@link #REFERENCES_ATTRIBUTE} when the records are written by a session
+	 */
+	public static final String SESSION = "session";
+	
+	private final XStream xstream;
+	
+	private final HierarchicalStreamWriter writer;
+	
+	// holds the marshalling context of a session, null if each record has its own context
+	private final DataHolder session;
+	
+	private int count = 0;
+	
+	private boolean closed = false;
+	
+	/**
+	 * Start the document, the root element is written at once
+	 *
+	 * @param xstream - the configured xstream object of the serializer
+	 * @param writer - the writer to write to, it is closed by {@link #close()}
+	 * @param rootNodeName - the name of the root element
+	 */
+	public XStreamObjectWriter(XStream xstream, HierarchicalStreamWriter writer, String rootNodeName) {
+		this(xstream, writer, rootNodeName, false);
+	}
+	
+	/**
+	 * Start the document, the root element is written at once
+	 *
+	 * @param xstream - the configured xstream object of the serializer
+	 * @param writer - the writer to write to, it is closed by {@link #close()}
+	 * @param rootNodeName - the name of the root element
+	 * @param session - true to let the records reference the objects of the previous ones
+	 */
+	public XStreamObjectWriter(XStream xstream, HierarchicalStreamWriter writer, String rootNodeName, boolean session) {
+		this.xstream = xstream;
+		this.writer = writer;
+		writer.startNode(rootNodeName);
+		if (session) {
+			writer.addAttribute(REFERENCES_ATTRIBUTE, SESSION);
+			this.session = xstream.newDataHolder();
+			this.session.put(CustomReferenceByIdMarshallingStrategy.SESSION_CONTEXT, Boolean.TRUE);
+		} else {
+			this.session = null;
+		}
+	}
+	
+	/**
+	 * Write the next record and flush it
+	 *
+	 * @param o - the object to write
+	 * @throws SerializationException
+	 */
+	public void write(Object o) throws SerializationException {
+		if (closed) {
+			throw new SerializationException("The object writer has already been closed");
+		}
+		try {
+			xstream.marshal(o, writer, session);
+			writer.flush();
+			count++;
+		}
+		catch (XStreamException e) {
+			throw new SerializationException("Unable to serialize record " + (count + 1) + ": " + o, e);
+		}
+	}
+	
+	/**
+	 * @return the number of records written so far
+	 */
+	public int getCount() {
+		return count;
+	}
+	
+	/**
+	 * @return whether the records can reference the objects of the previous ones
+	 */
+	public boolean isSession() {
+		return session != null;
+	}
+	
+	/**
+	 * @see java.io.Flushable#flush()
+	 */
+	public void flush() {
+		writer.flush();
+	}
+	
+	/**
+	 * End the root element and close the underlying writer, calling this more than once has no
+	 * effect
+	 *
+	 * @see java.io.Closeable#close()
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		writer.endNode();
+		writer.close();
+	}
+}
@@ -1,7 +1,5 @@
 package org.openmrs.module.serialization.xstream.mapper;
 
-import org.openmrs.util.OpenmrsClassLoader;
-
 import com.thoughtworks.xstream.mapper.Mapper;
 import com.thoughtworks.xstream.mapper.MapperWrapper;
 
@@ -26,17 +24,12 @@ public class CGLibMapper extends MapperWrapper {
 	 */
 	@SuppressWarnings("unchecked")
 	public String serializedClass(Class type) {
-		String classNameWithoutEnhanced = removeSignature(super.serializedClass(type));
-		Class actualClass = null;
-		try {
-			//here re-get the actual class in order to put the alias name of the acutal class(which is delegated by cglib proxy) into xml string
-			actualClass = OpenmrsClassLoader.getInstance().loadClass(classNameWithoutEnhanced);
-		}
-		catch (ClassNotFoundException e) {
-			return classNameWithoutEnhanced;
+		ProxyResolver.Kind kind = type != null ? ProxyResolver.getKind(type) : ProxyResolver.Kind.NONE;
+		if (kind == ProxyResolver.Kind.CGLIB || kind == ProxyResolver.Kind.BYTE_BUDDY) {
+			//here assure xstream can get the alias name of the actual class which is proxied by cglib
+			return super.serializedClass(ProxyResolver.getTargetClass(type));
 		}
-		//here assure xstream can get the alias name of the actual class which is proxied by cglib
-		return super.serializedClass(actualClass);
+		return super.serializedClass(type);
 	}
 	
 	/**
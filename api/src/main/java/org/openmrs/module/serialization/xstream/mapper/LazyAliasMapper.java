@@ -0,0 +1,219 @@
+package org.openmrs.module.serialization.xstream.mapper;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.openmrs.util.OpenmrsClassLoader;
+
+import com.thoughtworks.xstream.mapper.ClassAliasingMapper;
+import com.thoughtworks.xstream.mapper.Mapper;
+import com.thoughtworks.xstream.mapper.MapperWrapper;
+
+/**
+ * Mapper that aliases the classes of the serialized packages on demand, we will use such a form,
+ * alias "user" for "org.openmrs.User.class". The alias principle is to low the first letter of the
+ * simple name of the class. <br/>
+ * <br/>
+ * Instead of registering an alias for every class of those packages up front, the alias of a class
+ * is computed the first time it is serialized, and the class of an alias is derived from it the
+ * first time it is deserialized. Both directions are memoized in an {@link AliasCache}, so only
+ * the types which are actually used are loaded and remembered. <br/>
+ * <br/>
+ * The aliases registered on xstream explicitly take precedence in both directions, and an array is
+ * named after the alias of its component type, for example "patient-array".
+ *
+ * @see org.openmrs.module.serialization.xstream.XStreamSerializer#commonConfig()
+ */
+public class LazyAliasMapper extends MapperWrapper {
+	
+	private static final String ARRAY_SUFFIX = "-array";
+	
+	private final AliasCache aliases;
+	
+	/*
+	 * holds the aliases registered on xstream, it is null if the wrapped mapper has none
+	 */
+	private final ClassAliasingMapper explicitAliases;
+	
+	/**
+	 * @param wrapped
+	 * @param packageNames - the packages whose classes get aliased
+	 * @param indexedClassNames - the names of all classes in those packages as listed in the alias
+	 *            index, or null if the index can't be used
+	 */
+	public LazyAliasMapper(Mapper wrapped, Collection<String> packageNames, Collection<String> indexedClassNames) {
+		this(wrapped, new AliasCache(packageNames, indexedClassNames));
+	}
+	
+	/**
+	 * @param wrapped
+	 * @param aliases - the memoized aliases, they can be shared by the mappers of several xstream
+	 *            objects
+	 */
+	public LazyAliasMapper(Mapper wrapped, AliasCache aliases) {
+		super(wrapped);
+		this.aliases = aliases;
+		this.explicitAliases = (ClassAliasingMapper) wrapped.lookupMapperOfType(ClassAliasingMapper.class);
+	}
+	
+	/**
+	 * @see com.thoughtworks.xstream.mapper.Mapper#serializedClass(java.lang.Class)
+	 */
+	@SuppressWarnings("unchecked")
+	public String serializedClass(Class type) {
+		String serializedName = super.serializedClass(type);
+		if (type != null && type.isArray()) {
+			// the wrapped mappers name an array after its component type without going through this mapper
+			if (serializedName.equals(super.serializedClass(type.getComponentType()) + ARRAY_SUFFIX)) {
+				return serializedClass(type.getComponentType()) + ARRAY_SUFFIX;
+			}
+			return serializedName;
+		}
+		if (type == null || !type.getName().equals(serializedName)) {
+			// this class has been aliased explicitly
+			return serializedName;
+		}
+		return aliases.aliasFor(type);
+	}
+	
+	/**
+	 * @see com.thoughtworks.xstream.mapper.Mapper#realClass(java.lang.String)
+	 */
+	public Class realClass(String elementName) {
+		if (explicitAliases != null && explicitAliases.aliasIsAttribute(elementName)) {
+			// the name has been registered as an alias explicitly
+			return super.realClass(elementName);
+		}
+		if (elementName.endsWith(ARRAY_SUFFIX)) {
+			String componentName = elementName.substring(0, elementName.length() - ARRAY_SUFFIX.length());
+			if (aliases.classFor(componentName) != null || componentName.endsWith(ARRAY_SUFFIX)) {
+				return Array.newInstance(realClass(componentName), 0).getClass();
+			}
+			return super.realClass(elementName);
+		}
+		Class aliasedClass = aliases.classFor(elementName);
+		if (aliasedClass != null && aliasedClass.getName().equals(super.serializedClass(aliasedClass))) {
+			return aliasedClass;
+		}
+		return super.realClass(elementName);
+	}
+	
+	/**
+	 * The aliases computed so far, in both directions. The result of either direction only depends
+	 * on the serialized packages, so a cache can be shared by any number of mappers.
+	 */
+	public static class AliasCache {
+		
+		/*
+		 * marks an element name which doesn't stand for any class of the serialized packages
+		 */
+		private static final Object NOT_ALIASED = new Object();
+		
+		private final List<String> packageNames;
+		
+		private final Set<String> indexedClassNames;
+		
+		/*
+		 * Key: the name of a serialized class
+		 * Value: its alias, or its name if it is not aliased
+		 */
+		private final ConcurrentMap<String, String> aliasByClassName = new ConcurrentHashMap<String, String>();
+		
+		/*
+		 * Key: an element name
+		 * Value: the class which is aliased by it, or NOT_ALIASED
+		 */
+		private final ConcurrentMap<String, Object> classByAlias = new ConcurrentHashMap<String, Object>();
+		
+		/**
+		 * @param packageNames - the packages whose classes get aliased
+		 * @param indexedClassNames - the names of all classes in those packages as listed in the
+		 *            alias index, or null if the index can't be used
+		 */
+		public AliasCache(Collection<String> packageNames, Collection<String> indexedClassNames) {
+			this.packageNames = new ArrayList<String>(packageNames);
+			this.indexedClassNames = indexedClassNames == null ? null : new HashSet<String>(indexedClassNames);
+		}
+		
+		/**
+		 * @param type - a class which has no explicit alias
+		 * @return the alias of the class, or its name if it is not in a serialized package
+		 */
+		public String aliasFor(Class<?> type) {
+			String alias = aliasByClassName.get(type.getName());
+			if (alias == null) {
+				alias = isAliased(type.getName()) ? lowerFirstLetter(type.getSimpleName()) : type.getName();
+				aliasByClassName.putIfAbsent(type.getName(), alias);
+			}
+			return alias;
+		}
+		
+		/**
+		 * @param elementName - the name of the element being deserialized
+		 * @return the class aliased by the element name, or null if it isn't an alias
+		 */
+		public Class<?> classFor(String elementName) {
+			Object aliasedClass = classByAlias.get(elementName);
+			if (aliasedClass == null) {
+				aliasedClass = resolveAlias(elementName);
+				classByAlias.putIfAbsent(elementName, aliasedClass);
+			}
+			return aliasedClass == NOT_ALIASED ? null : (Class<?>) aliasedClass;
+		}
+		
+		/**
+		 * Derive the class which an element name is the alias of, for example "conceptName" is the
+		 * alias of "org.openmrs.ConceptName"
+		 *
+		 * @param elementName - the name of the element being deserialized
+		 * @return the aliased class, or NOT_ALIASED
+		 */
+		private Object resolveAlias(String elementName) {
+			if (elementName.length() == 0 || elementName.indexOf('.') >= 0
+			        || !Character.isLowerCase(elementName.charAt(0))) {
+				return NOT_ALIASED;
+			}
+			String simpleName = Character.toUpperCase(elementName.charAt(0)) + elementName.substring(1);
+			for (String packageName : packageNames) {
+				String className = packageName + "." + simpleName;
+				// a class added after the index was generated is not listed, so it is looked up too
+				try {
+					return OpenmrsClassLoader.getInstance().loadClass(className);
+				}
+				catch (ClassNotFoundException e) {
+					// not a class of this package
+				}
+			}
+			return NOT_ALIASED;
+		}
+		
+		/**
+		 * Judge whether the class with the given name is a top level class directly in one of the
+		 * serialized packages, excluding classes in sub packages and inner classes
+		 */
+		private boolean isAliased(String className) {
+			if (indexedClassNames != null && indexedClassNames.contains(className)) {
+				return true;
+			}
+			int lastDot = className.lastIndexOf('.');
+			if (lastDot < 0 || className.indexOf('$') >= 0) {
+				return false;
+			}
+			return packageNames.contains(className.substring(0, lastDot));
+		}
+		
+		/**
+		 * through Class.getSimpleName(), we get the short name of a class, such as get "User" for
+		 * class "org.openmrs.User", and low its first letter
+		 */
+		private String lowerFirstLetter(String simpleName) {
+			return simpleName.substring(0, 1).toLowerCase() + simpleName.substring(1);
+		}
+	}
+}
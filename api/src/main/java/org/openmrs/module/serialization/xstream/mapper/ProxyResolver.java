@@ -0,0 +1,218 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream.mapper;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
+import org.springframework.cglib.proxy.Enhancer;
+
+import com.thoughtworks.xstream.converters.reflection.ObjectAccessException;
+
+/**
+ * Tells which classes are proxies and what they stand for. A proxy is recognized by the name of
+ * its class, which is only looked at the first time a class is met: the kind of every class is
+ * kept in a {@link ClassValue}. What is found out about a proxy class, that is the class it
+ * proxies and its "writeReplace" method, is kept in a map, so the methods are looked up once per
+ * proxy class instead of once per serialized object. <br/>
+ * <br/>
+ * A class value attaches its entries to the classes themselves, so an entry referring to a class
+ * of this module, on a class of the JDK or of OpenMRS, would keep the class loader of this module
+ * alive after the module is stopped (JDK-8136353). The kinds are therefore kept as the integers
+ * of their ordinals, and the proxy classes, which are few, in a map held by this class. <br/>
+ * <br/>
+ * An initialized Hibernate proxy is resolved through its lazy initializer, other proxies through
+ * their "writeReplace" method as {@link com.thoughtworks.xstream.converters.reflection.SerializationMethodInvoker}
+ * does.
+ */
+public final class ProxyResolver {
+	
+	/**
+	 * The libraries generating proxy classes, recognized by the names they give to the classes
+	 */
+	public enum Kind {
+		NONE, CGLIB, JAVASSIST, BYTE_BUDDY
+	}
+	
+	private static final String BYTE_BUDDY_MARKER = "$HibernateProxy$";
+	
+	private static final Kind[] KINDS = Kind.values();
+	
+	//the ordinal of the kind of each class, an Integer doesn't refer to the class loader of this module
+	private static final ClassValue<Integer> KIND_ORDINALS = new ClassValue<Integer>() {
+		
+		@Override
+		protected Integer computeValue(Class<?> type) {
+			return Integer.valueOf(findKind(type).ordinal());
+		}
+	};
+	
+	private static final ConcurrentMap<Class<?>, ProxyClass> PROXIES = new ConcurrentHashMap<Class<?>, ProxyClass>();
+	
+	private ProxyResolver() {
+	}
+	
+	/**
+	 * @param type - the class of an object
+	 * @return the kind of proxy it is, {@link Kind#NONE} if it isn't a proxy
+	 */
+	public static Kind getKind(Class<?> type) {
+		return KINDS[KIND_ORDINALS.get(type).intValue()];
+	}
+	
+	/**
+	 * Find out the kind of a class from its name
+	 */
+	private static Kind findKind(Class<?> type) {
+		String name = type.getName();
+		if (name.indexOf(CGLibMapper.marker) > 0) {
+			return Kind.CGLIB;
+		} else if (name.indexOf(JavassistMapper.OLD_NAMING_MARKER) > 0
+		        || name.indexOf(JavassistMapper.NEW_NAMING_MARKER) > 0) {
+			return Kind.JAVASSIST;
+		} else if (name.indexOf(BYTE_BUDDY_MARKER) > 0) {
+			return Kind.BYTE_BUDDY;
+		}
+		return Kind.NONE;
+	}
+	
+	/**
+	 * @param type - the class of an object
+	 * @return whether it is a proxy generated by any of the libraries of {@link Kind}
+	 */
+	public static boolean isProxy(Class<?> type) {
+		return getKind(type) != Kind.NONE;
+	}
+	
+	/**
+	 * @param type - the class of an object
+	 * @return whether it is a class enhanced by CGLIB
+	 */
+	public static boolean isCGLibProxy(Class<?> type) {
+		return getKind(type) == Kind.CGLIB && getProxyClass(type).enhanced;
+	}
+	
+	/**
+	 * @param type - the class of an object
+	 * @return whether it is a proxy generated by Javassist
+	 */
+	public static boolean isJavassistProxy(Class<?> type) {
+		return getKind(type) == Kind.JAVASSIST;
+	}
+	
+	/**
+	 * @param type - the class of an object
+	 * @return the class the proxy extends, or the given class if it isn't a proxy
+	 */
+	public static Class<?> getTargetClass(Class<?> type) {
+		return isProxy(type) ? getProxyClass(type).target : type;
+	}
+	
+	/**
+	 * @param type - the class of an object
+	 * @return whether what is known about the class is kept in the map of the proxy classes, which
+	 *         is only the case for the proxy classes met so far
+	 */
+	public static boolean isCached(Class<?> type) {
+		return PROXIES.containsKey(type);
+	}
+	
+	/**
+	 * Get the object to serialize in place of the given one
+	 * 
+	 * @param obj - the object, which may be a proxy
+	 * @return the implementation of an initialized Hibernate proxy, what the "writeReplace" method
+	 *         of any other proxy returns, and the object itself otherwise
+	 */
+	public static Object resolve(Object obj) {
+		if (obj == null) {
+			return null;
+		}
+		if (obj instanceof HibernateProxy) {
+			LazyInitializer initializer = ((HibernateProxy) obj).getHibernateLazyInitializer();
+			if (!initializer.isUninitialized()) {
+				return initializer.getImplementation();
+			}
+		}
+		if (!isProxy(obj.getClass())) {
+			return obj;
+		}
+		Method writeReplace = getProxyClass(obj.getClass()).writeReplace;
+		if (writeReplace == null) {
+			return obj;
+		}
+		try {
+			return writeReplace.invoke(obj);
+		}
+		catch (IllegalAccessException e) {
+			throw new ObjectAccessException("Could not call " + obj.getClass().getName() + ".writeReplace()", e);
+		}
+		catch (InvocationTargetException e) {
+			throw new ObjectAccessException("Could not call " + obj.getClass().getName() + ".writeReplace()", e
+			        .getTargetException());
+		}
+	}
+	
+	/**
+	 * Get what is known about a proxy class, which is found out the first time the class is met
+	 */
+	private static ProxyClass getProxyClass(Class<?> type) {
+		ProxyClass proxy = PROXIES.get(type);
+		if (proxy == null) {
+			proxy = new ProxyClass(type);
+			ProxyClass previous = PROXIES.putIfAbsent(type, proxy);
+			if (previous != null) {
+				proxy = previous;
+			}
+		}
+		return proxy;
+	}
+	
+	/**
+	 * What is known about a proxy class
+	 */
+	private static final class ProxyClass {
+		
+		private final boolean enhanced;
+		
+		private final Class<?> target;
+		
+		private final Method writeReplace;
+		
+		private ProxyClass(Class<?> type) {
+			enhanced = getKind(type) == Kind.CGLIB && Enhancer.isEnhanced(type);
+			Class<?> superclass = type.getSuperclass();
+			target = superclass != null ? getTargetClass(superclass) : type;
+			writeReplace = findWriteReplace(type);
+		}
+		
+		private static Method findWriteReplace(Class<?> type) {
+			for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+				try {
+					Method method = c.getDeclaredMethod("writeReplace");
+					method.setAccessible(true);
+					return method;
+				}
+				catch (NoSuchMethodException e) {
+					// look in the superclass
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package org.openmrs.module.serialization.xstream.mapper;
+
+import com.thoughtworks.xstream.converters.SingleValueConverter;
+import com.thoughtworks.xstream.mapper.Mapper;
+import com.thoughtworks.xstream.mapper.MapperWrapper;
+
+/**
+ * Mapper that keeps the fields named like an attribute of xstream itself (id, reference, class and
+ * resolves-to) as nested elements, even when their type is written as attributes. Such a field
+ * would otherwise be written over the id or the class of its object, and be read back from it.
+ *
+ * @see org.openmrs.module.serialization.xstream.WireProfile#COMPACT
+ */
+public class SystemAttributeMapper extends MapperWrapper {
+	
+	private static final String[] SYSTEM_ATTRIBUTES = { "id", "reference", "class", "resolves-to" };
+	
+	public SystemAttributeMapper(Mapper wrapped) {
+		super(wrapped);
+	}
+	
+	/**
+	 * @see com.thoughtworks.xstream.mapper.Mapper#getConverterFromItemType(java.lang.String,
+	 *      java.lang.Class, java.lang.Class)
+	 */
+	public SingleValueConverter getConverterFromItemType(String fieldName, Class type, Class definedIn) {
+		if (isSystemAttribute(definedIn, fieldName)) {
+			return null;
+		}
+		return super.getConverterFromItemType(fieldName, type, definedIn);
+	}
+	
+	/**
+	 * @see com.thoughtworks.xstream.mapper.Mapper#getConverterFromAttribute(java.lang.Class,
+	 *      java.lang.String, java.lang.Class)
+	 */
+	public SingleValueConverter getConverterFromAttribute(Class definedIn, String attribute, Class type) {
+		if (isSystemAttribute(definedIn, attribute)) {
+			return null;
+		}
+		return super.getConverterFromAttribute(definedIn, attribute, type);
+	}
+	
+	/**
+	 * @return true if the given field would be written as one of the attributes of xstream
+	 */
+	private boolean isSystemAttribute(Class definedIn, String fieldName) {
+		if (fieldName == null) {
+			return false;
+		}
+		String name = aliasForAttribute(definedIn == null ? fieldName : serializedMember(definedIn, fieldName));
+		for (String attribute : SYSTEM_ATTRIBUTES) {
+			if (name.equals(aliasForSystemAttribute(attribute))) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -11,148 +11,240 @@
  */
 package org.openmrs.module.serialization.xstream.strategy;
 
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.Arrays;
+
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
+import org.openmrs.OpenmrsObject;
 
 /**
  * This class implement the feature to determinate whether a single object or collection need to add
  * reference for it while serializing.<br/>
+ * <br/>
+ * Objects are compared by identity, so neither equals nor hashCode are ever called on them: a
+ * lazy Hibernate proxy is not initialized by a lookup, and two distinct empty collections are two
+ * objects. The ids are numbers kept in an open addressing table, every operation takes a constant
+ * time. <br/>
+ * <br/>
+ * A Hibernate proxy is always kept as itself, so it is found again once it has been initialized,
+ * which usually happens while it is being written. An entity and a proxy are hashed by their
+ * database identifier, which the proxy knows without being initialized, and a lookup compares the
+ * nodes the stored objects and the looked up one stand for at that time. So an initialized proxy
+ * and its implementation share an id whichever is met first, even when the proxy was added before
+ * it was initialized. The identifier of an entity must therefore not change while it is in the
+ * dictionary.
  */
 public class CustomObjectIdDictionary {
 	
+	/**
+	 * the value of {@link #lookupId(Object)} for an object which has no id
+	 */
+	public static final int NO_ID = -1;
+	
+	private static final int MINIMUM_CAPACITY = 16;
+	
 	/* 
-	 * About the info of map
-	 * Key: the object match one element in serialized xml string
-	 * Value: the id of that match element
+	 * the object matching one element in serialized xml string, and the id of that element at the
+	 * same index, the capacity is always a power of two
 	 */
-	@SuppressWarnings("unchecked")
-	private final Map map = new LinkedHashMap();
+	private Object[] keys = new Object[MINIMUM_CAPACITY];
 	
-	private static final String marker = new String("EnhancerByCGLIB");
+	private int[] ids = new int[MINIMUM_CAPACITY];
 	
-	private volatile int counter;
+	private int size = 0;
 	
 	/**
-	 * Auto generated method comment
+	 * Associate an id with an object, replacing the one it may already have
 	 * 
 	 * @param obj
 	 * @param id
 	 */
-	@SuppressWarnings("unchecked")
-	public void associateId(Object obj, Object id) {
-		map.put(obj, id);
-		++counter;
-		cleanup();
+	public void associateId(Object obj, int id) {
+		put(obj, id);
+		Object implementation = nodeOf(obj);
+		if (implementation != obj && !containsKey(implementation)) {
+			put(implementation, id);
+		}
+	}
+	
+	private void put(Object key, int id) {
+		int index = indexOf(key);
+		if (keys[index] == null) {
+			// keep the table at most three quarters full
+			if ((size + 1) * 4 > keys.length * 3) {
+				resize(keys.length * 2);
+				index = indexOf(key);
+			}
+			keys[index] = key;
+			size++;
+		}
+		ids[index] = id;
 	}
 	
 	/**
-	 * Iterate each entry of map to find whether it has a key equals with "obj"
-	 * <br/>
+	 * Find the id associated with the given object
 	 * 
-	 * @param obj - the object need to be compared with keys of map
-	 * @return if map has a key equal with "obj", then return the value matching with that key
-	 * 		   otherwise, return null.
+	 * @param obj - the object to look up
+	 * @return the id of the object, or {@link #NO_ID} if it has none
 	 */
-	@SuppressWarnings("unchecked")
-	public Object lookupId(Object obj) {
-		++counter;
-		if(isCollectionAndNoItems(obj)){
-			Object res = null;
-			Iterator it = map.keySet().iterator();
-			while(it.hasNext()){
-				Object key = it.next();
-				if(isCollectionAndNoItems(key))
-					/*
-					 * For such a case which satisfy follow two conditions: 
-					 *     (1) Suppose, A is Collection<PersonName> and B is a Collection<PersonAddress>,
-					 *     (2) Both A and B's size is zero.
-					 * Then if we use A.equals(B), the result will be true.(you can refer to the jdk1.6 doc)
-					 * So for this case i use the "==" to do comparison.
-					 */
-					if(obj == key){
-						res = map.get(key);
-						break;
-					}
+	public int lookupId(Object obj) {
+		int index = indexOfNode(obj);
+		if (keys[index] == null) {
+			Object implementation = nodeOf(obj);
+			if (implementation == obj) {
+				return NO_ID;
 			}
-			return res;
-		}else{
-			return map.get(obj);
+			index = indexOfNode(implementation);
 		}
+		return keys[index] == null ? NO_ID : ids[index];
 	}
 	
 	/**
-	 * Judge whether map contains a key equals with "obj". <br/>
-	 * <br/>
-	 * Note: Here, the mechanism of comparison is equals with {@link CustomObjectIdDictionary#lookupId(Object)}
+	 * Judge whether the given object has an id
 	 * 
-	 * @param obj - the object need to be compared with keys of map
-	 * @return whether "obj" has already been in map
+	 * @param obj - the object to look up
+	 * @return whether "obj" has already been in the dictionary
 	 */
-	@SuppressWarnings("unchecked")
-	public boolean containsId(Object obj) {	
-		++counter;
-		if(isCollectionAndNoItems(obj)){
-			boolean contain = false;
-			Iterator it = map.keySet().iterator();
-			while(it.hasNext()){
-				Object key = it.next();
-				if(isCollectionAndNoItems(key))
-					/*
-					 * For such a case which satisfy follow two conditions: 
-					 *     (1) Suppose, A is Collection<PersonName> and B is a Collection<PersonAddress>,
-					 *     (2) Both A and B's size is zero.
-					 * Then if we use A.equals(B), the result will be true.(you can refer to the jdk1.6 doc)
-					 * So for this case i use the "==" to do comparison.
-					 */
-					if(obj == key){
-						contain = true;
-						break;
-					}
-			}
-			return contain;
-		}else{
-			return map.containsKey(obj);
-		}
+	public boolean containsId(Object obj) {
+		return lookupId(obj) != NO_ID;
+	}
+	
+	private boolean containsKey(Object key) {
+		return keys[indexOf(key)] != null;
 	}
 	
+	/**
+	 * Remove an object, the implementation of an initialized proxy is left in the dictionary
+	 * 
+	 * @param item - the object to remove
+	 */
 	public void removeId(Object item) {
-		map.remove(item);
-		++counter;
-		cleanup();
+		int index = indexOf(item);
+		if (keys[index] == null) {
+			return;
+		}
+		keys[index] = null;
+		size--;
+		// move back the following keys which could not be found anymore through the free slot
+		int mask = keys.length - 1;
+		int next = index;
+		while (true) {
+			next = (next + 1) & mask;
+			if (keys[next] == null) {
+				return;
+			}
+			int home = hash(keys[next]) & mask;
+			boolean reachable = index <= next ? index < home && home <= next : index < home || home <= next;
+			if (!reachable) {
+				keys[index] = keys[next];
+				ids[index] = ids[next];
+				keys[next] = null;
+				index = next;
+			}
+		}
 	}
 	
 	public int size() {
-		return map.size();
+		return size;
 	}
 	
-	private void cleanup() {
-		if (counter > 10000) {
-			counter = 0;
-			// much more efficient to remove any orphaned wrappers at once
-			for (final Iterator iterator = map.keySet().iterator(); iterator.hasNext();) {
-				if (iterator.next() == null) {
-					iterator.remove();
-				}
+	/**
+	 * Remove every object, the capacity of the table is kept so that it can be filled again without
+	 * growing
+	 */
+	public void clear() {
+		if (size > 0) {
+			Arrays.fill(keys, null);
+			size = 0;
+		}
+	}
+	
+	/**
+	 * Get the object the given one stands for, that is the implementation of an initialized
+	 * Hibernate proxy, and the object itself otherwise. As a proxy may be initialized at any time,
+	 * the result must not be kept as the identity of the proxy
+	 */
+	static Object nodeOf(Object obj) {
+		if (obj instanceof HibernateProxy) {
+			LazyInitializer initializer = ((HibernateProxy) obj).getHibernateLazyInitializer();
+			if (!initializer.isUninitialized()) {
+				return initializer.getImplementation();
 			}
 		}
+		return obj;
 	}
 	
 	/**
-	 * Judge whether obj is a Collection or Map And its size is zero
-	 * <br/>
-	 * 
-	 * @param obj - the obj to be judge
-	 * @return whether obj is a Collection or Map and its size is zero
+	 * @return the index of the given key, or of the free slot where it would be
+	 */
+	private int indexOf(Object key) {
+		int mask = keys.length - 1;
+		int index = hash(key) & mask;
+		while (keys[index] != null && keys[index] != key) {
+			index = (index + 1) & mask;
+		}
+		return index;
+	}
+	
+	/**
+	 * @return the index of a key which is the same node as the given object, or of the free slot
+	 *         where the object would be
 	 */
-	private boolean isCollectionAndNoItems(Object obj){
-		Class cls = obj.getClass();
-		if(Collection.class.isAssignableFrom(cls) && ((Collection)obj).size() == 0)
-			return true;
-		else if(Map.class.isAssignableFrom(cls) && ((Map)obj).size() == 0)
-			return true;
-		else
-			return false;
-	}	
+	private int indexOfNode(Object obj) {
+		int mask = keys.length - 1;
+		int index = hash(obj) & mask;
+		while (keys[index] != null && !isSameNode(keys[index], obj)) {
+			index = (index + 1) & mask;
+		}
+		return index;
+	}
+	
+	/**
+	 * Whether two objects are the same node of the graph: the same object, or an initialized proxy
+	 * and its implementation, as they are at the time of the call
+	 */
+	static boolean isSameNode(Object a, Object b) {
+		return a == b || nodeOf(a) == nodeOf(b);
+	}
+	
+	private static int hash(Object key) {
+		Object identifier = identifierOf(key);
+		// spreads the hash codes, which are often close to each other
+		int h = (identifier == null ? System.identityHashCode(key) : identifier.hashCode()) * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	/**
+	 * @return the database identifier of an entity or of the entity behind a proxy, or null if the
+	 *         object has none
+	 */
+	private static Object identifierOf(Object obj) {
+		if (obj instanceof HibernateProxy) {
+			return ((HibernateProxy) obj).getHibernateLazyInitializer().getIdentifier();
+		}
+		if (obj instanceof OpenmrsObject) {
+			try {
+				return ((OpenmrsObject) obj).getId();
+			}
+			catch (UnsupportedOperationException e) {
+				// the entities with a name as their identifier, such as roles
+				return null;
+			}
+		}
+		return null;
+	}
+	
+	private void resize(int capacity) {
+		Object[] oldKeys = keys;
+		int[] oldIds = ids;
+		keys = new Object[capacity];
+		ids = new int[capacity];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null) {
+				int index = indexOf(oldKeys[i]);
+				keys[index] = oldKeys[i];
+				ids[index] = oldIds[i];
+			}
+		}
+	}
 }
\ No newline at end of file
@@ -12,17 +12,22 @@
 package org.openmrs.module.serialization.xstream.strategy;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 
+import org.hibernate.Hibernate;
+import org.openmrs.module.serialization.xstream.mapper.ProxyResolver;
+
 import com.thoughtworks.xstream.converters.ConversionException;
 import com.thoughtworks.xstream.converters.Converter;
 import com.thoughtworks.xstream.converters.ConverterLookup;
-import com.thoughtworks.xstream.converters.reflection.SerializationMethodInvoker;
+import com.thoughtworks.xstream.converters.DataHolder;
+import com.thoughtworks.xstream.core.MapBackedDataHolder;
 import com.thoughtworks.xstream.core.TreeMarshaller;
 import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.WriterWrapper;
 import com.thoughtworks.xstream.io.path.Path;
-import com.thoughtworks.xstream.io.path.PathTracker;
-import com.thoughtworks.xstream.io.path.PathTrackingWriter;
 import com.thoughtworks.xstream.mapper.Mapper;
 
 /**
@@ -35,27 +40,78 @@ import com.thoughtworks.xstream.mapper.Mapper;
  */
 public class CustomReferenceByIdMarshaller extends TreeMarshaller {
 	
+	/**
+	 * the attribute marking the root of each record of a session, whose id is only "1" in the first
+	 * record, and the root of a document written without ids, so that the short converters don't
+	 * read such a root as a reference to a uuid
+	 */
+	public static final String ROOT_ATTRIBUTE = "is-root";
+	
 	//used to store the id of every element
 	private CustomObjectIdDictionary references = new CustomObjectIdDictionary();
 	
 	private CustomObjectIdDictionary implicitElements = new CustomObjectIdDictionary();
 	
-	//store all serialized elements in a stack
-	private PathTracker pathTracker = new PathTracker();
+	/*
+	 * the elements are numbered from 1 in the order they are started, an element started while
+	 * another one is open is inside it, so the elements inside the open element numbered n are
+	 * those numbered from n on
+	 */
+	private int nodeCount;
+	
+	//the numbers and names of the open elements, from the root to the current one
+	private int[] nodes = new int[16];
+	
+	private String[] nodeNames = new String[16];
+	
+	private int nodeDepth;
 	
-	//the last element which is serialized with a "id" attribute
-	private Path lastPath;
+	//the number of the last element which is serialized with a "id" attribute, 0 if there is none
+	private int lastNode;
 	
 	//this count records how many elements are serialized with a "id" attribute
 	private int count;
 	
-	//record current serialized classes
-	private List<Class> serializedClasses = new ArrayList<Class>();
+	//whether the root of each document is marked with ROOT_ATTRIBUTE
+	private boolean markRoot;
+	
+	//whether an object which Hibernate still has to load makes the marshalling fail
+	private boolean unloadedRefused;
+	
+	//the classes of the objects being serialized, from the root to the current one
+	private Class[] types = new Class[16];
+	
+	private int depth;
 	
 	private final IDGenerator idGenerator;
 	
-	//use marker to remove the cglib's signature
-	private static final String marker = new String("EnhancerByCGLIB");
+	//the generator of the ids when they are numbers, null when they are made by a custom generator
+	private final SequenceGenerator sequence;
+	
+	//the ids made by a custom generator, the references to them are their index in this list
+	private final List<String> customIds;
+	
+	//the data holder of the current document, null while a pooled marshaller waits to be reused
+	private DataHolder dataHolder;
+	
+	/*
+	 * the data holder given to TreeMarshaller, which keeps it in a private field: it reads through
+	 * to the one of the current document, so that clear() can drop the entries of the caller
+	 */
+	private final DataHolder dataHolderView = new DataHolder() {
+		
+		public Object get(Object key) {
+			return getDataHolder().get(key);
+		}
+		
+		public void put(Object key, Object value) {
+			getDataHolder().put(key, value);
+		}
+		
+		public Iterator keys() {
+			return getDataHolder().keys();
+		}
+	};
 	
 	public static interface IDGenerator {
 		
@@ -64,10 +120,24 @@ public class CustomReferenceByIdMarshaller extends TreeMarshaller {
 	
 	public CustomReferenceByIdMarshaller(HierarchicalStreamWriter writer, ConverterLookup converterLookup, Mapper mapper,
 	    IDGenerator idGenerator) {
+		this(writer, converterLookup, mapper, idGenerator, 0);
+	}
+	
+	/**
+	 * Create a marshaller which writes a fragment of a larger document, the elements written
+	 * before the fragment are counted so that the converters relying on {@link #getCount()} see
+	 * the same count as if the whole document was written by one marshaller
+	 * 
+	 * @param count - the number of elements written with an "id" attribute before the fragment
+	 */
+	public CustomReferenceByIdMarshaller(HierarchicalStreamWriter writer, ConverterLookup converterLookup, Mapper mapper,
+	    IDGenerator idGenerator, int count) {
 		super(writer, converterLookup, mapper);
-		this.writer = new PathTrackingWriter(writer, pathTracker);
+		this.writer = new NodeTrackingWriter(writer);
 		this.idGenerator = idGenerator;
-		this.count = 0;
+		this.sequence = idGenerator instanceof SequenceGenerator ? (SequenceGenerator) idGenerator : null;
+		this.customIds = sequence == null ? new ArrayList<String>() : null;
+		this.count = count;
 	}
 	
 	public CustomReferenceByIdMarshaller(HierarchicalStreamWriter writer, ConverterLookup converterLookup, Mapper mapper) {
@@ -75,41 +145,48 @@ public class CustomReferenceByIdMarshaller extends TreeMarshaller {
 	}
 	
 	/**
-	 * get the value of attribute "reference" which is valued as existingReferenceKey.toString()
+	 * get the value of attribute "reference" which is the id of the referenced element
 	 * 
-	 * @param currentPath - the path represents the current object which needs to be serialized
-	 * @param existingReferenceKey - which's value will be put into the attribute "reference" of a
-	 *            element
+	 * @param existingReferenceKey - the key of the referenced element, whose id will be put into
+	 *            the attribute "reference" of a element
 	 * @return the value of attribute "reference"
 	 */
-	protected String createReference(Path currentPath, Object existingReferenceKey) {
-		return existingReferenceKey.toString();
+	protected String createReference(int existingReferenceKey) {
+		return idOf(existingReferenceKey);
 	}
 	
 	/**
-	 * get the id for the current object needs to be serialized
+	 * get the key of the id for the current object needs to be serialized, the id itself is only
+	 * made into a string when it is written
 	 * 
-	 * @param currentPath - the path represents the current object which needs to be serialized
 	 * @param item - the current object which needs to be serialized
-	 * @return a new id for current object
+	 * @return a new key for current object
 	 */
-	protected Object createReferenceKey(Path currentPath, Object item) {
-		return idGenerator.next(item);
+	protected int createReferenceKey(Object item) {
+		if (sequence != null) {
+			return sequence.nextInt();
+		}
+		customIds.add(idGenerator.next(item));
+		return customIds.size() - 1;
 	}
 	
 	/**
-	 * add a "id" attribute valued as referenceKey into the serialized element
+	 * add a "id" attribute valued as the id of referenceKey into the serialized element
 	 * 
-	 * @param referenceKey - its string value will be put into serialized element as its attribute
+	 * @param referenceKey - the key whose id will be put into serialized element as its attribute
 	 *            "id"
 	 */
-	protected void fireValidReference(Object referenceKey) {
+	protected void fireValidReference(int referenceKey) {
 		String attributeName = getMapper().aliasForSystemAttribute("id");
 		if (attributeName != null) {
-			writer.addAttribute(attributeName, referenceKey.toString());
+			writer.addAttribute(attributeName, idOf(referenceKey));
 		}
 	}
 	
+	private String idOf(int referenceKey) {
+		return sequence != null ? sequence.format(referenceKey) : customIds.get(referenceKey);
+	}
+	
 	public static class ReferencedImplicitElementException extends ConversionException {
 		
 		/**
@@ -131,20 +208,19 @@ public class CustomReferenceByIdMarshaller extends TreeMarshaller {
 			// strings, ints, dates, etc... don't bother using references.
 			converter.marshal(item, writer, this);
 		} else {
-			Path currentPath = pathTracker.getPath();
+			int currentNode = nodeDepth > 0 ? nodes[nodeDepth - 1] : 0;
 			//look up whether the object which is referenced(pointed) by "item" has already been serialized in previous
-			Object existingReferenceKey = references.lookupId(item);
-			if (existingReferenceKey != null) {
+			int existingReferenceKey = references.lookupId(item);
+			if (existingReferenceKey != CustomObjectIdDictionary.NO_ID) {
 				String attributeName = null;
 				/*
 				 * In cglib, it will return a proxy whose className is "superClassName$$EnhancerByCGLIB$$..." while we want to get one instance of sub class through lazy initialize
 				 * For example, if the item's class is "org.openmrs.Person$$EnhancerByCGLIB$$..." and its actual class is "org.openmrs.User",
 				 * we will need to add "resolves-to" to show the actual type of this proxy
 				 */
-				if (this.isCGlibEhanced(item)) {
-					//through "callWriteReplace(Object)" of "SerializationMethodInvoker", we can get the actual type of a proxy
-					SerializationMethodInvoker serializationMethodInvoker = new SerializationMethodInvoker();
-					Object newObj = (Object) serializationMethodInvoker.callWriteReplace(item);
+				if (ProxyResolver.getKind(item.getClass()) == ProxyResolver.Kind.CGLIB) {
+					//through "ProxyResolver.resolve(Object)", we can get the actual type of a proxy
+					Object newObj = ProxyResolver.resolve(item);
 					if (!newObj.getClass().equals(item.getClass().getSuperclass())) {
 						//here add "resolves-to" attribute into element, so that while deserializing, xstream can know the actual class through "resolves-to"
 						attributeName = getMapper().aliasForSystemAttribute("resolves-to");
@@ -156,16 +232,19 @@ public class CustomReferenceByIdMarshaller extends TreeMarshaller {
 				}
 				attributeName = getMapper().aliasForSystemAttribute("reference");
 				if (attributeName != null) {
-					writer.addAttribute(attributeName, createReference(currentPath, existingReferenceKey));
+					writer.addAttribute(attributeName, createReference(existingReferenceKey));
 				}
-			} else if (implicitElements.lookupId(item) != null) {
-				throw new ReferencedImplicitElementException(item, currentPath);
+			} else if (implicitElements.containsId(item)) {
+				throw new ReferencedImplicitElementException(item, getCurrentPath());
 			} else {
-				serializedClasses.add(item.getClass());
-				Object newReferenceKey = createReferenceKey(currentPath, item);
-				if (lastPath == null || !currentPath.isAncestor(lastPath)) {
+				int newReferenceKey = createReferenceKey(item);
+				/*
+				 * an object written in the element of the last id, or in an element holding it, is an
+				 * implicit element: the element already has an id
+				 */
+				if (lastNode < currentNode || lastNode == 0) {
 					fireValidReference(newReferenceKey);
-					lastPath = currentPath;
+					lastNode = currentNode;
 					/*
 					 * put the id of current "item" into "references"
 					 * so that we can determinate whether the left items need "reference" attribute while they are to be serialized
@@ -174,27 +253,237 @@ public class CustomReferenceByIdMarshaller extends TreeMarshaller {
 				} else {
 					implicitElements.associateId(item, newReferenceKey);
 				}
-				this.count++;
-				converter.marshal(item, writer, this);
-				serializedClasses.remove(item.getClass());
+				marshalObject(item, converter);
+			}
+		}
+	}
+	
+	/**
+	 * Write an object which isn't a reference, keeping track of its type and counting it
+	 * 
+	 * @param item - the object to write
+	 * @param converter - the converter of the object
+	 */
+	protected void marshalObject(Object item, Converter converter) {
+		if (count == 0 && isRootMarked()) {
+			markRoot(writer);
+		}
+		if (unloadedRefused && !Hibernate.isInitialized(item)) {
+			throw new ConversionException("The " + item.getClass().getName()
+			        + " must be loaded by the session of the calling thread before being written");
+		}
+		pushType(item.getClass());
+		this.count++;
+		try {
+			converter.marshal(item, writer, this);
+		}
+		finally {
+			types[--depth] = null;
+		}
+	}
+	
+	/**
+	 * @return whether the root of the document is marked with {@link #ROOT_ATTRIBUTE}, as it is
+	 *         when its id isn't "1"
+	 */
+	protected boolean isRootMarked() {
+		return markRoot;
+	}
+	
+	/**
+	 * Mark the element being written as the root of a document
+	 * 
+	 * @param writer - the writer of the element, whose attributes are being written
+	 */
+	static void markRoot(HierarchicalStreamWriter writer) {
+		writer.addAttribute(ROOT_ATTRIBUTE, "true");
+	}
+	
+	/**
+	 * Make the marshalling fail on a Hibernate proxy or collection which isn't loaded yet, instead
+	 * of loading it, as this marshaller doesn't run in the thread of the session which would load it
+	 */
+	void refuseUnloaded() {
+		this.unloadedRefused = true;
+	}
+	
+	/**
+	 * Build the path of the current element, which is only needed to report an error
+	 */
+	private Path getCurrentPath() {
+		String[] chunks = new String[nodeDepth + 1];
+		chunks[0] = "";
+		System.arraycopy(nodeNames, 0, chunks, 1, nodeDepth);
+		return new Path(chunks);
+	}
+	
+	/**
+	 * Numbers the elements as they are written
+	 */
+	private class NodeTrackingWriter extends WriterWrapper {
+		
+		public NodeTrackingWriter(HierarchicalStreamWriter writer) {
+			super(writer);
+		}
+		
+		public void startNode(String name) {
+			pushNode(name);
+			super.startNode(name);
+		}
+		
+		public void startNode(String name, Class clazz) {
+			pushNode(name);
+			super.startNode(name, clazz);
+		}
+		
+		public void endNode() {
+			nodeNames[--nodeDepth] = null;
+			super.endNode();
+		}
+		
+		private void pushNode(String name) {
+			if (nodeDepth == nodes.length) {
+				nodes = Arrays.copyOf(nodes, nodeDepth * 2);
+				nodeNames = Arrays.copyOf(nodeNames, nodeDepth * 2);
 			}
+			nodes[nodeDepth] = ++nodeCount;
+			nodeNames[nodeDepth++] = name;
 		}
 	}
 	
-	private boolean isCGlibEhanced(Object obj) {
-		String className = obj.getClass().getName();
-		if (className.indexOf(marker) != -1)
-			return true;
-		else
-			return false;
+	private void pushType(Class type) {
+		if (depth == types.length) {
+			types = Arrays.copyOf(types, depth * 2);
+		}
+		types[depth++] = type;
 	}
 	
 	public int getCount(){
 		return this.count;
 	}
+	
+	/**
+	 * @see com.thoughtworks.xstream.core.TreeMarshaller#start(java.lang.Object,
+	 *      com.thoughtworks.xstream.converters.DataHolder)
+	 */
+	@Override
+	public void start(Object item, DataHolder dataHolder) {
+		this.dataHolder = dataHolder;
+		super.start(item, dataHolderView);
+	}
+	
+	private DataHolder getDataHolder() {
+		if (dataHolder == null) {
+			dataHolder = new MapBackedDataHolder();
+		}
+		return dataHolder;
+	}
+	
+	/**
+	 * Start another document written by this marshaller, as a session spanning several documents
+	 * does. The objects of the previous documents stay known and are written as references to
+	 * their ids, which keep increasing, but the count restarts so that the first object of the
+	 * document is a root for the converters relying on {@link #getCount()}. As its id isn't "1",
+	 * the root is marked with the attribute {@link #ROOT_ATTRIBUTE}
+	 * 
+	 * @see org.openmrs.module.serialization.xstream.io.XStreamObjectWriter
+	 */
+	public void startDocument() {
+		this.count = 0;
+		this.markRoot = true;
+	}
+	
+	/**
+	 * Whether this marshaller can write another document for a strategy with the given converters
+	 * and mapper
+	 */
+	boolean isReusableFor(ConverterLookup converterLookup, Mapper mapper) {
+		return this.converterLookup == converterLookup && getMapper() == mapper;
+	}
+	
+	/**
+	 * Get ready to write another document to the given writer, as if this marshaller had just been
+	 * created. A custom id generator carries on from where it was
+	 * 
+	 * @param writer - the writer of the next document
+	 */
+	void reuse(HierarchicalStreamWriter writer) {
+		this.writer = new NodeTrackingWriter(writer);
+		// the previous document may have failed half way
+		this.nodeDepth = 0;
+		this.nodeCount = 0;
+		if (sequence != null) {
+			sequence.reset(1);
+		}
+		this.lastNode = 0;
+		this.count = 0;
+		this.markRoot = false;
+	}
+	
+	/**
+	 * Forget the objects and the data holder of the last document, so that they are not kept in
+	 * memory while this marshaller waits to be reused
+	 */
+	void clear() {
+		references.clear();
+		implicitElements.clear();
+		Arrays.fill(types, 0, depth, null);
+		depth = 0;
+		if (customIds != null) {
+			customIds.clear();
+		}
+		this.writer = null;
+		this.dataHolder = null;
+		this.lastNode = 0;
+	}
+	
+	/**
+	 * @return the number of objects remembered for the current document
+	 */
+	int size() {
+		return references.size() + implicitElements.size();
+	}
 
+	/**
+	 * @return the number of objects being serialized, from the root to the current one, the
+	 *         objects written as a reference are not counted
+	 */
+	public int getDepth() {
+		return depth;
+	}
+	
+	/**
+	 * @return the class of the object being serialized, or null if there is none
+	 */
+	public Class getCurrentType() {
+		return depth > 0 ? types[depth - 1] : null;
+	}
+	
+	/**
+	 * @return the class of the object holding the one being serialized, or null if it is the root
+	 */
+	public Class getParentType() {
+		return depth > 1 ? types[depth - 2] : null;
+	}
+	
+	/**
+	 * @param level - the depth of an object being serialized, 0 for the root
+	 * @return the class of that object
+	 */
+	public Class getType(int level) {
+		if (level < 0 || level >= depth) {
+			throw new IndexOutOfBoundsException("No type at depth " + level + ", the depth is " + depth);
+		}
+		return types[level];
+	}
+	
+	/**
+	 * @return the classes of the objects being serialized, from the root to the current one
+	 * @deprecated use {@link #getParentType()}, {@link #getCurrentType()} or {@link #getType(int)}
+	 */
+	@Deprecated
 	public List<Class> getSerializedClasses() {
-		return serializedClasses;
+		return new ArrayList<Class>(Arrays.asList(types).subList(0, depth));
 	}
 	
 }
@@ -11,7 +11,11 @@
  */
 package org.openmrs.module.serialization.xstream.strategy;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
 import com.thoughtworks.xstream.converters.ConverterLookup;
+import com.thoughtworks.xstream.converters.DataHolder;
 import com.thoughtworks.xstream.core.ReferenceByIdMarshallingStrategy;
 import com.thoughtworks.xstream.core.TreeMarshaller;
 import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
@@ -19,12 +23,100 @@ import com.thoughtworks.xstream.mapper.Mapper;
 
 /**
  * Override the "createMarshallingContext" method of "ReferenceByIdMarshallingStrategy", so that it
- * can build reference for CGLIB proxies.
+ * can build reference for CGLIB proxies. <br/>
+ * <br/>
+ * The marshalling contexts are kept in a small pool once a document is written, so that writing
+ * many small documents doesn't create a marshaller, its dictionaries and its path tracker every
+ * time. A context is only used by one thread at a time, and one which remembered more than
+ * {@link #MAX_POOLED_REFERENCES} objects is dropped so that the pool never holds large maps.
  * 
  * @see CustomReferenceByIdMarshaller
  */
 public class CustomReferenceByIdMarshallingStrategy extends ReferenceByIdMarshallingStrategy {
 	
+	public static final int MAX_POOLED_REFERENCES = 1024;
+	
+	/**
+	 * the key of the data holder shared by the records of a session, under which the marshalling
+	 * context of the session is kept. A data holder with this key set to any value makes the
+	 * strategy write the next record of the session
+	 * 
+	 * @see org.openmrs.module.serialization.xstream.io.XStreamObjectWriter
+	 */
+	public static final String SESSION_CONTEXT = CustomReferenceByIdMarshallingStrategy.class.getName() + ".session";
+	
+	private final BlockingQueue<CustomReferenceByIdMarshaller> contexts;
+	
+	public CustomReferenceByIdMarshallingStrategy() {
+		this(Runtime.getRuntime().availableProcessors() * 2);
+	}
+	
+	/**
+	 * @param poolSize - the maximum number of marshalling contexts kept, 0 to create a new one for
+	 *            every document
+	 */
+	public CustomReferenceByIdMarshallingStrategy(int poolSize) {
+		this.contexts = poolSize > 0 ? new ArrayBlockingQueue<CustomReferenceByIdMarshaller>(poolSize) : null;
+	}
+	
+	/**
+	 * Write the document with a pooled marshalling context when there is one
+	 * 
+	 * @see com.thoughtworks.xstream.core.AbstractTreeMarshallingStrategy#marshal(com.thoughtworks.xstream.io.HierarchicalStreamWriter,
+	 *      java.lang.Object, com.thoughtworks.xstream.converters.ConverterLookup,
+	 *      com.thoughtworks.xstream.mapper.Mapper, com.thoughtworks.xstream.converters.DataHolder)
+	 */
+	@Override
+	public void marshal(HierarchicalStreamWriter writer, Object obj, ConverterLookup converterLookup, Mapper mapper,
+	                    DataHolder dataHolder) {
+		if (isSession(dataHolder)) {
+			marshalRecord(writer, obj, converterLookup, mapper, dataHolder);
+			return;
+		}
+		CustomReferenceByIdMarshaller context = contexts == null ? null : contexts.poll();
+		if (context != null && context.isReusableFor(converterLookup, mapper)) {
+			context.reuse(writer);
+		} else {
+			context = (CustomReferenceByIdMarshaller) createMarshallingContext(writer, converterLookup, mapper);
+		}
+		try {
+			context.start(obj, dataHolder);
+		}
+		finally {
+			if (contexts != null && context.size() <= MAX_POOLED_REFERENCES) {
+				context.clear();
+				contexts.offer(context);
+			}
+		}
+	}
+	
+	/**
+	 * Write the next record of a session with the marshalling context of the session, which is
+	 * created by the first record. The context is never pooled
+	 * 
+	 * @param dataHolder - the data holder of the session
+	 */
+	protected void marshalRecord(HierarchicalStreamWriter writer, Object obj, ConverterLookup converterLookup,
+	                             Mapper mapper, DataHolder dataHolder) {
+		Object session = dataHolder.get(SESSION_CONTEXT);
+		CustomReferenceByIdMarshaller context;
+		if (session instanceof CustomReferenceByIdMarshaller) {
+			context = (CustomReferenceByIdMarshaller) session;
+		} else {
+			context = (CustomReferenceByIdMarshaller) createMarshallingContext(writer, converterLookup, mapper);
+			dataHolder.put(SESSION_CONTEXT, context);
+		}
+		context.startDocument();
+		context.start(obj, dataHolder);
+	}
+	
+	/**
+	 * @return whether the given data holder is the one of a session
+	 */
+	protected static boolean isSession(DataHolder dataHolder) {
+		return dataHolder != null && dataHolder.get(SESSION_CONTEXT) != null;
+	}
+	
 	/**
 	 * @see com.thoughtworks.xstream.core.ReferenceByIdMarshallingStrategy#createMarshallingContext(com.thoughtworks.xstream.io.HierarchicalStreamWriter,
 	 *      com.thoughtworks.xstream.converters.ConverterLookup,
@@ -36,4 +128,11 @@ public class CustomReferenceByIdMarshallingStrategy extends ReferenceByIdMarshal
 		return new CustomReferenceByIdMarshaller(writer, converterLookup, mapper);
 	}
 	
+	/**
+	 * @return the number of marshalling contexts waiting in the pool
+	 */
+	public int getAvailable() {
+		return contexts == null ? 0 : contexts.size();
+	}
+	
 }
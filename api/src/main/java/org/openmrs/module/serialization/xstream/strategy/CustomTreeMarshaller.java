@@ -0,0 +1,205 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream.strategy;
+
+import java.util.Arrays;
+
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.ConverterLookup;
+import com.thoughtworks.xstream.converters.SingleValueConverterWrapper;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.mapper.Mapper;
+
+/**
+ * A marshaller for documents which are trees: no object is given an id and no object is looked up
+ * by its id, the objects being written are only compared with the objects holding them, to detect
+ * a cycle, and with the objects written before, to detect an object held by several others. <br/>
+ * <br/>
+ * The objects written are remembered in an identity set, without being given an id, and a
+ * {@link SharedNodeException} is thrown the second time one is met, as it would be read back as
+ * two objects. An object which a short converter only wrote as its uuid isn't remembered, since it
+ * is looked up again by its uuid when it is read. A marshaller can be told to write the shared
+ * objects each time instead, if losing their identity is fine. An object met again inside itself
+ * can't be written without a reference, so a {@link CircularReferenceException} is thrown, as it
+ * is when the objects are nested deeper than the maximum depth, which is how a cycle going through
+ * different proxies of the same entity shows up. <br/>
+ * <br/>
+ * The documents are read back by the usual {@link CustomReferenceByIdMarshallingStrategy}, which
+ * doesn't need the ids when there are no references. As the root has no id "1", it is marked with
+ * the attribute {@link #ROOT_ATTRIBUTE}.
+ * 
+ * @see CustomTreeMarshallingStrategy
+ */
+public class CustomTreeMarshaller extends CustomReferenceByIdMarshaller {
+	
+	public static final int DEFAULT_MAX_DEPTH = 256;
+	
+	private final int maxDepth;
+	
+	//the objects being written, from the root to the current one
+	private Object[] ancestors = new Object[16];
+	
+	private int ancestorCount;
+	
+	//the objects written so far, null if the shared objects are written twice
+	private final CustomObjectIdDictionary written;
+	
+	//the depth of the object which was only written as its uuid, 0 if there is none
+	private int uuidReference;
+	
+	/**
+	 * @param maxDepth - the maximum number of nested objects, strings, numbers, dates and other
+	 *            immutable values are not counted
+	 * @param detectSharedNodes - true to fail on an object met twice, false to write it twice and
+	 *            read it back as two objects
+	 */
+	public CustomTreeMarshaller(HierarchicalStreamWriter writer, ConverterLookup converterLookup, Mapper mapper,
+	    int maxDepth, boolean detectSharedNodes) {
+		this(writer, converterLookup, mapper, maxDepth, detectSharedNodes, 0);
+	}
+	
+	/**
+	 * Create a marshaller which writes a fragment of a larger document, see
+	 * {@link CustomReferenceByIdMarshaller#CustomReferenceByIdMarshaller(HierarchicalStreamWriter, ConverterLookup, Mapper, IDGenerator, int)}
+	 * 
+	 * @param count - the number of objects written before the fragment
+	 */
+	public CustomTreeMarshaller(HierarchicalStreamWriter writer, ConverterLookup converterLookup, Mapper mapper,
+	    int maxDepth, boolean detectSharedNodes, int count) {
+		super(writer, converterLookup, mapper, new SequenceGenerator(1), count);
+		// the elements don't need to be numbered when there are no ids
+		this.writer = writer;
+		this.maxDepth = maxDepth;
+		this.written = detectSharedNodes ? new CustomObjectIdDictionary() : null;
+	}
+	
+	/**
+	 * Create a marshaller which fails on an object met twice
+	 * 
+	 * @param maxDepth - the maximum number of nested objects, strings, numbers, dates and other
+	 *            immutable values are not counted
+	 */
+	public CustomTreeMarshaller(HierarchicalStreamWriter writer, ConverterLookup converterLookup, Mapper mapper,
+	    int maxDepth) {
+		this(writer, converterLookup, mapper, maxDepth, true);
+	}
+	
+	public CustomTreeMarshaller(HierarchicalStreamWriter writer, ConverterLookup converterLookup, Mapper mapper) {
+		this(writer, converterLookup, mapper, DEFAULT_MAX_DEPTH);
+	}
+	
+	/**
+	 * @see org.openmrs.module.serialization.xstream.strategy.CustomReferenceByIdMarshaller#convert(java.lang.Object,
+	 *      com.thoughtworks.xstream.converters.Converter)
+	 */
+	@Override
+	public void convert(Object item, Converter converter) {
+		if (getMapper().isImmutableValueType(item.getClass())) {
+			converter.marshal(item, writer, this);
+			return;
+		}
+		// a proxy may be initialized while it is written, so the ancestors are kept as they were met
+		for (int i = ancestorCount - 1; i >= 0; i--) {
+			if (CustomObjectIdDictionary.isSameNode(ancestors[i], item)) {
+				throw new CircularReferenceException("Recursive reference to parent object of type "
+				        + item.getClass().getName() + " at depth " + ancestorCount);
+			}
+		}
+		if (ancestorCount == maxDepth) {
+			throw new CircularReferenceException("Objects of type " + item.getClass().getName()
+			        + " are nested deeper than " + maxDepth + " levels");
+		}
+		// an object written as a single value has no identity to keep
+		boolean tracked = written != null && !(converter instanceof SingleValueConverterWrapper);
+		if (tracked && written.containsId(item)) {
+			throw new SharedNodeException("Object of type " + item.getClass().getName() + " is held by several others");
+		}
+		if (ancestorCount == ancestors.length) {
+			ancestors = Arrays.copyOf(ancestors, ancestorCount * 2);
+		}
+		ancestors[ancestorCount++] = item;
+		try {
+			marshalObject(item, converter);
+			if (tracked && uuidReference != ancestorCount) {
+				written.associateId(item, 0);
+			}
+		}
+		finally {
+			uuidReference = 0;
+			ancestors[--ancestorCount] = null;
+		}
+	}
+	
+	/**
+	 * Tell this marshaller that the object being written is only written as its uuid, so that it
+	 * can be met again without the document failing to be a tree
+	 * 
+	 * @see org.openmrs.module.serialization.xstream.converter.BaseShortConverter
+	 */
+	public void markUuidReference() {
+		uuidReference = ancestorCount;
+	}
+	
+	/**
+	 * The root of a tree never has the id "1", so it is always marked
+	 * 
+	 * @see org.openmrs.module.serialization.xstream.strategy.CustomReferenceByIdMarshaller#isRootMarked()
+	 */
+	@Override
+	protected boolean isRootMarked() {
+		return true;
+	}
+	
+	/**
+	 * @see org.openmrs.module.serialization.xstream.strategy.CustomReferenceByIdMarshaller#reuse(com.thoughtworks.xstream.io.HierarchicalStreamWriter)
+	 */
+	@Override
+	void reuse(HierarchicalStreamWriter writer) {
+		super.reuse(writer);
+		this.writer = writer;
+	}
+	
+	/**
+	 * @see org.openmrs.module.serialization.xstream.strategy.CustomReferenceByIdMarshaller#clear()
+	 */
+	@Override
+	void clear() {
+		super.clear();
+		if (written != null) {
+			written.clear();
+		}
+	}
+	
+	/**
+	 * @see org.openmrs.module.serialization.xstream.strategy.CustomReferenceByIdMarshaller#size()
+	 */
+	@Override
+	int size() {
+		return written == null ? super.size() : super.size() + written.size();
+	}
+	
+	/**
+	 * Thrown when an object is met a second time while the shared objects are detected, the
+	 * document is then not a tree
+	 */
+	public static class SharedNodeException extends ConversionException {
+		
+		private static final long serialVersionUID = 1L;
+		
+		public SharedNodeException(String message) {
+			super(message);
+		}
+	}
+}
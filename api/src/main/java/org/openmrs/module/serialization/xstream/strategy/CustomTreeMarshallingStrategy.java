@@ -0,0 +1,126 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream.strategy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.serialization.xstream.io.RecordingStreamWriter;
+import org.openmrs.module.serialization.xstream.strategy.CustomTreeMarshaller.SharedNodeException;
+
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.converters.ConverterLookup;
+import com.thoughtworks.xstream.converters.DataHolder;
+import com.thoughtworks.xstream.core.TreeMarshaller;
+import com.thoughtworks.xstream.core.TreeMarshaller.CircularReferenceException;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.mapper.Mapper;
+
+/**
+ * A marshalling strategy for payloads which are trees, such as short serialized objects whose
+ * metadata is written as uuids. The documents are written by a {@link CustomTreeMarshaller}, so
+ * they have no "id" attributes and cost no "reference" lookups, and they are read back like any
+ * other document. <br/>
+ * <br/>
+ * When an object turns out to hold itself, or to be held by several others, the strict strategy
+ * fails with a {@link CircularReferenceException} or a {@link SharedNodeException}, as the document
+ * would read back as a different graph. The other one writes the document again with the reference
+ * strategy instead, so that the objects shared in the graph are shared again when the document is
+ * read. To do so it records each document in memory and only writes it once it is known to be a
+ * tree, a document is thus held in memory whole before its first byte is written, even by the
+ * streaming methods of the serializer. The records of a session are written as in the reference
+ * strategy by the latter, as they can't be recorded one by one once they share their references.
+ * Both strategies remember the objects written in a document to find the shared ones.
+ * 
+ * @see CustomTreeMarshaller
+ * @see org.openmrs.module.serialization.xstream.ReferenceMode
+ */
+public class CustomTreeMarshallingStrategy extends CustomReferenceByIdMarshallingStrategy {
+	
+	private static Log log = LogFactory.getLog(CustomTreeMarshallingStrategy.class);
+	
+	//writes the documents which are not trees, null if they fail
+	private final CustomReferenceByIdMarshallingStrategy fallback;
+	
+	/**
+	 * @param strict - true to fail on a cycle or a shared object, false to write the document with
+	 *            references instead
+	 */
+	public CustomTreeMarshallingStrategy(boolean strict) {
+		this.fallback = strict ? null : new CustomReferenceByIdMarshallingStrategy();
+	}
+	
+	/**
+	 * @see org.openmrs.module.serialization.xstream.strategy.CustomReferenceByIdMarshallingStrategy#marshal(com.thoughtworks.xstream.io.HierarchicalStreamWriter,
+	 *      java.lang.Object, com.thoughtworks.xstream.converters.ConverterLookup,
+	 *      com.thoughtworks.xstream.mapper.Mapper, com.thoughtworks.xstream.converters.DataHolder)
+	 */
+	@Override
+	public void marshal(HierarchicalStreamWriter writer, Object obj, ConverterLookup converterLookup, Mapper mapper,
+	                    DataHolder dataHolder) {
+		if (fallback == null) {
+			super.marshal(writer, obj, converterLookup, mapper, dataHolder);
+			return;
+		}
+		if (isSession(dataHolder)) {
+			fallback.marshal(writer, obj, converterLookup, mapper, dataHolder);
+			return;
+		}
+		RecordingStreamWriter recording = new RecordingStreamWriter();
+		try {
+			super.marshal(recording, obj, converterLookup, mapper, dataHolder);
+		}
+		catch (ConversionException e) {
+			if (!isNotATree(e)) {
+				throw e;
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("Writing " + obj.getClass().getName() + " with references, it isn't a tree: " + e.getMessage());
+			}
+			fallback.marshal(writer, obj, converterLookup, mapper, dataHolder);
+			return;
+		}
+		recording.replay(writer);
+	}
+	
+	/**
+	 * @see org.openmrs.module.serialization.xstream.strategy.CustomReferenceByIdMarshallingStrategy#createMarshallingContext(com.thoughtworks.xstream.io.HierarchicalStreamWriter,
+	 *      com.thoughtworks.xstream.converters.ConverterLookup,
+	 *      com.thoughtworks.xstream.mapper.Mapper)
+	 */
+	@Override
+	protected TreeMarshaller createMarshallingContext(HierarchicalStreamWriter writer, ConverterLookup converterLookup,
+	                                                  Mapper mapper) {
+		return new CustomTreeMarshaller(writer, converterLookup, mapper, CustomTreeMarshaller.DEFAULT_MAX_DEPTH, true);
+	}
+	
+	/**
+	 * @return whether this strategy fails on a cycle or a shared object instead of falling back to
+	 *         references
+	 */
+	public boolean isStrict() {
+		return fallback == null;
+	}
+	
+	/**
+	 * Some converters wrap the exceptions of the objects they hold, so the causes are looked at too
+	 */
+	static boolean isNotATree(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof CircularReferenceException || t instanceof SharedNodeException) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,249 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.serialization.xstream.strategy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import org.hibernate.Hibernate;
+import org.openmrs.module.serialization.xstream.ReferenceMode;
+import org.openmrs.module.serialization.xstream.RuntimeProperties;
+import org.openmrs.module.serialization.xstream.io.RecordingStreamWriter;
+import org.openmrs.util.OpenmrsClassLoader;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.converters.ConverterLookup;
+import com.thoughtworks.xstream.io.ExtendedHierarchicalStreamWriterHelper;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.mapper.Mapper;
+
+/**
+ * Writes a large list as one document using several threads. The list is split into chunks of
+ * {@link #getChunkSize()} items, each chunk is marshalled in a {@link ForkJoinPool} by its own
+ * {@link CustomReferenceByIdMarshaller} into a {@link RecordingStreamWriter}, and the chunks are
+ * then written in order as the children of a "list" element. <br/>
+ * <br/>
+ * At most {@link #getMaxInFlight()} chunks are submitted and not written yet at any time: the
+ * calling thread waits for the oldest one, writes it and forgets it, and only then submits the
+ * next one, so the memory used doesn't grow with the size of the list. <br/>
+ * <br/>
+ * The chunks follow the {@link ReferenceMode} of the serializer. In {@link ReferenceMode#ID} mode
+ * the ids of each chunk have their own namespace ("1-1", "1-2", ... for the first chunk, "2-1",
+ * ... for the second one), in the tree modes a chunk has no ids unless it isn't a tree and is
+ * written again with ids in {@link ReferenceMode#TREE} mode. The root is marked with
+ * {@link CustomReferenceByIdMarshaller#ROOT_ATTRIBUTE} rather than given an id, and the document
+ * is read back by the usual {@link CustomReferenceByIdMarshallingStrategy} as an ArrayList holding
+ * the items in order. A chunk can't reference an object written by another chunk, an object
+ * shared by items of two chunks is written in both of them and is read back as two objects. <br/>
+ * <br/>
+ * The items are read by the worker threads, outside the Hibernate session of the calling thread.
+ * The items which are proxies or collections still to be loaded are loaded by the calling thread
+ * before their chunk is submitted, and the marshalling fails on any such object met deeper in the
+ * items instead of loading it from a worker thread, so the graphs must be loaded beforehand. <br/>
+ * <br/>
+ * The default instance is configured by the runtime properties {@link #CHUNK_SIZE_PROPERTY} (200
+ * items by default) and {@link #PARALLELISM_PROPERTY} (the number of processors by default).
+ *
+ * @see org.openmrs.module.serialization.xstream.XStreamSerializer#serializeInParallel(List)
+ */
+public class ParallelCollectionMarshaller {
+	
+	public static final String CHUNK_SIZE_PROPERTY = "serialization.xstream.parallel.chunk.size";
+	
+	public static final String PARALLELISM_PROPERTY = "serialization.xstream.parallel.threads";
+	
+	private static final int DEFAULT_CHUNK_SIZE = 200;
+	
+	private static volatile ParallelCollectionMarshaller defaultMarshaller = null;
+	
+	private final ForkJoinPool pool;
+	
+	private final int chunkSize;
+	
+	private final int maxInFlight;
+	
+	/**
+	 * @param pool - the pool marshalling the chunks
+	 * @param chunkSize - the number of items of each chunk
+	 * @param maxInFlight - the maximum number of chunks submitted and not written yet
+	 */
+	public ParallelCollectionMarshaller(ForkJoinPool pool, int chunkSize, int maxInFlight) {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+		}
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("Invalid number of chunks in flight " + maxInFlight);
+		}
+		this.pool = pool;
+		this.chunkSize = chunkSize;
+		this.maxInFlight = maxInFlight;
+	}
+	
+	/**
+	 * Keeps twice as many chunks in flight as the pool has threads, so that the threads still have
+	 * work while the calling thread writes a chunk
+	 *
+	 * @param pool - the pool marshalling the chunks
+	 * @param chunkSize - the number of items of each chunk
+	 */
+	public ParallelCollectionMarshaller(ForkJoinPool pool, int chunkSize) {
+		this(pool, chunkSize, pool.getParallelism() * 2);
+	}
+	
+	/**
+	 * Get the marshaller configured by the runtime properties, it is created the first time it is
+	 * needed together with its pool, whose threads use the OpenMRS class loader
+	 *
+	 * @return the default marshaller
+	 */
+	public static ParallelCollectionMarshaller getDefault() {
+		ParallelCollectionMarshaller marshaller = defaultMarshaller;
+		if (marshaller == null) {
+			synchronized (ParallelCollectionMarshaller.class) {
+				marshaller = defaultMarshaller;
+				if (marshaller == null) {
+					int parallelism = RuntimeProperties.getInt(PARALLELISM_PROPERTY, Runtime.getRuntime()
+					        .availableProcessors());
+					int chunkSize = RuntimeProperties.getInt(CHUNK_SIZE_PROPERTY, DEFAULT_CHUNK_SIZE);
+					marshaller = new ParallelCollectionMarshaller(newPool(parallelism), chunkSize);
+					defaultMarshaller = marshaller;
+				}
+			}
+		}
+		return marshaller;
+	}
+	
+	/**
+	 * Write the given list, the items are marshalled by the pool while the chunks which are done
+	 * are written by the calling thread
+	 *
+	 * @param xstream - the configured xstream object to marshal the items with
+	 * @param mode - how the objects held by several others are written
+	 * @param list - the items to write, it must not be changed until this method returns
+	 * @param writer - the writer to write to, it is neither flushed nor closed
+	 */
+	public void marshal(XStream xstream, final ReferenceMode mode, List<?> list, HierarchicalStreamWriter writer) {
+		final Mapper mapper = xstream.getMapper();
+		final ConverterLookup converterLookup = xstream.getConverterLookup();
+		List<?> items = list instanceof RandomAccess ? list : new ArrayList<Object>(list);
+		
+		// the same root element the reference strategy writes for an ArrayList
+		ExtendedHierarchicalStreamWriterHelper.startNode(writer, mapper.serializedClass(ArrayList.class),
+		    ArrayList.class);
+		CustomReferenceByIdMarshaller.markRoot(writer);
+		
+		// the chunks submitted and not written yet, oldest first
+		Deque<ForkJoinTask<RecordingStreamWriter>> chunks = new ArrayDeque<ForkJoinTask<RecordingStreamWriter>>();
+		try {
+			int chunkCount = 0;
+			for (int from = 0; from < items.size(); from += chunkSize) {
+				if (chunks.size() == maxInFlight) {
+					chunks.poll().join().replay(writer);
+				}
+				final List<?> chunk = items.subList(from, Math.min(from + chunkSize, items.size()));
+				for (Object item : chunk) {
+					Hibernate.initialize(item);
+				}
+				final String prefix = (++chunkCount) + "-";
+				chunks.add(pool.submit(new Callable<RecordingStreamWriter>() {
+					
+					public RecordingStreamWriter call() {
+						if (mode != ReferenceMode.ID) {
+							RecordingStreamWriter tree = new RecordingStreamWriter();
+							try {
+								marshalChunk(chunk, new CustomTreeMarshaller(tree, converterLookup, mapper,
+								        CustomTreeMarshaller.DEFAULT_MAX_DEPTH, true, 1));
+								return tree;
+							}
+							catch (ConversionException e) {
+								if (mode == ReferenceMode.STRICT_TREE || !CustomTreeMarshallingStrategy.isNotATree(e)) {
+									throw e;
+								}
+							}
+						}
+						RecordingStreamWriter fragment = new RecordingStreamWriter();
+						marshalChunk(chunk, new CustomReferenceByIdMarshaller(fragment, converterLookup, mapper,
+						        new SequenceGenerator(prefix, 1), 1));
+						return fragment;
+					}
+				}));
+			}
+			while (!chunks.isEmpty()) {
+				chunks.poll().join().replay(writer);
+			}
+		}
+		finally {
+			// does nothing unless a chunk failed
+			for (ForkJoinTask<RecordingStreamWriter> chunk : chunks) {
+				chunk.cancel(false);
+			}
+		}
+		writer.endNode();
+	}
+	
+	/**
+	 * Write the items of a chunk with the given marshaller, which has counted the list itself, as
+	 * it is when one marshaller writes the whole list
+	 */
+	private static void marshalChunk(List<?> chunk, CustomReferenceByIdMarshaller marshaller) {
+		marshaller.refuseUnloaded();
+		for (Object item : chunk) {
+			marshaller.start(item, null);
+		}
+	}
+	
+	/**
+	 * @return the pool marshalling the chunks
+	 */
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+	
+	/**
+	 * @return the number of items of each chunk
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+	
+	/**
+	 * @return the maximum number of chunks submitted and not written yet
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+	
+	/**
+	 * Create a pool of daemon threads using the OpenMRS class loader
+	 */
+	private static ForkJoinPool newPool(int parallelism) {
+		return new ForkJoinPool(Math.max(1, parallelism), new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+			
+			public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+				ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				thread.setName("serialization-xstream-worker-" + thread.getPoolIndex());
+				thread.setContextClassLoader(OpenmrsClassLoader.getInstance());
+				return thread;
+			}
+		}, null, false);
+	}
+}
@@ -19,12 +19,31 @@ package org.openmrs.module.serialization.xstream.strategy;
  */
 public class SequenceGenerator implements CustomReferenceByIdMarshaller.IDGenerator {
 	
+	//the ids below this one are made into strings once, and shared by every document
+	private static final int CACHED_IDS = 16384;
+	
+	private static final String[] cache = new String[CACHED_IDS];
+	
+	private final String prefix;
+	
 	private int counter;
 	
 	/**
 	 * @param startsAt
 	 */
 	public SequenceGenerator(int startsAt) {
+		this("", startsAt);
+	}
+	
+	/**
+	 * Generate ids in their own namespace, so that fragments of a document written separately
+	 * never use the same id
+	 * 
+	 * @param prefix - the text every id starts with, such as "3-"
+	 * @param startsAt
+	 */
+	public SequenceGenerator(String prefix, int startsAt) {
+		this.prefix = prefix;
 		this.counter = startsAt;
 	}
 	
@@ -32,7 +51,45 @@ public class SequenceGenerator implements CustomReferenceByIdMarshaller.IDGenera
 	 * @see org.openmrs.serialization.xstream.strategy.CustomReferenceByIdMarshaller.IDGenerator#next(java.lang.Object)
 	 */
 	public String next(Object item) {
-		return String.valueOf(counter++);
+		return format(nextInt());
+	}
+	
+	/**
+	 * @return the next id as a number
+	 */
+	public int nextInt() {
+		return counter++;
+	}
+	
+	/**
+	 * Make the string of an id returned by {@link #nextInt()}
+	 * 
+	 * @param id
+	 * @return the id with the prefix of this generator
+	 */
+	public String format(int id) {
+		if (prefix.length() > 0) {
+			return prefix + id;
+		}
+		if (id >= 0 && id < CACHED_IDS) {
+			// a race only makes the same string twice
+			String s = cache[id];
+			if (s == null) {
+				s = String.valueOf(id);
+				cache[id] = s;
+			}
+			return s;
+		}
+		return String.valueOf(id);
+	}
+	
+	/**
+	 * Start the sequence again
+	 * 
+	 * @param startsAt
+	 */
+	public void reset(int startsAt) {
+		this.counter = startsAt;
 	}
 	
 }
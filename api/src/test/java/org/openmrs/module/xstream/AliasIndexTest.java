@@ -0,0 +1,100 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.xstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.openmrs.module.serialization.xstream.AliasIndex;
+import org.openmrs.util.OpenmrsClassLoader;
+import org.openmrs.util.OpenmrsConstants;
+
+/**
+ * Test class that test the alias index generated while building the module
+ */
+public class AliasIndexTest {
+
+	/**
+	 * the index is generated in the "process-classes" phase, so it should be on the test classpath
+	 * and list the domain classes without the inner ones
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldBeGeneratedAtBuildTime() throws Exception {
+		AliasIndex index = AliasIndex.load(OpenmrsClassLoader.getInstance());
+		assertNotNull("The alias index should have been generated at build time", index);
+		assertTrue(index.getClassNames().contains("org.openmrs.Patient"));
+		assertTrue(index.getClassNames().contains("org.openmrs.ConceptName"));
+		for (String className : index.getClassNames()) {
+			assertFalse(className.contains("$"));
+		}
+	}
+
+	/**
+	 * an index written by {@link AliasIndex#write(java.io.Writer)} should be read back unchanged
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldReadWhatWasWritten() throws Exception {
+		AliasIndex index = new AliasIndex(OpenmrsConstants.OPENMRS_VERSION_SHORT, Collections.singletonList("org.openmrs"),
+		        Arrays.asList("org.openmrs.Concept", "org.openmrs.Patient"));
+		StringWriter out = new StringWriter();
+		index.write(out);
+
+		AliasIndex read = AliasIndex.read(new ByteArrayInputStream(out.toString().getBytes("UTF-8")));
+		assertEquals(index.getPackageNames(), read.getPackageNames());
+		assertEquals(index.getClassNames(), read.getClassNames());
+		assertFalse(read.isStale(Collections.singletonList("org.openmrs"), OpenmrsClassLoader.getInstance()));
+	}
+
+	/**
+	 * the module runs on later OpenMRS versions than the one it is built against, the index stays
+	 * usable as long as its classes are there
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldNotBeStaleForAnotherVersionWithTheSameClasses() throws Exception {
+		AliasIndex otherPatch = new AliasIndex("2.0.99", Collections.singletonList("org.openmrs"), Arrays.asList(
+		    "org.openmrs.Concept", "org.openmrs.Patient"));
+		assertFalse(otherPatch.isStale(Collections.singletonList("org.openmrs"), OpenmrsClassLoader.getInstance()));
+	}
+
+	/**
+	 * an index listing a class which is gone or generated for other packages must not be used
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldBeStaleForMissingClassesOrOtherPackages() throws Exception {
+		AliasIndex missingClass = new AliasIndex(OpenmrsConstants.OPENMRS_VERSION_SHORT, Collections
+		        .singletonList("org.openmrs"), Arrays.asList("org.openmrs.Patient", "org.openmrs.NoSuchClass"));
+		assertTrue(missingClass.isStale(Collections.singletonList("org.openmrs"), OpenmrsClassLoader.getInstance()));
+
+		AliasIndex otherPackages = new AliasIndex(OpenmrsConstants.OPENMRS_VERSION_SHORT, Collections
+		        .singletonList("org.openmrs"), Collections.singletonList("org.openmrs.Patient"));
+		assertTrue(otherPackages.isStale(Arrays.asList("org.openmrs", "org.openmrs.module.foo"), OpenmrsClassLoader
+		        .getInstance()));
+	}
+}
@@ -0,0 +1,161 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.xstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.serialization.xstream.BoundedExecutor;
+import org.openmrs.module.serialization.xstream.XStreamCustomizer;
+import org.openmrs.module.serialization.xstream.XStreamSerializer;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+/**
+ * Test class that test the asynchronous calls of the serializers
+ */
+public class AsyncSerializationTest extends BaseModuleContextSensitiveTest {
+
+	/**
+	 * @see XStreamSerializer#serializeAsync(Object)
+	 * @verifies serialize the object in another thread
+	 */
+	@Test
+	public void serializeAsync_shouldSerializeTheObjectInAnotherThread() throws Exception {
+		XStreamSerializer serializer = (XStreamSerializer) Context.getSerializationService().getSerializer(
+		    XStreamSerializer.class);
+		Patient patient = TestUtil.newPatientGraph(1);
+		assertEquals(serializer.serialize(patient), serializer.serializeAsync(patient).get(10, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * @see XStreamSerializer#serializeAsync(Object)
+	 * @verifies serialize the object as the calling user
+	 */
+	@Test
+	public void serializeAsync_shouldSerializeTheObjectAsTheCallingUser() throws Exception {
+		XStreamSerializer serializer = new XStreamSerializer();
+		serializer.configure(new XStreamCustomizer() {
+
+			public void customize(XStream xstream) {
+				xstream.registerConverter(new AuthenticationConverter());
+			}
+		});
+		assertTrue(Context.isAuthenticated());
+		String xml = serializer.serializeAsync(new Probe()).get(10, TimeUnit.SECONDS);
+		assertTrue(xml, xml.contains(">true<"));
+		// the calling thread keeps its user
+		assertTrue(Context.isAuthenticated());
+	}
+
+	/**
+	 * @see XStreamSerializer#deserializeAsync(String, Class)
+	 * @verifies deserialize the object as the calling user
+	 */
+	@Test
+	public void deserializeAsync_shouldDeserializeTheObjectAsTheCallingUser() throws Exception {
+		XStreamSerializer serializer = (XStreamSerializer) Context.getSerializationService().getSerializer(
+		    XStreamSerializer.class);
+		Patient patient = Context.getPatientService().getPatient(2);
+		String xml = serializer.serialize(patient);
+		Patient read = serializer.<Patient> deserializeAsync(xml, Patient.class).get(10, TimeUnit.SECONDS);
+		assertEquals(patient.getUuid(), read.getUuid());
+		// the calling thread keeps its user
+		assertTrue(Context.isAuthenticated());
+	}
+
+	/**
+	 * once the limit of calls in flight is reached, submitting waits for a call to finish
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldBlockTheCallerWhenTooManyCallsAreInFlight() throws Exception {
+		ExecutorService threads = Executors.newCachedThreadPool();
+		try {
+			final BoundedExecutor executor = new BoundedExecutor(threads, 1);
+			final CountDownLatch release = new CountDownLatch(1);
+			CompletableFuture<String> first = executor.submit(new Callable<String>() {
+
+				public String call() throws Exception {
+					release.await();
+					return "first";
+				}
+			});
+			assertEquals(1, executor.getInFlight());
+
+			Thread submitter = new Thread() {
+
+				public void run() {
+					executor.submit(new Callable<String>() {
+
+						public String call() {
+							return "second";
+						}
+					});
+				}
+			};
+			submitter.start();
+			submitter.join(200);
+			assertTrue(submitter.isAlive());
+			assertFalse(first.isDone());
+
+			release.countDown();
+			submitter.join(10000);
+			assertFalse(submitter.isAlive());
+			assertEquals("first", first.get());
+		}
+		finally {
+			threads.shutdown();
+		}
+	}
+
+	private static class Probe {
+	}
+
+	/**
+	 * writes a probe as whether the thread writing it is authenticated
+	 */
+	private static class AuthenticationConverter implements Converter {
+
+		public boolean canConvert(Class type) {
+			return Probe.class.equals(type);
+		}
+
+		public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+			writer.setValue(String.valueOf(Context.isAuthenticated()));
+		}
+
+		public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.xstream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.beans.EventHandler;
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Test;
+import org.openmrs.OpenmrsObject;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.serialization.xstream.XStreamSerializer;
+import org.openmrs.module.serialization.xstream.io.ByteBufferPool;
+import org.openmrs.module.serialization.xstream.io.ChannelOutputStream;
+import org.openmrs.module.serialization.xstream.io.ChannelWriter;
+import org.openmrs.serialization.SerializationException;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+/**
+ * Test class that test writing documents to channels through pooled buffers
+ */
+public class ChannelOutputTest extends BaseModuleContextSensitiveTest {
+
+	/**
+	 * characters split across writes and buffers, including surrogate pairs, must be encoded as
+	 * if they were written at once, and the buffer must go back to the pool
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldEncodeAcrossBufferBoundaries() throws Exception {
+		ByteBufferPool pool = new ByteBufferPool(2, 16);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		String text = "<name>Zoë 😀 & 中文</name>\n";
+
+		ChannelWriter writer = new ChannelWriter(new ChannelOutputStream(Channels.newChannel(bytes), pool), Charset
+		        .forName("UTF-8"));
+		for (int r = 0; r < 10; r++) {
+			// splits the surrogate pair between two writes
+			int split = text.indexOf('\ud83d') + 1;
+			writer.write(text.substring(0, split));
+			writer.write(text.toCharArray(), split, text.length() - split);
+		}
+		writer.close();
+
+		StringBuilder expected = new StringBuilder();
+		for (int r = 0; r < 10; r++) {
+			expected.append(text);
+		}
+		assertArrayEquals(expected.toString().getBytes("UTF-8"), bytes.toByteArray());
+		assertEquals(1, pool.getAvailable());
+	}
+
+	/**
+	 * a discarded stream writes nothing more and gives its buffer back
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldDiscardTheBufferWithoutWritingIt() throws Exception {
+		ByteBufferPool pool = new ByteBufferPool(2, 16);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ChannelOutputStream out = new ChannelOutputStream(Channels.newChannel(bytes), pool);
+		out.write("<partial".getBytes("UTF-8"));
+
+		out.discard();
+		out.close();
+		assertEquals(0, bytes.size());
+		assertEquals(1, pool.getAvailable());
+	}
+
+	/**
+	 * @see XStreamSerializer#serialize(Object, java.nio.channels.WritableByteChannel, String)
+	 * @verifies not write a document which failed
+	 */
+	@Test
+	public void serialize_shouldNotWriteADocumentWhichFailed() throws Exception {
+		XStreamSerializer serializer = (XStreamSerializer) Context.getSerializationService().getSerializer(
+		    XStreamSerializer.class);
+		EventHandler handler = new EventHandler(new ProcessBuilder("someApp"), "start", null, null);
+		Object proxy = Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { OpenmrsObject.class }, handler);
+		int available = ByteBufferPool.getDefault().getAvailable();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			serializer.serialize(proxy, Channels.newChannel(bytes), "UTF-8");
+			fail("A proxy must not be serialized");
+		}
+		catch (SerializationException e) {
+			// expected
+		}
+		// not even the xml declaration
+		assertEquals(0, bytes.size());
+		assertEquals(Math.max(available, 1), ByteBufferPool.getDefault().getAvailable());
+	}
+
+	/**
+	 * @see XStreamSerializer#serialize(Object, java.nio.channels.WritableByteChannel, String)
+	 * @verifies write the same document as serialize to an output stream
+	 */
+	@Test
+	public void serialize_shouldWriteTheSameDocumentAsSerializeToAnOutputStream() throws Exception {
+		XStreamSerializer serializer = (XStreamSerializer) Context.getSerializationService().getSerializer(
+		    XStreamSerializer.class);
+		Patient patient = Context.getPatientService().getPatient(2);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		serializer.serialize(patient, expected, "UTF-8");
+
+		File file = File.createTempFile("patient", ".xml");
+		try {
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+			try {
+				serializer.serialize(patient, channel, "UTF-8");
+			}
+			finally {
+				channel.close();
+			}
+			assertArrayEquals(expected.toByteArray(), Files.readAllBytes(file.toPath()));
+		}
+		finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,221 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.xstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.OpenmrsObject;
+import org.openmrs.Patient;
+import org.openmrs.module.serialization.xstream.strategy.CustomObjectIdDictionary;
+import org.openmrs.module.serialization.xstream.strategy.CustomReferenceByIdMarshallingStrategy;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+/**
+ * Test class that test the identity based dictionary of the reference strategy
+ */
+public class CustomObjectIdDictionaryTest {
+
+	/**
+	 * equal objects, such as empty collections or entities with the same uuid, are distinct
+	 */
+	@Test
+	public void shouldCompareObjectsByIdentity() {
+		CustomObjectIdDictionary dictionary = new CustomObjectIdDictionary();
+		List<String> names = new ArrayList<String>();
+		List<String> addresses = new ArrayList<String>();
+		Patient patient = new Patient();
+		Patient copy = new Patient();
+		copy.setUuid(patient.getUuid());
+
+		dictionary.associateId(names, 1);
+		dictionary.associateId(patient, 2);
+		assertEquals(1, dictionary.lookupId(names));
+		assertEquals(CustomObjectIdDictionary.NO_ID, dictionary.lookupId(addresses));
+		assertFalse(dictionary.containsId(new HashMap<String, String>()));
+		assertEquals(2, dictionary.lookupId(patient));
+		assertFalse(dictionary.containsId(copy));
+	}
+
+	/**
+	 * the table must keep finding every object while it grows and objects are removed
+	 */
+	@Test
+	public void shouldBehaveAsAnIdentityMap() {
+		CustomObjectIdDictionary dictionary = new CustomObjectIdDictionary();
+		Map<Object, Integer> expected = new IdentityHashMap<Object, Integer>();
+		List<Object> objects = new ArrayList<Object>();
+		for (int i = 0; i < 500; i++) {
+			objects.add(new Object());
+		}
+		Random random = new Random(42);
+		for (int i = 0; i < 20000; i++) {
+			Object o = objects.get(random.nextInt(objects.size()));
+			if (random.nextInt(3) == 0) {
+				dictionary.removeId(o);
+				expected.remove(o);
+			} else {
+				dictionary.associateId(o, i);
+				expected.put(o, i);
+			}
+		}
+		assertEquals(expected.size(), dictionary.size());
+		for (Object o : objects) {
+			int id = expected.containsKey(o) ? expected.get(o) : CustomObjectIdDictionary.NO_ID;
+			assertEquals(id, dictionary.lookupId(o));
+			assertEquals(expected.containsKey(o), dictionary.containsId(o));
+		}
+
+		dictionary.clear();
+		assertEquals(0, dictionary.size());
+		assertFalse(dictionary.containsId(objects.get(0)));
+	}
+
+	/**
+	 * a proxy keeps its id once it is initialized, and shares it with its implementation when it is
+	 * added initialized
+	 */
+	@Test
+	public void shouldKeepTheIdOfAProxyOnceItIsInitialized() {
+		CustomObjectIdDictionary dictionary = new CustomObjectIdDictionary();
+		boolean[] initialized = { false };
+		Object implementation = new Object();
+		Object proxy = newProxy(implementation, initialized);
+		dictionary.associateId(proxy, 1);
+		initialized[0] = true;
+		assertEquals(1, dictionary.lookupId(proxy));
+
+		Object other = new Object();
+		Object initializedProxy = newProxy(other, new boolean[] { true });
+		dictionary.associateId(initializedProxy, 2);
+		assertEquals(2, dictionary.lookupId(other));
+
+		Object third = new Object();
+		dictionary.associateId(third, 3);
+		assertEquals(3, dictionary.lookupId(newProxy(third, new boolean[] { true })));
+	}
+
+	/**
+	 * a proxy added before it is initialized shares its id with its implementation once it is
+	 * initialized
+	 */
+	@Test
+	public void shouldShareTheIdOfAProxyAddedUninitializedWithItsImplementation() {
+		CustomObjectIdDictionary dictionary = new CustomObjectIdDictionary();
+		boolean[] initialized = { false };
+		Location location = new Location(5);
+		Object proxy = newProxy(location, initialized);
+		dictionary.associateId(proxy, 1);
+		assertFalse(dictionary.containsId(location));
+
+		initialized[0] = true;
+		assertEquals(1, dictionary.lookupId(location));
+		assertEquals(1, dictionary.lookupId(proxy));
+		assertFalse(dictionary.containsId(new Location(5)));
+	}
+
+	/**
+	 * a proxy which is initialized while it is written is written as a reference the next time
+	 */
+	@Test
+	public void shouldWriteAProxyInitializedWhileItIsMarshalledOnce() {
+		XStream xstream = new XStream();
+		xstream.setMarshallingStrategy(new CustomReferenceByIdMarshallingStrategy(0));
+		xstream.registerConverter(new Converter() {
+
+			@SuppressWarnings("rawtypes")
+			public boolean canConvert(Class type) {
+				return HibernateProxy.class.isAssignableFrom(type);
+			}
+
+			public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+				// as the proxy converters do, the implementation is got through the initializer
+				writer.setValue(String.valueOf(((HibernateProxy) source).getHibernateLazyInitializer()
+				        .getImplementation()));
+			}
+
+			public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+				throw new UnsupportedOperationException();
+			}
+		}, XStream.PRIORITY_VERY_HIGH);
+		Object proxy = newProxy("implementation", new boolean[] { false });
+		List<Object> list = new ArrayList<Object>();
+		list.add(proxy);
+		list.add(proxy);
+
+		String xml = xstream.toXML(list);
+		assertEquals(xml, xml.indexOf("implementation"), xml.lastIndexOf("implementation"));
+		assertTrue(xml, xml.contains(" reference=\"2\""));
+	}
+
+	/**
+	 * Create a Hibernate proxy, which is initialized when its implementation is asked for
+	 */
+	private Object newProxy(final Object implementation, final boolean[] initialized) {
+		ClassLoader loader = getClass().getClassLoader();
+		final LazyInitializer initializer = (LazyInitializer) Proxy.newProxyInstance(loader,
+		    new Class[] { LazyInitializer.class }, new InvocationHandler() {
+
+			    public Object invoke(Object proxy, Method method, Object[] args) {
+				    if (method.getName().equals("isUninitialized")) {
+					    return !initialized[0];
+				    } else if (method.getName().equals("getIdentifier")) {
+					    return implementation instanceof OpenmrsObject ? ((OpenmrsObject) implementation).getId() : null;
+				    } else if (method.getName().equals("getImplementation")) {
+					    initialized[0] = true;
+					    return implementation;
+				    }
+				    throw new UnsupportedOperationException(method.getName());
+			    }
+		    });
+		return Proxy.newProxyInstance(loader, new Class[] { HibernateProxy.class }, new InvocationHandler() {
+
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getHibernateLazyInitializer")) {
+					return initializer;
+				} else if (method.getName().equals("writeReplace")) {
+					return implementation;
+				} else if (method.getName().equals("hashCode")) {
+					return System.identityHashCode(proxy);
+				} else if (method.getName().equals("equals")) {
+					return proxy == args[0];
+				} else if (method.getName().equals("toString")) {
+					return "proxy of " + implementation;
+				}
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+}
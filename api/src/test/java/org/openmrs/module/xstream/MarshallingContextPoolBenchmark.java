@@ -0,0 +1,67 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.xstream;
+
+import java.lang.management.ManagementFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+import org.openmrs.ConceptSource;
+import org.openmrs.module.serialization.xstream.StreamDriverType;
+import org.openmrs.module.serialization.xstream.XStreamSerializer;
+import org.openmrs.module.serialization.xstream.strategy.CustomReferenceByIdMarshallingStrategy;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+/**
+ * Logs the bytes allocated by serializing a small object with and without the pool of marshalling
+ * contexts. It only runs with the "benchmarks" profile, as it measures rather than asserts and
+ * needs the HotSpot ThreadMXBean
+ *
+ * @see MarshallingContextPoolTest
+ */
+public class MarshallingContextPoolBenchmark extends BaseModuleContextSensitiveTest {
+
+	private static Log log = LogFactory.getLog(MarshallingContextPoolBenchmark.class);
+
+	private static final int ROUNDS = 10000;
+
+	@Test
+	public void logTheAllocationPerCall() throws Exception {
+		ConceptSource source = new ConceptSource();
+		source.setName("Some source");
+		long unpooled = allocatedPerCall(newSerializer(0), source);
+		long pooled = allocatedPerCall(newSerializer(4), source);
+		log.info("Bytes allocated per serialize call: " + unpooled + " without the pool, " + pooled + " with it");
+	}
+
+	private XStreamSerializer newSerializer(int poolSize) throws Exception {
+		XStreamSerializer serializer = new XStreamSerializer(null, StreamDriverType.XPP3);
+		serializer.getXstream().setMarshallingStrategy(new CustomReferenceByIdMarshallingStrategy(poolSize));
+		return serializer;
+	}
+
+	private long allocatedPerCall(XStreamSerializer serializer, Object o) throws Exception {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		for (int i = 0; i < ROUNDS; i++) {
+			serializer.serialize(o);
+		}
+		long start = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < ROUNDS; i++) {
+			serializer.serialize(o);
+		}
+		return (threads.getThreadAllocatedBytes(thread) - start) / ROUNDS;
+	}
+}
@@ -0,0 +1,213 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.xstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.openmrs.ConceptSource;
+import org.openmrs.module.serialization.xstream.StreamDriverType;
+import org.openmrs.module.serialization.xstream.XStreamSerializer;
+import org.openmrs.module.serialization.xstream.strategy.CustomReferenceByIdMarshallingStrategy;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.core.MapBackedDataHolder;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.xml.CompactWriter;
+
+/**
+ * Test class that test reusing the marshalling contexts of the reference strategy
+ *
+ * @see MarshallingContextPoolBenchmark
+ */
+public class MarshallingContextPoolTest extends BaseModuleContextSensitiveTest {
+
+	/**
+	 * a reused context must write exactly what a new one writes, ids restarting from "1"
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldWriteTheSameDocumentsWithAReusedContext() throws Exception {
+		XStreamSerializer pooled = new XStreamSerializer(null, StreamDriverType.XPP3);
+		XStreamSerializer unpooled = newSerializer(0);
+		CustomReferenceByIdMarshallingStrategy strategy = new CustomReferenceByIdMarshallingStrategy(4);
+		pooled.getXstream().setMarshallingStrategy(strategy);
+
+		for (int i = 0; i < 3; i++) {
+			Object graph = i % 2 == 0 ? TestUtil.newPatientGraph(i) : TestUtil.newConceptGraph(i);
+			assertEquals(unpooled.serialize(graph), pooled.serialize(graph));
+			assertEquals(1, strategy.getAvailable());
+		}
+	}
+
+	/**
+	 * a context is cleared before it goes back to the pool, so an object of the last document is
+	 * written in full again rather than as a reference to it
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldForgetTheObjectsOfTheLastDocument() throws Exception {
+		XStreamSerializer serializer = new XStreamSerializer(null, StreamDriverType.XPP3);
+		CustomReferenceByIdMarshallingStrategy strategy = new CustomReferenceByIdMarshallingStrategy(1);
+		serializer.getXstream().setMarshallingStrategy(strategy);
+		ConceptSource source = new ConceptSource();
+		source.setName("Some source");
+
+		String first = serializer.serialize(source);
+		assertEquals(1, strategy.getAvailable());
+		String second = serializer.serialize(source);
+		assertEquals(first, second);
+		assertTrue(second, !second.contains(" reference="));
+		assertEquals(1, strategy.getAvailable());
+	}
+
+	/**
+	 * a context which remembered more than the maximum number of objects is dropped
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldNotPoolAContextWhichRememberedTooManyObjects() throws Exception {
+		XStreamSerializer serializer = new XStreamSerializer(null, StreamDriverType.XPP3);
+		CustomReferenceByIdMarshallingStrategy strategy = new CustomReferenceByIdMarshallingStrategy(1);
+		serializer.getXstream().setMarshallingStrategy(strategy);
+		List<List<String>> large = new ArrayList<List<String>>();
+		for (int i = 0; i <= CustomReferenceByIdMarshallingStrategy.MAX_POOLED_REFERENCES; i++) {
+			large.add(new ArrayList<String>());
+		}
+
+		serializer.serialize(large);
+		assertEquals(0, strategy.getAvailable());
+		serializer.serialize(new ArrayList<String>());
+		assertEquals(1, strategy.getAvailable());
+	}
+
+	/**
+	 * a context whose document failed half way is cleared and then writes the next document as a
+	 * new one would
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldReuseAContextWhoseDocumentFailed() throws Exception {
+		XStreamSerializer pooled = newSerializer(1);
+		pooled.getXstream().registerConverter(new FailingConverter());
+		XStreamSerializer unpooled = newSerializer(0);
+		List<Object> failing = new ArrayList<Object>();
+		failing.add(TestUtil.newConceptGraph(1));
+		failing.add(new Failing());
+
+		try {
+			pooled.serialize(failing);
+			fail("the document must fail");
+		}
+		catch (ConversionException e) {
+			// expected
+		}
+		Object graph = TestUtil.newPatientGraph(1);
+		assertEquals(unpooled.serialize(graph), pooled.serialize(graph));
+	}
+
+	/**
+	 * a pooled context must not keep the data holder of the last document, nor hand its entries
+	 * to the next document
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldForgetTheDataHolderOfTheLastDocument() throws Exception {
+		XStreamSerializer serializer = newSerializer(1);
+		serializer.getXstream().registerConverter(new HolderConverter());
+		MapBackedDataHolder dataHolder = new MapBackedDataHolder();
+		dataHolder.put(HolderConverter.KEY, "from the caller");
+
+		StringWriter first = new StringWriter();
+		serializer.getXstream().marshal(new Holder(), new CompactWriter(first), dataHolder);
+		assertTrue(first.toString(), first.toString().contains("from the caller"));
+		HolderConverter.last = null;
+		serializer.serialize(new Holder());
+		assertNull(HolderConverter.last);
+	}
+
+	private XStreamSerializer newSerializer(int poolSize) throws Exception {
+		XStreamSerializer serializer = new XStreamSerializer(null, StreamDriverType.XPP3);
+		serializer.getXstream().setMarshallingStrategy(new CustomReferenceByIdMarshallingStrategy(poolSize));
+		return serializer;
+	}
+
+	private static class Failing {
+	}
+
+	private static class Holder {
+	}
+
+	/**
+	 * Writes the entry of the data holder under {@link #KEY} as the text of a {@link Holder}
+	 */
+	private static class HolderConverter implements Converter {
+
+		static final String KEY = HolderConverter.class.getName();
+
+		static Object last;
+
+		@SuppressWarnings("rawtypes")
+		public boolean canConvert(Class type) {
+			return type == Holder.class;
+		}
+
+		public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+			last = context.get(KEY);
+			if (last != null) {
+				writer.setValue(last.toString());
+			}
+		}
+
+		public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Fails on {@link Failing}, in the middle of a document
+	 */
+	private static class FailingConverter implements Converter {
+
+		@SuppressWarnings("rawtypes")
+		public boolean canConvert(Class type) {
+			return type == Failing.class;
+		}
+
+		public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+			throw new ConversionException("Failing on purpose");
+		}
+
+		public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,319 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.xstream;
+
+import static org.custommonkey.xmlunit.XMLAssert.assertXpathEvaluatesTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.serialization.xstream.ReferenceMode;
+import org.openmrs.module.serialization.xstream.StreamDriverType;
+import org.openmrs.module.serialization.xstream.XStreamSerializer;
+import org.openmrs.module.serialization.xstream.XStreamShortSerializer;
+import org.openmrs.module.serialization.xstream.io.ParallelObjectReader;
+import org.openmrs.module.serialization.xstream.io.RecordScanner;
+import org.openmrs.module.serialization.xstream.io.XStreamObjectReader;
+import org.openmrs.module.serialization.xstream.io.XStreamObjectWriter;
+import org.openmrs.module.serialization.xstream.strategy.CustomReferenceByIdMarshaller;
+import org.openmrs.serialization.SerializationException;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import com.thoughtworks.xstream.io.StreamException;
+
+/**
+ * Test class that test writing and reading documents which hold many records
+ */
+public class ObjectStreamTest extends BaseModuleContextSensitiveTest {
+
+	private XStreamSerializer getSerializer(Class<? extends XStreamSerializer> c) throws Exception {
+		return (XStreamSerializer) Context.getSerializationService().getSerializer(c);
+	}
+
+	/**
+	 * @see XStreamSerializer#createObjectWriter(java.io.Writer, String)
+	 * @verifies write each object as a child of the root
+	 */
+	@Test
+	public void createObjectWriter_shouldWriteEachObjectAsAChildOfTheRoot() throws Exception {
+		XStreamSerializer serializer = getSerializer(XStreamShortSerializer.class);
+		Patient patient2 = Context.getPatientService().getPatient(2);
+		Patient patient7 = Context.getPatientService().getPatient(7);
+
+		StringWriter writer = new StringWriter();
+		XStreamObjectWriter out = serializer.createObjectWriter(writer, "patients");
+		out.write(patient2);
+		out.write(patient7);
+		out.write(patient2);
+		out.close();
+		assertEquals(3, out.getCount());
+
+		String xml = writer.toString();
+		assertXpathEvaluatesTo("3", "count(/patients/patient)", xml);
+		// the references restart with every record, so each one is fully serialized
+		assertXpathEvaluatesTo("3", "count(/patients/patient[@id='1'])", xml);
+		assertXpathEvaluatesTo(patient2.getUuid(), "/patients/patient[3]/@uuid", xml);
+		assertXpathEvaluatesTo("3", "count(/patients/patient/personId)", xml);
+	}
+
+	/**
+	 * @see XStreamSerializer#createObjectReader(java.io.Reader, Class)
+	 * @verifies read back the objects written by an object writer
+	 */
+	@Test
+	public void createObjectReader_shouldReadBackTheObjectsWrittenByAnObjectWriter() throws Exception {
+		XStreamSerializer serializer = getSerializer(XStreamSerializer.class);
+		Patient patient2 = Context.getPatientService().getPatient(2);
+		Patient patient7 = Context.getPatientService().getPatient(7);
+
+		StringWriter writer = new StringWriter();
+		XStreamObjectWriter out = serializer.createObjectWriter(writer);
+		out.write(patient2);
+		out.write(patient7);
+		out.close();
+
+		XStreamObjectReader<Patient> in = serializer.createObjectReader(new StringReader(writer.toString()), Patient.class);
+		try {
+			assertTrue(in.hasNext());
+			assertEquals(patient2.getUuid(), in.next().getUuid());
+			assertTrue(in.hasNext());
+			Patient read = in.next();
+			assertEquals(patient7.getUuid(), read.getUuid());
+			assertEquals(patient7.getGivenName(), read.getGivenName());
+			assertFalse(in.hasNext());
+			assertEquals(2, in.getCount());
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @see XStreamSerializer#createSessionWriter(java.io.Writer)
+	 * @verifies write the objects shared by several records once
+	 */
+	@Test
+	public void createSessionWriter_shouldWriteTheObjectsSharedBySeveralRecordsOnce() throws Exception {
+		XStreamSerializer serializer = getSerializer(XStreamSerializer.class);
+		Patient patient2 = Context.getPatientService().getPatient(2);
+		Patient patient7 = Context.getPatientService().getPatient(7);
+
+		StringWriter writer = new StringWriter();
+		XStreamObjectWriter out = serializer.createSessionWriter(writer);
+		assertTrue(out.isSession());
+		out.write(patient2);
+		out.write(patient7);
+		out.write(patient2);
+		out.close();
+
+		String xml = writer.toString();
+		assertXpathEvaluatesTo(XStreamObjectWriter.SESSION, "/list/@references", xml);
+		assertXpathEvaluatesTo("1", "/list/patient[3]/@reference", xml);
+		assertXpathEvaluatesTo("0", "count(/list/patient[3]/*)", xml);
+
+		XStreamObjectReader<Patient> in = serializer.createObjectReader(new StringReader(xml), Patient.class);
+		try {
+			assertTrue(in.isSession());
+			Patient first = in.next();
+			assertEquals(patient2.getUuid(), first.getUuid());
+			assertEquals(patient7.getUuid(), in.next().getUuid());
+			assertSame(first, in.next());
+			assertFalse(in.hasNext());
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @see XStreamSerializer#createSessionWriter(java.io.Writer)
+	 * @verifies read back every record of a short serializer in full
+	 */
+	@Test
+	public void createSessionWriter_shouldReadBackEveryRecordOfAShortSerializerInFull() throws Exception {
+		XStreamSerializer serializer = getSerializer(XStreamShortSerializer.class);
+		Patient saved = Context.getPatientService().getPatient(2);
+		Patient unsaved = new Patient();
+		unsaved.setGender("F");
+		unsaved.setCreator(saved.getCreator());
+
+		StringWriter writer = new StringWriter();
+		XStreamObjectWriter out = serializer.createSessionWriter(writer);
+		out.write(saved);
+		out.write(unsaved);
+		out.close();
+
+		String xml = writer.toString();
+		assertXpathEvaluatesTo("true", "/list/patient[2]/@" + CustomReferenceByIdMarshaller.ROOT_ATTRIBUTE, xml);
+		XStreamObjectReader<Patient> in = serializer.createObjectReader(new StringReader(xml), Patient.class);
+		try {
+			assertEquals(saved.getUuid(), in.next().getUuid());
+			// read as a reference, the second root would be looked up by its uuid and not be found
+			Patient read = in.next();
+			assertNotNull(read);
+			assertEquals(unsaved.getUuid(), read.getUuid());
+			assertEquals("F", read.getGender());
+			assertEquals(saved.getCreator().getUuid(), read.getCreator().getUuid());
+			assertFalse(in.hasNext());
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @see XStreamSerializer#createSessionWriter(java.io.Writer)
+	 * @verifies follow the reference mode of the serializer
+	 */
+	@Test
+	public void createSessionWriter_shouldFollowTheReferenceModeOfTheSerializer() throws Exception {
+		XStreamSerializer serializer = new XStreamSerializer(null, StreamDriverType.XPP3);
+		serializer.configure(ReferenceMode.STRICT_TREE);
+		List<String> first = new ArrayList<String>();
+		first.add("first");
+		List<String> second = new ArrayList<String>();
+		second.add("second");
+
+		StringWriter writer = new StringWriter();
+		XStreamObjectWriter out = serializer.createSessionWriter(writer);
+		out.write(first);
+		out.write(second);
+		out.close();
+
+		String xml = writer.toString();
+		assertFalse(xml, xml.contains(" id="));
+		assertFalse(xml, xml.contains(" reference="));
+		XStreamObjectReader<List> in = serializer.createObjectReader(new StringReader(xml), List.class);
+		try {
+			assertEquals(first, in.next());
+			assertEquals(second, in.next());
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @see XStreamSerializer#createParallelObjectReader(java.io.Reader, Class)
+	 * @verifies read the records in the order of the document
+	 */
+	@Test
+	public void createParallelObjectReader_shouldReadTheRecordsInTheOrderOfTheDocument() throws Exception {
+		XStreamSerializer serializer = getSerializer(XStreamSerializer.class);
+		List<Concept> concepts = new ArrayList<Concept>();
+		StringWriter writer = new StringWriter();
+		XStreamObjectWriter out = serializer.createObjectWriter(writer);
+		for (int i = 0; i < 100; i++) {
+			concepts.add(TestUtil.newConceptGraph(i));
+			out.write(concepts.get(i));
+		}
+		out.close();
+
+		ParallelObjectReader<Concept> in = serializer.createParallelObjectReader(new StringReader(writer.toString()),
+		    Concept.class);
+		try {
+			for (Concept concept : concepts) {
+				assertTrue(in.hasNext());
+				assertEquals(serializer.serialize(concept), serializer.serialize(in.next()));
+			}
+			assertFalse(in.hasNext());
+			assertEquals(100, in.getCount());
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @see XStreamSerializer#createParallelObjectReader(java.io.Reader, Class)
+	 * @verifies reject a session document
+	 */
+	@Test(expected = SerializationException.class)
+	public void createParallelObjectReader_shouldRejectASessionDocument() throws Exception {
+		XStreamSerializer serializer = getSerializer(XStreamSerializer.class);
+		StringWriter writer = new StringWriter();
+		XStreamObjectWriter out = serializer.createSessionWriter(writer);
+		out.write(Context.getPatientService().getPatient(2));
+		out.write(Context.getPatientService().getPatient(2));
+		out.close();
+
+		serializer.createParallelObjectReader(new StringReader(writer.toString()), Patient.class);
+	}
+
+	/**
+	 * the markup which may hide a "&lt;" or a "&gt;" must not be taken for tags
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldSplitADocumentIntoTheChildrenOfItsRoot() throws Exception {
+		String xml = "<?xml version=\"1.0\"?>\n<!-- <list> -->\n<list a=\"x\">\n"
+		        + "  <concept id=\"1\" name=\"a > b\"><names><name>x</name></names></concept>\n"
+		        + "  <!-- </list> -->\n  <null/>\n"
+		        + "  <string><![CDATA[</string><string>]]></string>\n" + "</list>\n";
+		RecordScanner scanner = new RecordScanner(new StringReader(xml));
+		assertEquals("x", scanner.getRootAttribute("a"));
+		assertNull(scanner.getRootAttribute(XStreamObjectWriter.REFERENCES_ATTRIBUTE));
+		assertEquals("<concept id=\"1\" name=\"a > b\"><names><name>x</name></names></concept>", scanner.next());
+		assertEquals("<null/>", scanner.next());
+		assertEquals("<string><![CDATA[</string><string>]]></string>", scanner.next());
+		assertNull(scanner.next());
+		assertNull(scanner.next());
+		scanner.close();
+	}
+
+	/**
+	 * a truncated document must be reported with the offset of the record it ends in
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldNameTheOffsetOfTheRecordATruncatedDocumentEndsIn() throws Exception {
+		String xml = "<list>\n  <null/>\n  <string>abc</str";
+		RecordScanner scanner = new RecordScanner(new StringReader(xml));
+		assertEquals("<null/>", scanner.next());
+		try {
+			scanner.next();
+			fail("the truncated record was returned");
+		}
+		catch (StreamException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("record 2 at offset 19"));
+		}
+		scanner.close();
+	}
+
+	/**
+	 * a root element without the value of an attribute must not be read past its end
+	 *
+	 * @throws Exception
+	 */
+	@Test(expected = StreamException.class)
+	public void shouldFailOnAMalformedRootElement() throws Exception {
+		RecordScanner scanner = new RecordScanner(new StringReader("<list references><null/></list>"));
+		scanner.getRootAttribute(XStreamObjectWriter.REFERENCES_ATTRIBUTE);
+	}
+}
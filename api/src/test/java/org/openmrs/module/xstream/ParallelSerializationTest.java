@@ -0,0 +1,273 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.xstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.openmrs.module.serialization.xstream.ReferenceMode;
+import org.openmrs.module.serialization.xstream.StreamDriverType;
+import org.openmrs.module.serialization.xstream.XStreamCustomizer;
+import org.openmrs.module.serialization.xstream.XStreamSerializer;
+import org.openmrs.module.serialization.xstream.strategy.CustomReferenceByIdMarshaller;
+import org.openmrs.module.serialization.xstream.strategy.CustomTreeMarshaller.SharedNodeException;
+import org.openmrs.module.serialization.xstream.strategy.ParallelCollectionMarshaller;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.WriterWrapper;
+import com.thoughtworks.xstream.io.xml.XppDriver;
+
+/**
+ * Test class that test serializing lists with several threads
+ */
+public class ParallelSerializationTest extends BaseModuleContextSensitiveTest {
+
+	/**
+	 * the chunks are written in order with their own ids, and the usual reference strategy reads
+	 * them back
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldStitchTheChunksInOrder() throws Exception {
+		XStreamSerializer serializer = new XStreamSerializer(null, StreamDriverType.XPP3);
+		List<Object> list = newGraphs(25);
+		list.add(7, null);
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			StringWriter xml = new StringWriter();
+			HierarchicalStreamWriter writer = new XppDriver().createWriter(xml);
+			new ParallelCollectionMarshaller(pool, 3).marshal(serializer.getXstream(), ReferenceMode.ID, list, writer);
+			writer.flush();
+
+			assertTrue(xml.toString().startsWith("<list " + CustomReferenceByIdMarshaller.ROOT_ATTRIBUTE + "=\"true\">"));
+			assertFalse(xml.toString().contains(" id=\"1\""));
+			assertTrue(xml.toString().contains("id=\"1-1\""));
+			assertTrue(xml.toString().contains("id=\"9-1\""));
+			assertSameItems(serializer, list, serializer.deserialize(xml.toString(), List.class));
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * a chunk is only submitted once the chunks before it are few enough, so the fragments waiting
+	 * to be written never hold the whole list
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldKeepAtMostMaxInFlightChunksWaiting() throws Exception {
+		final AtomicInteger marshalled = new AtomicInteger();
+		XStreamSerializer serializer = new XStreamSerializer(null, StreamDriverType.XPP3);
+		serializer.configure(new XStreamCustomizer() {
+
+			public void customize(XStream xstream) {
+				xstream.registerConverter(new CountingConverter(marshalled));
+			}
+		});
+		List<Object> list = new ArrayList<Object>();
+		for (int i = 0; i < 50; i++) {
+			list.add(new Counted());
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			ParallelCollectionMarshaller marshaller = new ParallelCollectionMarshaller(pool, 1, 2);
+			assertEquals(2, marshaller.getMaxInFlight());
+			ItemWriter writer = new ItemWriter(new XppDriver().createWriter(new StringWriter()), marshalled);
+			marshaller.marshal(serializer.getXstream(), ReferenceMode.ID, list, writer);
+
+			assertEquals(list.size(), writer.written);
+			assertTrue("Up to " + writer.maxWaiting + " chunks were waiting", writer.maxWaiting <= 2);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * the chunks of a tree mode serializer have no ids, unless a chunk isn't a tree
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldFollowTheReferenceModeOfTheSerializer() throws Exception {
+		XStreamSerializer serializer = new XStreamSerializer(null, StreamDriverType.XPP3);
+		serializer.configure(ReferenceMode.TREE);
+		assertEquals(ReferenceMode.TREE, serializer.getReferenceMode());
+		List<Object> list = new ArrayList<Object>();
+		for (int i = 0; i < 500; i++) {
+			Map<String, String> map = new HashMap<String, String>();
+			map.put("name", "value " + i);
+			list.add(map);
+		}
+
+		String xml = serializer.serializeInParallel(list);
+		assertFalse(xml, xml.contains(" id="));
+		assertEquals(list, serializer.deserialize(xml, List.class));
+
+		// a shared object makes its chunk fall back to ids, it is shared again once read
+		list.set(1, list.get(0));
+		xml = serializer.serializeInParallel(list);
+		assertTrue(xml, xml.contains(" reference="));
+		List<Object> read = serializer.deserialize(xml, List.class);
+		assertSame(read.get(0), read.get(1));
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	@Test(expected = SharedNodeException.class)
+	public void shouldFailOnASharedObjectInStrictTreeMode() throws Exception {
+		List<Object> list = new ArrayList<Object>();
+		list.add(new HashMap<String, String>());
+		list.add(list.get(0));
+
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			XStreamSerializer serializer = new XStreamSerializer(null, StreamDriverType.XPP3);
+			HierarchicalStreamWriter writer = new XppDriver().createWriter(new StringWriter());
+			new ParallelCollectionMarshaller(pool, 10).marshal(serializer.getXstream(), ReferenceMode.STRICT_TREE, list,
+			    writer);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * @see XStreamSerializer#serializeInParallel(List)
+	 * @verifies write a list which deserializes to the same items in order
+	 */
+	@Test
+	public void serializeInParallel_shouldWriteAListWhichDeserializesToTheSameItemsInOrder() throws Exception {
+		for (StreamDriverType type : StreamDriverType.values()) {
+			XStreamSerializer serializer = new XStreamSerializer(null, type);
+			List<Object> list = newGraphs(500);
+			assertSameItems(serializer, list, serializer.deserialize(serializer.serializeInParallel(list), List.class));
+		}
+	}
+
+	private List<Object> newGraphs(int count) {
+		List<Object> list = new ArrayList<Object>();
+		for (int i = 0; i < count; i++) {
+			list.add(i % 2 == 0 ? TestUtil.newPatientGraph(i) : TestUtil.newConceptGraph(i));
+		}
+		return list;
+	}
+
+	private void assertSameItems(XStreamSerializer serializer, List<?> expected, List<?> actual) throws Exception {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			if (expected.get(i) == null) {
+				assertNull(actual.get(i));
+			} else {
+				assertEquals(serializer.serialize(expected.get(i)), serializer.serialize(actual.get(i)));
+			}
+		}
+	}
+
+	private static class Counted {
+	}
+
+	/**
+	 * counts the items marshalled by the worker threads
+	 */
+	private static class CountingConverter implements Converter {
+
+		private final AtomicInteger marshalled;
+
+		public CountingConverter(AtomicInteger marshalled) {
+			this.marshalled = marshalled;
+		}
+
+		public boolean canConvert(Class type) {
+			return Counted.class.equals(type);
+		}
+
+		public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+			marshalled.incrementAndGet();
+		}
+
+		public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+			return new Counted();
+		}
+	}
+
+	/**
+	 * keeps the largest number of items marshalled and not written yet, each chunk holding one item
+	 */
+	private static class ItemWriter extends WriterWrapper {
+
+		private final AtomicInteger marshalled;
+
+		private int depth = 0;
+
+		private int written = 0;
+
+		private int maxWaiting = 0;
+
+		public ItemWriter(HierarchicalStreamWriter wrapped, AtomicInteger marshalled) {
+			super(wrapped);
+			this.marshalled = marshalled;
+		}
+
+		@Override
+		public void startNode(String name, Class clazz) {
+			startItem();
+			super.startNode(name, clazz);
+		}
+
+		@Override
+		public void startNode(String name) {
+			startItem();
+			super.startNode(name);
+		}
+
+		@Override
+		public void endNode() {
+			depth--;
+			super.endNode();
+		}
+
+		private void startItem() {
+			if (++depth == 2) {
+				maxWaiting = Math.max(maxWaiting, marshalled.get() - written);
+				written++;
+			}
+		}
+	}
+}
@@ -0,0 +1,56 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.xstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import javassist.util.proxy.ProxyFactory;
+
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.module.serialization.xstream.mapper.ProxyResolver;
+
+/**
+ * Test class that test telling proxies from the classes they proxy
+ */
+public class ProxyResolverTest {
+
+	@Test
+	public void shouldFindTheClassAJavassistProxyExtends() {
+		ProxyFactory factory = new ProxyFactory();
+		factory.setSuperclass(Location.class);
+		Class<?> type = factory.createClass();
+
+		assertTrue(ProxyResolver.isProxy(type));
+		assertTrue(ProxyResolver.isJavassistProxy(type));
+		assertFalse(ProxyResolver.isCGLibProxy(type));
+		assertEquals(ProxyResolver.Kind.JAVASSIST, ProxyResolver.getKind(type));
+		assertSame(Location.class, ProxyResolver.getTargetClass(type));
+		assertTrue(ProxyResolver.isCached(type));
+	}
+
+	@Test
+	public void shouldLeaveOtherObjectsAsTheyAre() {
+		Location location = new Location();
+		assertFalse(ProxyResolver.isProxy(Location.class));
+		assertSame(Location.class, ProxyResolver.getTargetClass(Location.class));
+		assertSame(location, ProxyResolver.resolve(location));
+		// nothing is attached to the classes which are not proxies
+		assertFalse(ProxyResolver.isCached(Location.class));
+		assertFalse(ProxyResolver.isCached(String.class));
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.xstream;
+
+import java.lang.management.ManagementFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.module.serialization.xstream.StreamDriverType;
+import org.openmrs.module.serialization.xstream.XStreamSerializer;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+/**
+ * Logs the time and the bytes allocated per element by the reference strategy on wide concept
+ * graphs. It only runs with the "benchmarks" profile, as it measures rather than asserts and
+ * needs the HotSpot ThreadMXBean
+ *
+ * @see ReferenceMarshallingTest
+ */
+public class ReferenceMarshallingBenchmark extends BaseModuleContextSensitiveTest {
+
+	private static Log log = LogFactory.getLog(ReferenceMarshallingBenchmark.class);
+
+	private static final int ROUNDS = 50;
+
+	@Test
+	public void logTheCostPerElementOfWideConceptGraphs() throws Exception {
+		XStreamSerializer serializer = new XStreamSerializer(null, StreamDriverType.XPP3);
+		Concept concept = ReferenceMarshallingTest.newWideConceptGraph(ReferenceMarshallingTest.WIDTH);
+		int elements = countElements(serializer.serialize(concept));
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		for (int r = 0; r < ROUNDS; r++) {
+			serializer.serialize(concept);
+		}
+		long bytes = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		for (int r = 0; r < ROUNDS; r++) {
+			serializer.serialize(concept);
+		}
+		long elapsed = System.nanoTime() - start;
+		bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+
+		long written = (long) elements * ROUNDS;
+		log.info(elements + " elements per document: " + (elapsed / written) + " ns and " + (bytes / written)
+		        + " bytes allocated per element");
+	}
+
+	private int countElements(String xml) {
+		int count = 0;
+		for (int i = xml.indexOf('<'); i >= 0; i = xml.indexOf('<', i + 1)) {
+			if (xml.charAt(i + 1) != '/') {
+				count++;
+			}
+		}
+		return count;
+	}
+}
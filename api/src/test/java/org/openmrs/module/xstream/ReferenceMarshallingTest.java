@@ -0,0 +1,75 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.xstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.ConceptAnswer;
+import org.openmrs.module.serialization.xstream.StreamDriverType;
+import org.openmrs.module.serialization.xstream.XStreamSerializer;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+/**
+ * Test class that test the ids and references written by the reference strategy on wide concept
+ * graphs, in which many elements share the same parents
+ *
+ * @see ReferenceMarshallingBenchmark
+ */
+public class ReferenceMarshallingTest extends BaseModuleContextSensitiveTest {
+
+	static final int WIDTH = 200;
+
+	private static final Pattern ID = Pattern.compile(" id=\"([^\"]+)\"");
+
+	private static final Pattern REFERENCE = Pattern.compile(" reference=\"([^\"]+)\"");
+
+	@Test
+	public void shouldWriteEveryReferenceToAnExistingId() throws Exception {
+		XStreamSerializer serializer = new XStreamSerializer(null, StreamDriverType.XPP3);
+		String xml = serializer.serialize(newWideConceptGraph(WIDTH));
+
+		Set<String> ids = new HashSet<String>();
+		for (Matcher m = ID.matcher(xml); m.find();) {
+			assertTrue("Duplicate id " + m.group(1), ids.add(m.group(1)));
+		}
+		for (Matcher m = REFERENCE.matcher(xml); m.find();) {
+			assertTrue("Dangling reference " + m.group(1), ids.contains(m.group(1)));
+		}
+		Concept read = serializer.deserialize(xml, Concept.class);
+		assertEquals(WIDTH, read.getSetMembers().size());
+		assertEquals(WIDTH, read.getAnswers(true).size());
+	}
+
+	/**
+	 * Build a set concept with the given number of members, each of them also being an answer
+	 */
+	static Concept newWideConceptGraph(int width) {
+		Concept concept = TestUtil.newConceptGraph(-1);
+		concept.setSet(true);
+		for (int i = 0; i < width; i++) {
+			Concept member = TestUtil.newConceptGraph(i);
+			concept.addSetMember(member);
+			concept.addAnswer(new ConceptAnswer(member));
+		}
+		return concept;
+	}
+}
@@ -0,0 +1,177 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.xstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.serialization.xstream.ReferenceMode;
+import org.openmrs.module.serialization.xstream.StreamDriverType;
+import org.openmrs.module.serialization.xstream.XStreamSerializer;
+import org.openmrs.module.serialization.xstream.XStreamShortSerializer;
+import org.openmrs.module.serialization.xstream.strategy.CustomReferenceByIdMarshaller;
+import org.openmrs.module.serialization.xstream.strategy.CustomTreeMarshaller.SharedNodeException;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import com.thoughtworks.xstream.core.TreeMarshaller.CircularReferenceException;
+
+/**
+ * Test class that test writing documents without ids
+ */
+public class ReferenceModeTest extends BaseModuleContextSensitiveTest {
+
+	/**
+	 * a tree is written without ids
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldWriteTreesWithoutIds() throws Exception {
+		XStreamSerializer serializer = newSerializer(ReferenceMode.TREE);
+		List<Object> tree = new ArrayList<Object>();
+		for (int i = 0; i < 2; i++) {
+			Map<String, String> map = new HashMap<String, String>();
+			map.put("name", "value");
+			tree.add(map);
+		}
+		// strings are values, they are not nodes which could be shared
+		tree.add("value");
+
+		String xml = serializer.serialize(tree);
+		assertFalse(xml, xml.contains(" id="));
+		assertFalse(xml, xml.contains(" reference="));
+		List<Object> read = serializer.deserialize(xml, List.class);
+		assertEquals(tree, read);
+	}
+
+	/**
+	 * an object held by several others is written with references, so it is shared again once read
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldFallBackToReferencesOnASharedObject() throws Exception {
+		XStreamSerializer serializer = newSerializer(ReferenceMode.TREE);
+		Map<String, String> shared = new HashMap<String, String>();
+		shared.put("name", "value");
+		List<Object> graph = new ArrayList<Object>();
+		graph.add(shared);
+		graph.add(shared);
+
+		String xml = serializer.serialize(graph);
+		assertTrue(xml, xml.contains(" reference="));
+		List<Object> read = serializer.deserialize(xml, List.class);
+		assertEquals(2, read.size());
+		assertSame(read.get(0), read.get(1));
+	}
+
+	/**
+	 * the strict mode doesn't write a shared object twice, it would be read back as two objects
+	 *
+	 * @throws Exception
+	 */
+	@Test(expected = SharedNodeException.class)
+	public void shouldFailOnASharedObjectInStrictMode() throws Exception {
+		Map<String, String> shared = new HashMap<String, String>();
+		shared.put("name", "value");
+		List<Object> graph = new ArrayList<Object>();
+		graph.add(shared);
+		graph.add(shared);
+		newSerializer(ReferenceMode.STRICT_TREE).serialize(graph);
+	}
+
+	/**
+	 * the root of a short document has no id, it must still be read as written rather than looked
+	 * up by its uuid, and the objects written as uuids may be shared
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldReadTheRootOfAShortDocumentAsWritten() throws Exception {
+		User user = Context.getAuthenticatedUser();
+		for (ReferenceMode mode : new ReferenceMode[] { ReferenceMode.TREE, ReferenceMode.STRICT_TREE }) {
+			XStreamShortSerializer serializer = new XStreamShortSerializer(null, StreamDriverType.XPP3);
+			serializer.configure(mode);
+			// the location isn't saved, looking it up by its uuid would give null
+			Location location = new Location();
+			location.setName("Tree location");
+			location.setCreator(user);
+			location.setChangedBy(user);
+
+			String xml = serializer.serialize(location);
+			assertFalse(mode + ": " + xml, xml.contains(" id="));
+			assertTrue(mode + ": " + xml, xml.contains(" " + CustomReferenceByIdMarshaller.ROOT_ATTRIBUTE + "=\"true\""));
+			Location read = serializer.deserialize(xml, Location.class);
+			assertNotNull(mode + ": " + xml, read);
+			assertEquals(location.getUuid(), read.getUuid());
+			assertEquals("Tree location", read.getName());
+			assertEquals(user.getUuid(), read.getCreator().getUuid());
+			assertSame(read.getCreator(), read.getChangedBy());
+		}
+	}
+
+	/**
+	 * an object holding itself can't be written without a reference
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldFallBackToReferencesOnACycle() throws Exception {
+		List<Object> cycle = new ArrayList<Object>();
+		cycle.add("first");
+		cycle.add(cycle);
+
+		XStreamSerializer serializer = newSerializer(ReferenceMode.TREE);
+		String xml = serializer.serialize(cycle);
+		assertTrue(xml, xml.contains(" reference="));
+		List<Object> read = serializer.deserialize(xml, List.class);
+		assertSame(read, read.get(1));
+
+		// the fallback writes exactly what the reference strategy writes
+		Patient patient = TestUtil.newPatientGraph(1);
+		assertEquals(new XStreamSerializer(null, StreamDriverType.XPP3).serialize(patient), serializer.serialize(patient));
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	@Test(expected = CircularReferenceException.class)
+	public void shouldFailOnACycleInStrictMode() throws Exception {
+		List<Object> cycle = new ArrayList<Object>();
+		cycle.add(cycle);
+		newSerializer(ReferenceMode.STRICT_TREE).serialize(cycle);
+	}
+
+	private XStreamSerializer newSerializer(ReferenceMode mode) throws Exception {
+		XStreamSerializer serializer = new XStreamSerializer(null, StreamDriverType.XPP3);
+		serializer.configure(mode);
+		return serializer;
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.xstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.openmrs.module.serialization.xstream.SerializerWarmUp;
+import org.openmrs.module.serialization.xstream.StreamDriverType;
+import org.openmrs.module.serialization.xstream.WireProfile;
+import org.openmrs.module.serialization.xstream.XStreamSerializer;
+import org.openmrs.module.serialization.xstream.XStreamShortSerializer;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+/**
+ * Test class that test the warm-up run when the module is started
+ */
+public class SerializerWarmUpTest extends BaseModuleContextSensitiveTest {
+
+	/**
+	 * the default hot types are used when the global property is blank
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldUseTheDefaultTypesWhenNoneAreConfigured() throws Exception {
+		assertEquals(SerializerWarmUp.parseTypeNames(SerializerWarmUp.DEFAULT_TYPES), SerializerWarmUp.parseTypeNames(" "));
+		assertEquals(Arrays.asList("org.openmrs.Patient", "org.openmrs.Concept"), SerializerWarmUp
+		        .parseTypeNames(" org.openmrs.Patient, ,org.openmrs.Concept"));
+	}
+
+	/**
+	 * unknown or abstract types are skipped, the others are warmed up without a session, through
+	 * the driver and the profile of each serializer
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldWarmUpInTheBackgroundAndSkipBadTypes() throws Exception {
+		List<XStreamSerializer> serializers = Arrays.asList(new XStreamSerializer(), new XStreamShortSerializer(),
+		    new XStreamSerializer(null, StreamDriverType.STAX, WireProfile.COMPACT), new XStreamSerializer(null,
+		            StreamDriverType.BINARY));
+		List<String> typeNames = SerializerWarmUp.parseTypeNames(SerializerWarmUp.DEFAULT_TYPES
+		        + ",org.openmrs.BaseOpenmrsObject,org.openmrs.NoSuchClass");
+
+		Thread thread = new SerializerWarmUp(serializers, typeNames).start();
+		thread.join(60000);
+		assertFalse(thread.isAlive());
+	}
+}
@@ -0,0 +1,86 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.xstream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.Patient;
+import org.openmrs.module.serialization.xstream.StreamDriverType;
+import org.openmrs.module.serialization.xstream.XStreamSerializer;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+/**
+ * Logs the throughput and the document size of every stream driver. It only runs with the
+ * "benchmarks" profile, as it measures rather than asserts
+ *
+ * @see StreamDriverTest
+ */
+public class StreamDriverBenchmark extends BaseModuleContextSensitiveTest {
+
+	private static Log log = LogFactory.getLog(StreamDriverBenchmark.class);
+
+	private static final int WARM_UP_ROUNDS = 20;
+
+	private static final int MEASURED_ROUNDS = 200;
+
+	@Test
+	public void logTheThroughputOfEveryDriver() throws Exception {
+		List<Object> patients = new ArrayList<Object>();
+		List<Object> concepts = new ArrayList<Object>();
+		for (int i = 0; i < 10; i++) {
+			patients.add(TestUtil.newPatientGraph(i));
+			concepts.add(TestUtil.newConceptGraph(i));
+		}
+		for (StreamDriverType type : StreamDriverType.values()) {
+			XStreamSerializer serializer = new XStreamSerializer(null, type);
+			benchmark(serializer, patients, Patient.class);
+			benchmark(serializer, concepts, Concept.class);
+		}
+	}
+
+	/**
+	 * Serialize and deserialize the graphs many times and log the throughput
+	 */
+	private void benchmark(XStreamSerializer serializer, List<Object> graphs, Class<?> type) throws Exception {
+		long bytes = 0;
+		for (Object graph : graphs) {
+			bytes += StreamDriverTest.size(serializer, graph);
+		}
+		roundTrip(serializer, graphs, WARM_UP_ROUNDS);
+		long start = System.nanoTime();
+		roundTrip(serializer, graphs, MEASURED_ROUNDS);
+		long elapsed = Math.max(1, System.nanoTime() - start);
+
+		long documents = (long) MEASURED_ROUNDS * graphs.size();
+		log.info(serializer.getDriverType() + " " + type.getSimpleName() + ": " + (documents * 1000000000L / elapsed)
+		        + " round trips/s, " + (bytes / graphs.size()) + " bytes per document");
+	}
+
+	private void roundTrip(XStreamSerializer serializer, List<Object> graphs, int rounds) throws Exception {
+		for (int r = 0; r < rounds; r++) {
+			for (Object graph : graphs) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				serializer.serialize(graph, out, "UTF-8");
+				serializer.deserialize(new ByteArrayInputStream(out.toByteArray()), graph.getClass());
+			}
+		}
+	}
+}
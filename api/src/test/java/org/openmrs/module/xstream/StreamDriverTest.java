@@ -0,0 +1,73 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.xstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+import org.openmrs.module.serialization.xstream.StreamDriverType;
+import org.openmrs.module.serialization.xstream.XStreamSerializer;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+/**
+ * Test class that test the stream drivers a serializer can use, every driver must read back what
+ * it wrote
+ *
+ * @see StreamDriverBenchmark
+ */
+public class StreamDriverTest extends BaseModuleContextSensitiveTest {
+
+	@Test
+	public void shouldRoundTripPatientsAndConceptsWithEveryDriver() throws Exception {
+		XStreamSerializer reference = new XStreamSerializer(null, StreamDriverType.XPP3);
+		for (StreamDriverType type : StreamDriverType.values()) {
+			XStreamSerializer serializer = new XStreamSerializer(null, type);
+			assertEquals(type, serializer.getDriverType());
+
+			// what a driver reads back must be what was written
+			for (int i = 0; i < 10; i++) {
+				for (Object graph : new Object[] { TestUtil.newPatientGraph(i), TestUtil.newConceptGraph(i) }) {
+					Object read = serializer.deserialize(serializer.serialize(graph), graph.getClass());
+					assertEquals(reference.serialize(graph), reference.serialize(read));
+				}
+			}
+		}
+	}
+
+	/**
+	 * the binary format exists to be smaller than xml, it must stay so for the domain graphs
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldWriteSmallerBinaryDocumentsThanXml() throws Exception {
+		XStreamSerializer xml = new XStreamSerializer(null, StreamDriverType.XPP3);
+		XStreamSerializer binary = new XStreamSerializer(null, StreamDriverType.BINARY);
+		for (Object graph : new Object[] { TestUtil.newPatientGraph(1), TestUtil.newConceptGraph(1) }) {
+			assertTrue(graph.getClass().getSimpleName(), size(binary, graph) < size(xml, graph));
+		}
+	}
+
+	/**
+	 * @return the number of bytes of the serialized graph
+	 */
+	static int size(XStreamSerializer serializer, Object graph) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		serializer.serialize(graph, out, "UTF-8");
+		return out.size();
+	}
+}
@@ -14,12 +14,25 @@
 package org.openmrs.module.xstream;
 
 import java.lang.reflect.Field;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 
 import junit.framework.Assert;
 
 import org.apache.commons.io.IOUtils;
 import org.junit.Ignore;
+import org.openmrs.Concept;
+import org.openmrs.ConceptClass;
+import org.openmrs.ConceptDatatype;
+import org.openmrs.ConceptDescription;
+import org.openmrs.ConceptName;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.PersonAddress;
+import org.openmrs.PersonName;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.serialization.xstream.XStreamSerializer;
 import org.openmrs.util.OpenmrsClassLoader;
@@ -60,4 +73,52 @@ public class TestUtil {
 	public static String getFileContents(String filename) throws Exception {
 		return IOUtils.toString(OpenmrsClassLoader.getInstance().getResourceAsStream(filename), "UTF-8");
 	}
+
+	/**
+	 * Builds a transient patient with a few names, addresses and identifiers, the objects are
+	 * never saved so they can be serialized without touching the database
+	 *
+	 * @param i a number making the values of this patient unique
+	 * @return the patient
+	 */
+	public static Patient newPatientGraph(int i) {
+		Patient patient = new Patient();
+		patient.setGender(i % 2 == 0 ? "F" : "M");
+		patient.setBirthdate(new Date(i * 86400000L));
+		patient.addName(new PersonName("Given" + i, "Middle" + i, "Family" + i));
+		patient.addName(new PersonName("Other" + i, null, "Family" + i));
+		for (int a = 0; a < 2; a++) {
+			PersonAddress address = new PersonAddress();
+			address.setAddress1(a + " Main Street & Co <" + i + ">");
+			address.setCityVillage("Village " + i);
+			patient.addAddress(address);
+		}
+		PatientIdentifierType type = new PatientIdentifierType();
+		type.setName("Old Identification Number");
+		Location location = new Location();
+		location.setName("Unknown Location");
+		patient.addIdentifier(new PatientIdentifier("ID-" + i, type, location));
+		return patient;
+	}
+
+	/**
+	 * Builds a transient concept with names in a few locales and a description
+	 *
+	 * @param i a number making the values of this concept unique
+	 * @return the concept
+	 */
+	public static Concept newConceptGraph(int i) {
+		Concept concept = new Concept();
+		ConceptClass conceptClass = new ConceptClass();
+		conceptClass.setName("Diagnosis");
+		concept.setConceptClass(conceptClass);
+		ConceptDatatype datatype = new ConceptDatatype();
+		datatype.setName("N/A");
+		concept.setDatatype(datatype);
+		for (Locale locale : new Locale[] { Locale.ENGLISH, Locale.FRENCH, Locale.GERMAN }) {
+			concept.addName(new ConceptName("Concept " + i + " " + locale, locale));
+		}
+		concept.addDescription(new ConceptDescription("Description of concept " + i, Locale.ENGLISH));
+		return concept;
+	}
 }
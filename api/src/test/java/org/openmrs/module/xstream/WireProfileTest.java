@@ -0,0 +1,157 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.xstream;
+
+import static org.custommonkey.xmlunit.XMLAssert.assertXpathExists;
+import static org.custommonkey.xmlunit.XMLAssert.assertXpathNotExists;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.module.serialization.xstream.StreamDriverType;
+import org.openmrs.module.serialization.xstream.WireProfile;
+import org.openmrs.module.serialization.xstream.XStreamCustomizer;
+import org.openmrs.module.serialization.xstream.XStreamSerializer;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * Test class that test the documents written with each {@link WireProfile}
+ */
+public class WireProfileTest extends BaseModuleContextSensitiveTest {
+
+	private static Log log = LogFactory.getLog(WireProfileTest.class);
+
+	/**
+	 * the compact profile writes no whitespace, promotes the single value fields to attributes and
+	 * reads back what it wrote
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldWriteSmallerDocumentsWithTheCompactProfile() throws Exception {
+		for (StreamDriverType driverType : new StreamDriverType[] { StreamDriverType.XPP3, StreamDriverType.STAX }) {
+			XStreamSerializer serializer = new XStreamSerializer(null, driverType, WireProfile.DEFAULT);
+			XStreamSerializer compact = new XStreamSerializer(null, driverType, WireProfile.COMPACT);
+			assertEquals(WireProfile.COMPACT, compact.getProfile());
+
+			for (Object graph : new Object[] { TestUtil.newPatientGraph(1), TestUtil.newConceptGraph(1) }) {
+				String xml = serializer.serialize(graph);
+				String compactXml = compact.serialize(graph);
+				assertFalse(compactXml.contains("\n"));
+
+				int reduction = 100 - compactXml.length() * 100 / xml.length();
+				log.info(driverType + " " + graph.getClass().getSimpleName() + ": " + xml.length() + " chars by default, "
+				        + compactXml.length() + " chars when compact, " + reduction + "% smaller");
+				assertTrue(compactXml.length() < xml.length());
+
+				Object read = compact.deserialize(compactXml, graph.getClass());
+				assertEquals(xml, serializer.serialize(read));
+			}
+		}
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldPromoteNumbersAndBooleansButNotStringsOrDates() throws Exception {
+		XStreamSerializer compact = new XStreamSerializer(null, StreamDriverType.XPP3, WireProfile.COMPACT);
+		Patient patient = TestUtil.newPatientGraph(2);
+
+		String xml = compact.serialize(patient);
+		assertXpathExists("/patient/@voided", xml);
+		assertXpathNotExists("/patient/voided", xml);
+		assertXpathExists("/patient/gender", xml);
+		assertXpathExists("/patient/birthdate", xml);
+		assertXpathNotExists("/patient/@birthdate", xml);
+	}
+
+	/**
+	 * a timestamp held by a date field is read back as a timestamp
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldKeepTheClassOfADateWithTheCompactProfile() throws Exception {
+		XStreamSerializer compact = new XStreamSerializer(null, StreamDriverType.XPP3, WireProfile.COMPACT);
+		Patient patient = TestUtil.newPatientGraph(2);
+		Timestamp created = new Timestamp(1234567890123L);
+		patient.setDateCreated(created);
+
+		Patient read = compact.deserialize(compact.serialize(patient), Patient.class);
+		assertEquals(Timestamp.class, read.getDateCreated().getClass());
+		assertEquals(created, read.getDateCreated());
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldNotPromoteAFieldNamedLikeAnAttributeOfXstream() throws Exception {
+		XStreamSerializer compact = new XStreamSerializer(null, StreamDriverType.XPP3, WireProfile.COMPACT);
+		Counter counter = new Counter();
+		counter.id = 5;
+		counter.count = 7;
+
+		String xml = compact.serialize(counter);
+		assertXpathExists("/*/@count", xml);
+		assertXpathExists("/*/id", xml);
+
+		Counter read = compact.deserialize(xml, Counter.class);
+		assertEquals(Integer.valueOf(5), read.id);
+		assertEquals(7, read.count);
+	}
+
+	/**
+	 * an attribute of xstream may be turned off by aliasing it to null
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldPromoteFieldsWhenAnAttributeOfXstreamIsTurnedOff() throws Exception {
+		XStreamSerializer compact = new XStreamSerializer(null, StreamDriverType.XPP3, WireProfile.COMPACT);
+		compact.configure(new XStreamCustomizer() {
+
+			public void customize(XStream xstream) {
+				xstream.aliasSystemAttribute(null, "resolves-to");
+			}
+		});
+		Counter counter = new Counter();
+		counter.id = 5;
+		counter.count = 7;
+
+		String xml = compact.serialize(counter);
+		assertXpathExists("/*/@count", xml);
+		assertXpathExists("/*/id", xml);
+		assertEquals(7, compact.deserialize(xml, Counter.class).count);
+	}
+
+	/**
+	 * a class with a number field named like the id attribute of the reference strategy
+	 */
+	public static class Counter {
+
+		private Integer id;
+
+		private int count;
+	}
+}
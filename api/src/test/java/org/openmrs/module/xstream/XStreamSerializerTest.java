@@ -22,21 +22,44 @@ import org.junit.rules.ExpectedException;
 import org.openmrs.ConceptName;
 import org.openmrs.ConceptSource;
 import org.openmrs.OpenmrsObject;
+import org.openmrs.Patient;
 import org.openmrs.PersonName;
+import org.openmrs.Role;
 import org.openmrs.User;
+import org.openmrs.api.APIAuthenticationException;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.serialization.xstream.StreamDriverType;
+import org.openmrs.module.serialization.xstream.XStreamConfiguration;
+import org.openmrs.module.serialization.xstream.XStreamCustomizer;
 import org.openmrs.module.serialization.xstream.XStreamSerializer;
+import org.openmrs.module.serialization.xstream.XStreamShortSerializer;
+import org.openmrs.module.serialization.xstream.mapper.LazyAliasMapper;
+import org.openmrs.module.serialization.xstream.strategy.CustomReferenceByIdMarshaller;
 import org.openmrs.serialization.SerializationException;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.mapper.Mapper;
+
 import java.beans.EventHandler;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.lang.reflect.Proxy;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.junit.Assert.assertTrue;
 
@@ -133,6 +156,315 @@ public class XStreamSerializerTest extends BaseModuleContextSensitiveTest {
 		new XStreamSerializer();
 	}
 	
+	/**
+	 * The classes of "org.openmrs" should be aliased the first time they are used, without
+	 * registering any alias up front
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldAliasClassesOnDemand() throws Exception {
+		Mapper mapper = new XStreamSerializer().getXstream().getMapper();
+		
+		Assert.assertNotNull(mapper.lookupMapperOfType(LazyAliasMapper.class));
+		Assert.assertEquals("conceptName", mapper.serializedClass(ConceptName.class));
+		Assert.assertEquals(ConceptName.class, mapper.realClass("conceptName"));
+		Assert.assertEquals(User.class, mapper.realClass("user"));
+		// classes outside of the serialized packages keep their usual names
+		Assert.assertEquals("string", mapper.serializedClass(String.class));
+		Assert.assertEquals(String.class, mapper.realClass("string"));
+	}
+	
+	/**
+	 * an array is named after the alias of its component type, and is read back from that name
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldAliasArraysAfterTheirComponentType() throws Exception {
+		XStreamSerializer serializer = new XStreamSerializer();
+		Mapper mapper = serializer.getXstream().getMapper();
+		Assert.assertEquals("patient-array", mapper.serializedClass(Patient[].class));
+		Assert.assertEquals(Patient[].class, mapper.realClass("patient-array"));
+		Assert.assertEquals("conceptName-array-array", mapper.serializedClass(ConceptName[][].class));
+		Assert.assertEquals(ConceptName[][].class, mapper.realClass("conceptName-array-array"));
+		Assert.assertEquals("int-array", mapper.serializedClass(int[].class));
+		Assert.assertEquals(int[].class, mapper.realClass("int-array"));
+		
+		ArrayHolder holder = new ArrayHolder();
+		holder.items = new Patient[] { TestUtil.newPatientGraph(1) };
+		String xml = serializer.serialize(holder);
+		XMLAssert.assertXpathEvaluatesTo("patient-array", "/*/items/@class", xml);
+		
+		ArrayHolder read = serializer.deserialize(xml, ArrayHolder.class);
+		Assert.assertEquals(Patient[].class, read.items.getClass());
+		Assert.assertEquals(1, ((Patient[]) read.items).length);
+	}
+	
+	/**
+	 * an alias registered on xstream wins over the alias derived from the class name, for the
+	 * arrays too
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldPreferTheAliasesRegisteredExplicitly() throws Exception {
+		XStreamSerializer serializer = new XStreamSerializer();
+		serializer.configure(new XStreamCustomizer() {
+			
+			public void customize(XStream xstream) {
+				xstream.alias("patient", ConceptSource.class);
+				xstream.alias("person", Patient.class);
+			}
+		});
+		Mapper mapper = serializer.getXstream().getMapper();
+		Assert.assertEquals(ConceptSource.class, mapper.realClass("patient"));
+		Assert.assertEquals("person", mapper.serializedClass(Patient.class));
+		Assert.assertEquals("person-array", mapper.serializedClass(Patient[].class));
+		Assert.assertEquals(Patient[].class, mapper.realClass("person-array"));
+		
+		ConceptSource source = new ConceptSource();
+		source.setName("overridden");
+		String xml = serializer.serialize(source);
+		Assert.assertTrue(xml.startsWith("<patient"));
+		Assert.assertEquals("overridden", serializer.deserialize(xml, ConceptSource.class).getName());
+		
+		ArrayHolder holder = new ArrayHolder();
+		holder.items = new Patient[] { TestUtil.newPatientGraph(1) };
+		ArrayHolder read = serializer.deserialize(serializer.serialize(holder), ArrayHolder.class);
+		Assert.assertEquals(Patient[].class, read.items.getClass());
+	}
+	
+	/**
+	 * the full and the short serializer are configured from the same snapshot, so an alias computed
+	 * by one of them is known to the other one
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldShareTheConfigurationBetweenSerializers() throws Exception {
+		Assert.assertSame(XStreamConfiguration.getInstance(), XStreamConfiguration.getInstance());
+		
+		XStreamSerializer serializer = new XStreamSerializer();
+		XStreamShortSerializer shortSerializer = new XStreamShortSerializer();
+		Assert.assertNotSame(serializer.getXstream(), shortSerializer.getXstream());
+		
+		Assert.assertEquals("conceptSource", serializer.getXstream().getMapper().serializedClass(ConceptSource.class));
+		Assert.assertEquals(ConceptSource.class, shortSerializer.getXstream().getMapper().realClass("conceptSource"));
+	}
+	
+	/**
+	 * @see XStreamSerializer#serialize(Object, java.io.Writer)
+	 * @verifies write the same xml as serialize
+	 */
+	@Test
+	public void serialize_shouldWriteTheSameXmlAsSerialize() throws Exception {
+		Patient patient = Context.getPatientService().getPatient(2);
+		for (Class<? extends XStreamSerializer> c : Arrays.asList(XStreamSerializer.class, XStreamShortSerializer.class)) {
+			XStreamSerializer serializer = (XStreamSerializer) Context.getSerializationService().getSerializer(c);
+			String xml = serializer.serialize(patient);
+			
+			StringWriter writer = new StringWriter();
+			serializer.serialize(patient, writer);
+			Assert.assertEquals(xml, writer.toString());
+			
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			serializer.serialize(patient, out, "ISO-8859-1");
+			Assert.assertEquals("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n" + xml, out.toString("ISO-8859-1"));
+		}
+	}
+	
+	/**
+	 * @see XStreamSerializer#deserialize(java.io.Reader, Class)
+	 * @verifies read what serialize wrote
+	 */
+	@Test
+	public void deserialize_shouldReadWhatSerializeWrote() throws Exception {
+		XStreamSerializer serializer = (XStreamSerializer) Context.getSerializationService().getSerializer(
+		    XStreamSerializer.class);
+		Patient patient = Context.getPatientService().getPatient(2);
+		String xml = serializer.serialize(patient);
+		
+		Patient read = serializer.deserialize(new StringReader(xml), Patient.class);
+		Assert.assertEquals(patient.getUuid(), read.getUuid());
+		Assert.assertEquals(xml, serializer.serialize(read));
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		serializer.serialize(patient, out, "UTF-16");
+		read = serializer.deserialize(new ByteArrayInputStream(out.toByteArray()), Patient.class);
+		Assert.assertEquals(xml, serializer.serialize(read));
+		
+		Context.logout();
+		expectedException.expect(APIAuthenticationException.class);
+		serializer.deserialize(new StringReader(xml), Patient.class);
+	}
+	
+	/**
+	 * @see XStreamSerializer#serialize(Object)
+	 * @verifies encode binary documents in base64
+	 */
+	@Test
+	public void serialize_shouldEncodeBinaryDocumentsInBase64() throws Exception {
+		XStreamSerializer serializer = new XStreamSerializer(null, StreamDriverType.BINARY);
+		ConceptSource source = new ConceptSource();
+		source.setName("Some source");
+		
+		String serialized = serializer.serialize(source);
+		Assert.assertTrue(serialized.matches("[A-Za-z0-9+/=]+"));
+		ConceptSource read = serializer.deserialize(serialized, ConceptSource.class);
+		Assert.assertEquals(source.getUuid(), read.getUuid());
+		Assert.assertEquals("Some source", read.getName());
+		
+		expectedException.expect(SerializationException.class);
+		serializer.serialize(source, new StringWriter());
+	}
+	
+	/**
+	 * @see XStreamSerializer#configure(XStreamCustomizer)
+	 * @verifies apply the change without affecting the previous configuration
+	 */
+	@Test
+	public void configure_shouldApplyTheChangeWithoutAffectingThePreviousConfiguration() throws Exception {
+		XStreamSerializer serializer = new XStreamSerializer(null, StreamDriverType.XPP3);
+		ConceptSource source = new ConceptSource();
+		source.setName("Some source");
+		XStream before = serializer.getXstream();
+		
+		serializer.configure(new XStreamCustomizer() {
+			
+			public void customize(XStream xstream) {
+				xstream.alias("source", ConceptSource.class);
+			}
+		});
+		
+		Assert.assertNotSame(before, serializer.getXstream());
+		Assert.assertTrue(serializer.serialize(source).startsWith("<source"));
+		Assert.assertFalse(before.toXML(source).startsWith("<source"));
+		Assert.assertEquals("Some source", serializer.deserialize(serializer.serialize(source), ConceptSource.class)
+		        .getName());
+	}
+	
+	/**
+	 * @see XStreamSerializer#configure(XStreamCustomizer)
+	 * @verifies keep earlier changes when a new one is made
+	 */
+	@Test
+	public void configure_shouldKeepEarlierChangesWhenANewOneIsMade() throws Exception {
+		XStreamSerializer serializer = new XStreamSerializer(null, StreamDriverType.XPP3);
+		serializer.configure(new XStreamCustomizer() {
+			
+			public void customize(XStream xstream) {
+				xstream.alias("source", ConceptSource.class);
+			}
+		});
+		serializer.configure(new XStreamCustomizer() {
+			
+			public void customize(XStream xstream) {
+				xstream.omitField(ConceptSource.class, "description");
+			}
+		});
+		
+		ConceptSource source = new ConceptSource();
+		source.setDescription("Some description");
+		String xml = serializer.serialize(source);
+		Assert.assertEquals(2, serializer.getCustomizers().size());
+		Assert.assertTrue(xml.startsWith("<source"));
+		Assert.assertFalse(xml.contains("Some description"));
+	}
+	
+	/**
+	 * the converters see the classes of the objects holding the one they write
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldTrackTheTypesOfTheObjectsBeingSerialized() throws Exception {
+		final List<Object> seen = new ArrayList<Object>();
+		XStreamSerializer serializer = new XStreamSerializer(null, StreamDriverType.XPP3);
+		serializer.configure(new XStreamCustomizer() {
+			
+			public void customize(XStream xstream) {
+				xstream.registerConverter(new Converter() {
+					
+					public boolean canConvert(Class type) {
+						return PersonName.class.equals(type);
+					}
+					
+					public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+						CustomReferenceByIdMarshaller marshaller = (CustomReferenceByIdMarshaller) context;
+						seen.add(marshaller.getDepth());
+						seen.add(marshaller.getType(0));
+						seen.add(marshaller.getParentType());
+						seen.add(marshaller.getCurrentType());
+					}
+					
+					public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+						return null;
+					}
+				}, XStream.PRIORITY_VERY_HIGH);
+			}
+		});
+		Patient patient = new Patient();
+		patient.addName(new PersonName("Given", null, "Family"));
+		serializer.serialize(patient);
+		
+		// the patient, its set of names and the name
+		Assert.assertEquals(3, seen.get(0));
+		Assert.assertEquals(Patient.class, seen.get(1));
+		Assert.assertTrue(Set.class.isAssignableFrom((Class) seen.get(2)));
+		Assert.assertEquals(PersonName.class, seen.get(3));
+	}
+	
+	/**
+	 * a user held by a user is written as its uuid, and the objects written after it still see the
+	 * outer user as their ancestor
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldTrackTheTypesOfAUserHeldByAUser() throws Exception {
+		final List<Object> seen = new ArrayList<Object>();
+		XStreamSerializer serializer = new XStreamSerializer(null, StreamDriverType.XPP3);
+		serializer.configure(new XStreamCustomizer() {
+			
+			public void customize(XStream xstream) {
+				xstream.registerConverter(new Converter() {
+					
+					public boolean canConvert(Class type) {
+						return Role.class.equals(type);
+					}
+					
+					public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+						CustomReferenceByIdMarshaller marshaller = (CustomReferenceByIdMarshaller) context;
+						seen.add(marshaller.getDepth());
+						seen.add(marshaller.getType(0));
+						seen.add(marshaller.getParentType());
+					}
+					
+					public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+						return null;
+					}
+				}, XStream.PRIORITY_VERY_HIGH);
+			}
+		});
+		User creator = new User();
+		creator.setUsername("creator");
+		User user = new User();
+		user.setUsername("user");
+		user.setCreator(creator);
+		user.setChangedBy(creator);
+		user.addRole(new Role("Tester"));
+		String xml = serializer.serialize(user);
+		
+		XMLAssert.assertXpathEvaluatesTo("user", "/user/username", xml);
+		XMLAssert.assertXpathEvaluatesTo(creator.getUuid(), "/user/creator/@uuid", xml);
+		XMLAssert.assertXpathNotExists("/user/creator/username", xml);
+		// the user, its set of roles and the role
+		Assert.assertEquals(3, seen.get(0));
+		Assert.assertEquals(User.class, seen.get(1));
+		Assert.assertTrue(Set.class.isAssignableFrom((Class) seen.get(2)));
+	}
+	
 	@SuppressWarnings("unchecked")
 	@Test
 	public void shouldNotBombOnNullListValues() throws Exception {
@@ -207,4 +539,12 @@ public class XStreamSerializerTest extends BaseModuleContextSensitiveTest {
 		Context.getSerializationService().serialize(proxy, XStreamSerializer.class);
 	}
 	
+	/**
+	 * holds an array in a field whose declared type is not an array, so that its class is written
+	 */
+	public static class ArrayHolder {
+		
+		private Object items;
+	}
+	
 }
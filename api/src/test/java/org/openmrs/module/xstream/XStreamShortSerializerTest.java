@@ -14,7 +14,9 @@
 package org.openmrs.module.xstream;
 
 import org.custommonkey.xmlunit.XMLAssert;
+import org.hibernate.SessionFactory;
 import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.stat.Statistics;
 import org.junit.Test;
 import org.openmrs.Patient;
 import org.openmrs.Person;
@@ -23,15 +25,24 @@ import org.openmrs.PersonAttribute;
 import org.openmrs.PersonAttributeType;
 import org.openmrs.User;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.serialization.xstream.UuidBatchResolver;
 import org.openmrs.module.serialization.xstream.XStreamShortSerializer;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.xml.XppDriver;
+
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 
@@ -208,4 +219,101 @@ public class XStreamShortSerializerTest extends BaseModuleContextSensitiveTest{
 		XMLAssert.assertXpathEvaluatesTo(user2.getUuid(), "/linked-hash-map/entry[2]/user/@uuid", xmlOutput);
 		XMLAssert.assertXpathNotExists("/linked-hash-map/entry[2]/user/*", xmlOutput);
 	}
+	
+	/**
+	 * @see XStreamShortSerializer#setBatchUuidResolution(boolean)
+	 * @verifies deserialize the same objects as without batches
+	 */
+	@Test
+	public void setBatchUuidResolution_shouldDeserializeTheSameObjectsAsWithoutBatches() throws Exception {
+		StringBuilder xmlBuilder = new StringBuilder();
+		xmlBuilder.append("<personAttribute id=\"1\" uuid=\"0768f3da-b692-44b7-a33f-abf2c450474e\" voided=\"false\">\n");
+		xmlBuilder.append("  <creator id=\"2\" uuid=\"ba1b19c2-3ed6-4f63-b8c0-f762dc8d7562\"/>\n");
+		xmlBuilder.append("  <dateCreated class=\"sql-timestamp\" id=\"3\">2008-08-15 15:46:47 CST</dateCreated>\n");
+		xmlBuilder.append("  <personAttributeId>1</personAttributeId>\n");
+		xmlBuilder.append("  <person id=\"4\" uuid=\"df8ae447-6745-45be-b859-403241d9913c\"/>\n");
+		xmlBuilder.append("  <attributeType id=\"5\" uuid=\"b3b6d540-a32e-44c7-91b3-292d97667518\"/>\n");
+		xmlBuilder.append("  <value></value>\n");
+		xmlBuilder.append("</personAttribute>\n");
+		String xml = xmlBuilder.toString();
+		
+		// only the references are collected, not the root, each with the type of its field
+		XStreamShortSerializer serializer = new XStreamShortSerializer();
+		UuidBatchResolver resolver = newResolver(serializer);
+		Map<Class<?>, Set<String>> references = resolver.collectReferences(new XppDriver().createReader(new StringReader(
+		        xml)));
+		assertEquals(3, references.size());
+		assertEquals(Collections.singleton("ba1b19c2-3ed6-4f63-b8c0-f762dc8d7562"), references.get(User.class));
+		assertEquals(Collections.singleton("df8ae447-6745-45be-b859-403241d9913c"), references.get(Person.class));
+		assertEquals(Collections.singleton("b3b6d540-a32e-44c7-91b3-292d97667518"), references
+		        .get(PersonAttributeType.class));
+		Map<String, Object> resolved = resolver.resolve(references);
+		assertEquals(3, resolved.size());
+		assertTrue(resolved.get(UuidBatchResolver.keyOf(User.class, "ba1b19c2-3ed6-4f63-b8c0-f762dc8d7562")) instanceof User);
+		
+		PersonAttribute expected = serializer.deserialize(xml, PersonAttribute.class);
+		serializer.setBatchUuidResolution(true);
+		PersonAttribute pa = serializer.deserialize(xml, PersonAttribute.class);
+		assertEquals(expected.getCreator().getUserId(), pa.getCreator().getUserId());
+		assertEquals(expected.getPerson().getPersonId(), pa.getPerson().getPersonId());
+		assertEquals(1, pa.getAttributeType().getPersonAttributeTypeId().intValue());
+	}
+	
+	/**
+	 * a uuid is only unique within its table, so it is only looked up for the type it is given with
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldOnlyLookUpAUuidInTheTableOfItsType() throws Exception {
+		String uuid = Context.getUserService().getUser(501).getUuid();
+		Map<Class<?>, Set<String>> references = new LinkedHashMap<Class<?>, Set<String>>();
+		references.put(PersonAttributeType.class, Collections.singleton(uuid));
+		references.put(User.class, Collections.singleton(uuid));
+		
+		Map<String, Object> resolved = newResolver(new XStreamShortSerializer()).resolve(references);
+		assertEquals(1, resolved.size());
+		assertNull(resolved.get(UuidBatchResolver.keyOf(PersonAttributeType.class, uuid)));
+		assertEquals(501, ((User) resolved.get(UuidBatchResolver.keyOf(User.class, uuid))).getUserId().intValue());
+	}
+	
+	/**
+	 * the references of one type are looked up with one query instead of one query each
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void shouldPrepareFewerStatementsWithBatches() throws Exception {
+		XStreamShortSerializer serializer = new XStreamShortSerializer();
+		List<User> users = Context.getUserService().getAllUsers();
+		// the root is the list, so every user is written as a uuid
+		String xml = serializer.serialize(new ArrayList<User>(users));
+		
+		Statistics statistics = Context.getRegisteredComponent("sessionFactory", SessionFactory.class).getStatistics();
+		statistics.setStatisticsEnabled(true);
+		try {
+			long withoutBatches = countStatements(serializer, xml, users.size(), statistics);
+			serializer.setBatchUuidResolution(true);
+			long withBatches = countStatements(serializer, xml, users.size(), statistics);
+			assertTrue(users.size() + " users: " + withBatches + " statements with batches, " + withoutBatches
+			        + " without", withBatches < withoutBatches);
+		}
+		finally {
+			statistics.setStatisticsEnabled(false);
+		}
+	}
+	
+	private long countStatements(XStreamShortSerializer serializer, String xml, int size, Statistics statistics)
+	        throws Exception {
+		Context.flushSession();
+		Context.clearSession();
+		statistics.clear();
+		assertEquals(size, serializer.deserialize(xml, List.class).size());
+		return statistics.getPrepareStatementCount();
+	}
+	
+	private UuidBatchResolver newResolver(XStreamShortSerializer serializer) {
+		XStream xstream = serializer.getXstream();
+		return new UuidBatchResolver(xstream.getMapper(), xstream.getReflectionProvider());
+	}
 }